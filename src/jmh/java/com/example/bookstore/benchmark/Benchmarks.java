@@ -0,0 +1,56 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.bookstore.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.util.StringUtils;
+
+/**
+ * Runs the benchmarks matching {@code bookstore.benchmark.include} once for each of the comma separated thread counts
+ * given via {@code bookstore.benchmark.threads} along with the {@link GCProfiler} to capture allocation rates. Results
+ * are written to {@code target/jmh-<threads>-threads.json}.
+ *
+ * @author Christoph Strobl
+ */
+public class Benchmarks {
+
+	public static void main(String[] args) throws RunnerException {
+
+		String include = System.getProperty("bookstore.benchmark.include", OrderBenchmark.class.getSimpleName());
+		String[] threadCounts = StringUtils
+				.commaDelimitedListToStringArray(System.getProperty("bookstore.benchmark.threads", "1,4,16"));
+
+		for (String threadCount : threadCounts) {
+
+			int threads = Integer.parseInt(threadCount.trim());
+
+			Options options = new OptionsBuilder() //
+					.include(include) //
+					.threads(threads) //
+					.addProfiler(GCProfiler.class) //
+					.result(String.format("target/jmh-%s-threads.json", threads)) //
+					.resultFormat(ResultFormatType.JSON) //
+					.build();
+
+			new Runner(options).run();
+		}
+	}
+}
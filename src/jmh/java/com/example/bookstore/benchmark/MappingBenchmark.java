@@ -0,0 +1,136 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.bookstore.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BsonBinaryReader;
+import org.bson.BsonBinaryWriter;
+import org.bson.Document;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.NoOpDbRefResolver;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+
+import com.example.bookstore.Book;
+import com.example.bookstore.BookSnapshot;
+import com.example.bookstore.Order;
+import com.example.bookstore.codec.BookCodec;
+import com.example.bookstore.codec.OrderCodec;
+
+/**
+ * Benchmark reading a {@link Book} from and writing an {@link Order} to raw BSON via the
+ * {@link MappingMongoConverter} and an intermediate {@link Document}, compared to the hand-written {@link BookCodec}
+ * and {@link OrderCodec}. Runs in memory and does not require a MongoDB.
+ *
+ * @author Christoph Strobl
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class MappingBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class Fixture {
+
+		final DocumentCodec documentCodec = new DocumentCodec();
+		final BookCodec bookCodec = new BookCodec();
+		final OrderCodec orderCodec = new OrderCodec();
+
+		MappingMongoConverter converter;
+		byte[] book;
+		Order order;
+
+		@Setup
+		public void setUp() {
+
+			converter = new MappingMongoConverter(NoOpDbRefResolver.INSTANCE, new MongoMappingContext());
+			converter.afterPropertiesSet();
+
+			Document document = new Document("_id", "book-1") //
+					.append("title", "The Hobbit") //
+					.append("author", Arrays.asList("J.R.R. Tolkien")) //
+					.append("published_date", "1937-09-21") //
+					.append("pages", 310) //
+					.append("language", "English") //
+					.append("publisher_id", "george-allen-and-unwin") //
+					.append("available", 42) //
+					.append("checkout", Arrays.asList(new Document("by", "frodo@shire.me").append("date", new Date())));
+
+			BasicOutputBuffer buffer = new BasicOutputBuffer();
+			documentCodec.encode(new BsonBinaryWriter(buffer), document, EncoderContext.builder().build());
+			book = buffer.toByteArray();
+
+			order = new Order(new ObjectId().toHexString(), "frodo@shire.me", new Date(), Arrays.asList(
+					new BookSnapshot("book-1", "The Hobbit", Arrays.asList("J.R.R. Tolkien")),
+					new BookSnapshot("book-2", "The Fellowship of the Ring", Arrays.asList("J.R.R. Tolkien"))));
+		}
+
+		BsonBinaryReader bookReader() {
+			return new BsonBinaryReader(ByteBuffer.wrap(book));
+		}
+	}
+
+	@Benchmark
+	public Book readBookViaConverter(Fixture fixture) {
+
+		Document document = fixture.documentCodec.decode(fixture.bookReader(), DecoderContext.builder().build());
+		return fixture.converter.read(Book.class, document);
+	}
+
+	@Benchmark
+	public Book readBookViaCodec(Fixture fixture) {
+		return fixture.bookCodec.decode(fixture.bookReader(), DecoderContext.builder().build());
+	}
+
+	@Benchmark
+	public byte[] writeOrderViaConverter(Fixture fixture) {
+
+		Document document = new Document();
+		fixture.converter.write(fixture.order, document);
+
+		BasicOutputBuffer buffer = new BasicOutputBuffer();
+		fixture.documentCodec.encode(new BsonBinaryWriter(buffer), document, EncoderContext.builder().build());
+		return buffer.toByteArray();
+	}
+
+	@Benchmark
+	public byte[] writeOrderViaCodec(Fixture fixture) {
+
+		BasicOutputBuffer buffer = new BasicOutputBuffer();
+		fixture.orderCodec.encode(new BsonBinaryWriter(buffer), fixture.order, EncoderContext.builder().build());
+		return buffer.toByteArray();
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.bookstore.benchmark;
+
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import com.example.bookstore.AppProfiles;
+import com.example.bookstore.Book;
+import com.example.bookstore.Customer;
+import com.example.bookstore.FantasyBookstoreApplication;
+import com.example.bookstore.Order;
+import com.example.bookstore.reactive.transaction.ReactiveOrderService;
+import com.example.bookstore.sync.OrderService;
+
+/**
+ * Benchmark placing orders via the different strategies against a local MongoDB replica set. Orders either all go to
+ * one single {@literal hot} {@link Book} or are spread {@literal uniform}ly across the catalog. Failed orders (eg. due
+ * to write conflicts) are counted and reported by JMH as the secondary {@link Failures failures} result.
+ *
+ * @author Christoph Strobl
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class OrderBenchmark {
+
+	static final int STOCK = 1_000_000_000;
+
+	@State(Scope.Benchmark)
+	public static class Bookstore {
+
+		/**
+		 * {@literal +} separated {@link AppProfiles} to activate.
+		 */
+		@Param({ AppProfiles.SYNC_ATOMIC, AppProfiles.SYNC_TRANSACTION, AppProfiles.NATIVE_SYNC_TRANSACTION,
+				AppProfiles.SYNC_TRANSACTION + "+" + AppProfiles.RETRYABLE_TRANSACTION,
+				AppProfiles.SYNC_TRANSACTION + "+" + AppProfiles.COALESCE, AppProfiles.REACTIVE_TRANSACTION,
+				AppProfiles.REACTIVE_TRANSACTION + "+" + AppProfiles.COALESCE }) String profiles;
+
+		@Param({ "hot", "uniform" }) String distribution;
+
+		ConfigurableApplicationContext context;
+		MongoTemplate template;
+		BiFunction<Customer, Book, Order> orderService;
+		List<Book> books;
+
+		@Setup(Level.Trial)
+		public void start() {
+
+			context = new SpringApplicationBuilder(FantasyBookstoreApplication.class) //
+					.web(WebApplicationType.NONE) //
+					.run("--spring.profiles.active=" + AppProfiles.RESET + "," + profiles.replace('+', ','));
+
+			template = context.getBean(MongoTemplate.class);
+			books = template.findAll(Book.class);
+
+			if (context.getBeanNamesForType(ReactiveOrderService.class).length > 0) {
+
+				ReactiveOrderService reactiveOrderService = context.getBean(ReactiveOrderService.class);
+				orderService = (customer, book) -> reactiveOrderService.buy(customer, book).block();
+			} else {
+				orderService = context.getBean(OrderService.class)::buy;
+			}
+		}
+
+		@Setup(Level.Iteration)
+		public void restock() {
+
+			template.remove(new Query(), Order.class);
+			template.updateMulti(new Query(), new Update().set("stock", STOCK).unset("checkout"), Book.class);
+		}
+
+		@TearDown(Level.Trial)
+		public void stop() {
+			context.close();
+		}
+
+		Book pick(SplittableRandom random) {
+			return "hot".equals(distribution) ? books.get(0) : books.get(random.nextInt(books.size()));
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Buyer {
+
+		static final AtomicInteger COUNTER = new AtomicInteger();
+
+		final SplittableRandom random = new SplittableRandom();
+		final Customer customer = Customer.of("buyer-" + COUNTER.incrementAndGet());
+	}
+
+	/**
+	 * Failed orders reported by JMH as a secondary result next to the primary one.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Failures {
+
+		public long failures;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			failures = 0;
+		}
+	}
+
+	@Benchmark
+	public Object buy(Bookstore bookstore, Buyer buyer, Failures failures) {
+
+		try {
+			return bookstore.orderService.apply(buyer.customer, bookstore.pick(buyer.random));
+		} catch (RuntimeException e) {
+
+			failures.failures++;
+			return e;
+		}
+	}
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.bookstore.catalog;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark looking up the in-memory {@link BookSearchIndex} over synthetic titles, where {@literal the} is part of
+ * every other title. Covers a single prefix, a frequent term along with a frequent prefix or one nothing starts with,
+ * and frequent terms along with a short prefix. Runs in memory and does not require a MongoDB.
+ *
+ * @author Christoph Strobl
+ */
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SearchBenchmark {
+
+	private static final String[] ADJECTIVES = { "painted", "warded", "desert", "daylight", "skull", "inquisitor",
+			"broken", "dark", "silver", "hidden", "burning", "lost", "golden", "winter", "last", "iron" };
+	private static final String[] NOUNS = { "man", "war", "spear", "throne", "empire", "tower", "sword", "king",
+			"queen", "road", "storm", "crown", "city", "shadow", "blade", "fire" };
+	private static final String[] AUTHORS = { "Peter V. Brett", "Brandon Sanderson", "Robin Hobb", "Joe Abercrombie",
+			"Mark Lawrence", "Ursula K. Le Guin", "Terry Pratchett", "Steven Erikson" };
+
+	@State(Scope.Benchmark)
+	public static class Fixture {
+
+		@Param("1000000") int books;
+
+		BookSearchIndex index;
+
+		@Setup
+		public void setUp() {
+
+			Random random = new Random(42);
+			List<SearchHit> hits = new ArrayList<>(books);
+
+			for (int i = 0; i < books; i++) {
+
+				// a long tail of made up words next to the frequent ones
+				String title = (random.nextBoolean() ? "The " : "") + pick(ADJECTIVES, random) + " "
+						+ pick(NOUNS, random) + " " + word(random);
+				hits.add(new SearchHit("book-" + i, title, Collections.singletonList(pick(AUTHORS, random))));
+			}
+
+			index = new BookSearchIndex(null);
+			index.index(hits);
+		}
+
+		@TearDown
+		public void tearDown() {
+			index.shutdown();
+		}
+
+		private static String pick(String[] values, Random random) {
+			return values[random.nextInt(values.length)];
+		}
+
+		private static String word(Random random) {
+
+			char[] word = new char[3 + random.nextInt(5)];
+			for (int i = 0; i < word.length; i++) {
+				word[i] = (char) ('a' + random.nextInt(25)); // no 'z'
+			}
+			return new String(word);
+		}
+	}
+
+	@Benchmark
+	public List<SearchHit> prefix(Fixture fixture) {
+		return fixture.index.searchIndex("pa", 10);
+	}
+
+	@Benchmark
+	public List<SearchHit> frequentTermAndPrefix(Fixture fixture) {
+		return fixture.index.searchIndex("the pa", 10);
+	}
+
+	@Benchmark
+	public List<SearchHit> frequentTermAndUnknownPrefix(Fixture fixture) {
+		return fixture.index.searchIndex("the zzz", 10);
+	}
+
+	@Benchmark
+	public List<SearchHit> frequentTermsAndShortPrefix(Fixture fixture) {
+		return fixture.index.searchIndex("the painted m", 10);
+	}
+}
@@ -60,6 +60,66 @@ public final class AppProfiles {
 	 */
 	public static final String REACTIVE_CHANGESTREAMS = "rcs";
 
+	/**
+	 * Spring {@link org.springframework.context.annotation.Profile} to serve catalog reads from memory kept up to date via
+	 * change streams.
+	 */
+	public static final String CATALOG_CACHE = "cache";
+
+	/**
+	 * Spring {@link org.springframework.context.annotation.Profile} to search the catalog via an in-memory index kept up to
+	 * date via change streams.
+	 */
+	public static final String CATALOG_SEARCH = "search";
+
+	/**
+	 * Spring {@link org.springframework.context.annotation.Profile} to split the stock of books into multiple documents.
+	 * Use along with {@link #SYNC_TRANSACTION}.
+	 */
+	public static final String SHARDED_STOCK = "shard";
+
+	/**
+	 * Spring {@link org.springframework.context.annotation.Profile} to place concurrent orders within one single
+	 * transaction. Use along with {@link #SYNC_TRANSACTION} or {@link #REACTIVE_TRANSACTION}.
+	 */
+	public static final String COALESCE = "coalesce";
+
+	/**
+	 * Spring {@link org.springframework.context.annotation.Profile} to keep a leaderboard of the best selling books up to
+	 * date via change streams.
+	 */
+	public static final String SALES_STATS = "stats";
+
+	/**
+	 * Spring {@link org.springframework.context.annotation.Profile} to pre-aggregate daily sales for reports.
+	 */
+	public static final String SALES_REPORTS = "reports";
+
+	/**
+	 * Spring {@link org.springframework.context.annotation.Profile} to accept orders right away and place them in the
+	 * background. Use along with {@link #SYNC_TRANSACTION}, {@link #NATIVE_SYNC_TRANSACTION} or
+	 * {@link #REACTIVE_TRANSACTION}.
+	 */
+	public static final String ASYNC_ORDERS = "async";
+
+	/**
+	 * Spring {@link org.springframework.context.annotation.Profile} to reserve books for a limited time before ordering
+	 * them. Use along with {@link #SYNC_TRANSACTION}.
+	 */
+	public static final String HOLDS = "holds";
+
+	/**
+	 * Spring {@link org.springframework.context.annotation.Profile} to reject orders for sold out books before opening a
+	 * transaction, kept up to date via change streams.
+	 */
+	public static final String SOLD_OUT = "soldout";
+
+	/**
+	 * Spring {@link org.springframework.context.annotation.Profile} to read books and write orders via hand-written
+	 * codecs instead of the mapping converter. Use along with {@link #SYNC_TRANSACTION}.
+	 */
+	public static final String CODEC = "codec";
+
 	private AppProfiles() { /* u can't touch this */}
 
 }
@@ -0,0 +1,30 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.bookstore;
+
+/**
+ * There is no {@link Book} with the requested id.
+ *
+ * @author Christoph Strobl
+ */
+public class BookNotFoundException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public BookNotFoundException(String bookId) {
+		super(String.format("No book found for id %s", bookId));
+	}
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.bookstore;
+
+import lombok.Value;
+
+import java.util.List;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Field;
+import org.springframework.lang.Nullable;
+
+/**
+ * The {@link Book} as it was at the time it got {@link Order ordered}, embedded in the {@link Order} so that reading
+ * an {@link Order} does not require to look up its {@link Book books}. Fields are named just like the ones of the
+ * {@link Book} itself.
+ *
+ * <pre>
+ * <code>
+ * {
+ *     "_id" : "f430cb49",
+ *     "title" : "The Warded Man",
+ *     "author" : [ "Peter V. Brett" ]
+ * }
+ * </code>
+ * </pre>
+ *
+ * @author Christoph Strobl
+ */
+@Value
+public class BookSnapshot {
+
+	@Id String id;
+	@Nullable String title;
+
+	@Nullable //
+	@Field("author") List<String> authors;
+
+	public static BookSnapshot of(Book book) {
+		return new BookSnapshot(book.getId(), book.getTitle(), book.getAuthors());
+	}
+}
@@ -15,6 +15,10 @@
  */
 package com.example.bookstore;
 
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
 /**
  * Oh no! It happened, we've run out of {@link Book books}.
  *
@@ -22,14 +26,24 @@ package com.example.bookstore;
  */
 public class BookSoldOutException extends RuntimeException {
 
-	private final Book book;
+	private final List<Book> books;
 
 	public BookSoldOutException(Book book) {
-		this.book = book;
+		this(Collections.singletonList(book));
+	}
+
+	public BookSoldOutException(List<Book> books) {
+		this.books = books;
 	}
 
 	@Override
 	public String getMessage() {
-		return String.format("o_O we've run out of %s by %s", book.getTitle(), book.getAuthors());
+
+		if (books.size() == 1) {
+			return String.format("o_O we've run out of %s by %s", books.get(0).getTitle(), books.get(0).getAuthors());
+		}
+
+		return String.format("o_O we've run out of at least one of %s",
+				books.stream().map(Book::getTitle).distinct().collect(Collectors.toList()));
 	}
 }
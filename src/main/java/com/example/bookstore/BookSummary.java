@@ -0,0 +1,45 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.bookstore;
+
+import lombok.Value;
+
+import java.util.List;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Field;
+
+/**
+ * Listing view of a {@link Book} read straight from the {@literal books} collection. Just the fields mapped here are
+ * fetched from the database.
+ *
+ * @author Christoph Strobl
+ */
+@Value
+public class BookSummary {
+
+	@Id String id;
+	String title;
+
+	@Field("author") List<String> authors;
+
+	@Field("available") //
+	int stock;
+
+	static BookSummary of(Book book) {
+		return new BookSummary(book.getId(), book.getTitle(), book.getAuthors(), book.getStock());
+	}
+}
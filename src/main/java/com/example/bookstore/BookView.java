@@ -0,0 +1,161 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.bookstore;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.lang.Nullable;
+import org.springframework.util.StringUtils;
+
+/**
+ * The properties of a {@link Book} a client asked for, either by naming a view ({@literal ?view=summary} or
+ * {@literal ?view=detail}) or by listing the properties ({@literal ?fields=title,authors,stock}). The
+ * {@link #project(Query) projection} is pushed down to MongoDB, so that just the requested fields are sent over the
+ * wire and decoded.
+ * <ul>
+ * <li>{@link #DETAIL} - the entire {@link Book}. This is the default.</li>
+ * <li>{@link #SUMMARY} - a {@link BookSummary} for listings.</li>
+ * <li>fields - a {@link Map} of the requested properties, always including the {@literal id}.</li>
+ * </ul>
+ *
+ * @author Christoph Strobl
+ */
+public class BookView {
+
+	private static final Map<String, Function<Book, Object>> PROPERTIES = new LinkedHashMap<>();
+
+	static {
+
+		PROPERTIES.put("id", Book::getId);
+		PROPERTIES.put("title", Book::getTitle);
+		PROPERTIES.put("authors", Book::getAuthors);
+		PROPERTIES.put("publishDate", Book::getPublishDate);
+		PROPERTIES.put("pages", Book::getPages);
+		PROPERTIES.put("language", Book::getLanguage);
+		PROPERTIES.put("publisherId", Book::getPublisherId);
+		PROPERTIES.put("stock", Book::getStock);
+	}
+
+	public static final BookView DETAIL = new BookView(PROPERTIES.keySet());
+	public static final BookView SUMMARY = new BookView(
+			new LinkedHashSet<>(Arrays.asList("id", "title", "authors", "stock")));
+
+	private final Set<String> properties;
+
+	private BookView(Set<String> properties) {
+		this.properties = Collections.unmodifiableSet(properties);
+	}
+
+	/**
+	 * Obtain the {@link BookView} for the given request parameters. {@code fields} takes precedence over {@code view}.
+	 *
+	 * @param view {@literal summary} or {@literal detail}, if any.
+	 * @param fields comma separated list of {@link Book} properties, if any.
+	 * @return never {@literal null}.
+	 * @throws IllegalArgumentException for unknown views or properties.
+	 */
+	public static BookView of(@Nullable String view, @Nullable String fields) {
+
+		if (StringUtils.hasText(fields)) {
+
+			Set<String> properties = new LinkedHashSet<>();
+			properties.add("id");
+
+			for (String property : StringUtils.commaDelimitedListToSet(fields)) {
+
+				property = property.trim();
+				if (!PROPERTIES.containsKey(property)) {
+					throw new IllegalArgumentException(
+							String.format("Unknown field '%s'. Use any of %s.", property, PROPERTIES.keySet()));
+				}
+				properties.add(property);
+			}
+
+			return properties.equals(DETAIL.properties) ? DETAIL : new BookView(properties);
+		}
+
+		if (!StringUtils.hasText(view) || "detail".equals(view)) {
+			return DETAIL;
+		}
+
+		if ("summary".equals(view)) {
+			return SUMMARY;
+		}
+
+		throw new IllegalArgumentException(String.format("Unknown view '%s'. Use summary or detail.", view));
+	}
+
+	/**
+	 * @return {@literal true} if the entire {@link Book} is requested.
+	 */
+	public boolean isDetail() {
+		return this == DETAIL;
+	}
+
+	/**
+	 * @return the type to read from the {@literal books} collection.
+	 */
+	public Class<?> getType() {
+		return this == SUMMARY ? BookSummary.class : Book.class;
+	}
+
+	/**
+	 * Restrict the fields returned by the given {@link Query} to the ones of this view. The {@literal checkout} history
+	 * embedded by the {@link AppProfiles#SYNC_ATOMIC} sample is never read.
+	 *
+	 * @param query
+	 * @return the given {@link Query}.
+	 */
+	public Query project(Query query) {
+
+		if (isDetail()) {
+			query.fields().exclude("checkout");
+		} else {
+			properties.forEach(query.fields()::include);
+		}
+
+		return query;
+	}
+
+	/**
+	 * Render a value read via {@link #getType()} or a full {@link Book}, eg. from a cache, according to this view.
+	 *
+	 * @param source
+	 * @return
+	 */
+	public Object render(Object source) {
+
+		if (isDetail() || !(source instanceof Book)) {
+			return source;
+		}
+
+		Book book = (Book) source;
+		if (this == SUMMARY) {
+			return BookSummary.of(book);
+		}
+
+		Map<String, Object> rendered = new LinkedHashMap<>();
+		properties.forEach(property -> rendered.put(property, PROPERTIES.get(property).apply(book)));
+		return rendered;
+	}
+}
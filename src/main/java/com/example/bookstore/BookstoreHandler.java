@@ -17,8 +17,17 @@ package com.example.bookstore;
 
 import reactor.core.publisher.Mono;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.web.reactive.function.server.ServerRequest;
 import org.springframework.web.reactive.function.server.ServerResponse;
+import org.springframework.web.server.ResponseStatusException;
 
 /**
  * Web request handler for webflux.
@@ -28,7 +37,15 @@ import org.springframework.web.reactive.function.server.ServerResponse;
 public interface BookstoreHandler {
 
 	/**
-	 * Process a {@link ServerRequest} for a list of {@link Book books}.
+	 * Newline delimited JSON, streamed element by element just like {@link MediaType#APPLICATION_STREAM_JSON}.
+	 */
+	MediaType APPLICATION_NDJSON = MediaType.parseMediaType("application/x-ndjson");
+
+	/**
+	 * Process a {@link ServerRequest} for a list of {@link Book books}. Requests accepting
+	 * {@link MediaType#APPLICATION_STREAM_JSON} or {@link #APPLICATION_NDJSON} are answered element by element as the
+	 * {@link Book books} are read. The {@literal view} and {@literal fields} query parameters select the
+	 * {@link BookView}.
 	 *
 	 * @param request
 	 * @return
@@ -36,7 +53,8 @@ public interface BookstoreHandler {
 	Mono<ServerResponse> books(ServerRequest request);
 
 	/**
-	 * Process a {@link ServerRequest} for a single {@link Book}.
+	 * Process a {@link ServerRequest} for a single {@link Book}. The {@literal view} and {@literal fields} query
+	 * parameters select the {@link BookView}.
 	 *
 	 * @param request
 	 * @return
@@ -44,10 +62,137 @@ public interface BookstoreHandler {
 	Mono<ServerResponse> book(ServerRequest request);
 
 	/**
-	 * Process a {@link ServerRequest} to {@link Order order} a specific {@link Book}.
+	 * Process a {@link ServerRequest} to {@link Order order} a specific {@link Book}. Requests carrying an
+	 * {@link IdempotencyKeys#HEADER Idempotency-Key} already used by the customer are answered with the {@link Order}
+	 * placed before.
 	 *
 	 * @param request
 	 * @return
 	 */
 	Mono<ServerResponse> order(ServerRequest request);
+
+	/**
+	 * Process a {@link ServerRequest} to {@link Order order} all {@link Book books} listed in the request body at once.
+	 * Requests listing none are answered with {@literal 400 Bad Request}.
+	 *
+	 * @param request
+	 * @return
+	 */
+	Mono<ServerResponse> orders(ServerRequest request);
+
+	/**
+	 * Process a {@link ServerRequest} for one {@link OrderHistory page} of the {@link Order orders} placed by a
+	 * {@link Customer}. The {@literal after} query parameter takes the {@link OrderHistory#getNext() cursor} of the
+	 * previous page, {@literal limit} the page size.
+	 *
+	 * @param request
+	 * @return
+	 */
+	Mono<ServerResponse> customerOrders(ServerRequest request);
+
+	/**
+	 * Obtain the {@link BookView} selected by the {@literal view} and {@literal fields} query parameters.
+	 *
+	 * @param request
+	 * @return
+	 * @throws ResponseStatusException answering with {@literal 400 Bad Request} for unknown views or fields.
+	 */
+	static BookView view(ServerRequest request) {
+
+		try {
+			return BookView.of(request.queryParam("view").orElse(null), request.queryParam("fields").orElse(null));
+		} catch (IllegalArgumentException e) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Obtain the page size selected by the {@literal limit} query parameter for an {@link OrderHistory}.
+	 *
+	 * @param request
+	 * @return
+	 * @throws ResponseStatusException answering with {@literal 400 Bad Request} for non numeric limits.
+	 */
+	static int historyLimit(ServerRequest request) {
+
+		try {
+			return OrderHistory.limit(request.queryParam("limit").orElse(null));
+		} catch (IllegalArgumentException e) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Obtain the {@link Query} for the {@link OrderHistory} page following the {@literal after} query parameter.
+	 *
+	 * @param request
+	 * @param customer
+	 * @param limit
+	 * @return
+	 * @throws ResponseStatusException answering with {@literal 400 Bad Request} for malformed cursors.
+	 */
+	static Query historyQuery(ServerRequest request, Customer customer, int limit) {
+
+		try {
+			return OrderHistory.query(customer, request.queryParam("after").orElse(null), limit);
+		} catch (IllegalArgumentException e) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Obtain the {@link IdempotencyKeys#HEADER Idempotency-Key} of the request, if any.
+	 *
+	 * @param request
+	 * @return
+	 * @throws ResponseStatusException answering with {@literal 400 Bad Request} for blank or too long keys.
+	 */
+	static Optional<String> idempotencyKey(ServerRequest request) {
+
+		List<String> keys = request.headers().header(IdempotencyKeys.HEADER);
+		if (keys.isEmpty()) {
+			return Optional.empty();
+		}
+
+		try {
+			IdempotencyKeys.validate(keys.get(0));
+		} catch (IllegalArgumentException e) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e);
+		}
+		return Optional.of(keys.get(0));
+	}
+
+	/**
+	 * Obtain the ids of the {@link Book books} to order all at once from the request body.
+	 *
+	 * @param request
+	 * @return
+	 * @throws ResponseStatusException answering with {@literal 400 Bad Request} if the body does not list any book.
+	 */
+	static Mono<List<String>> bookIds(ServerRequest request) {
+
+		return request.bodyToMono(String[].class) //
+				.filter(ids -> ids.length > 0) //
+				.map(Arrays::asList) //
+				.switchIfEmpty(Mono.error(() -> new ResponseStatusException(HttpStatus.BAD_REQUEST,
+						"At least one book has to be ordered.")));
+	}
+
+	/**
+	 * Answer a request with the {@link Order} placed before with the same {@link IdempotencyKeys idempotency key}.
+	 *
+	 * @param order
+	 * @param book the id of the {@link Book} requested.
+	 * @return
+	 * @throws ResponseStatusException answering with {@literal 422 Unprocessable Entity} if the key has been used for
+	 *           another {@link Order}.
+	 */
+	static Mono<ServerResponse> replay(Order order, String book) {
+
+		if (!IdempotencyKeys.isFor(order, Collections.singletonList(book))) {
+			return Mono.error(IdempotencyKeys.usedForAnotherOrder());
+		}
+
+		return ServerResponse.ok().header(IdempotencyKeys.REPLAYED_HEADER, "true").syncBody(order);
+	}
 }
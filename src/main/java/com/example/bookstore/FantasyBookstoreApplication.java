@@ -17,28 +17,85 @@ package com.example.bookstore;
 
 import static org.springframework.web.reactive.function.server.RequestPredicates.*;
 
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.DateTimeException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.web.codec.CodecCustomizer;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Profile;
+import org.springframework.core.env.Environment;
 import org.springframework.data.mongodb.MongoDbFactory;
 import org.springframework.data.mongodb.MongoTransactionManager;
 import org.springframework.data.mongodb.core.ChangeStreamOptions;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.http.codec.json.Jackson2JsonEncoder;
+import org.springframework.lang.Nullable;
 import org.springframework.retry.annotation.EnableRetry;
+import org.springframework.retry.annotation.Retryable;
+import org.springframework.retry.interceptor.RetryInterceptorBuilder;
+import org.springframework.retry.interceptor.RetryOperationsInterceptor;
+import org.springframework.scheduling.annotation.EnableScheduling;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.web.reactive.function.BodyInserters;
+import org.springframework.web.reactive.function.server.HandlerFunction;
 import org.springframework.web.reactive.function.server.RouterFunction;
 import org.springframework.web.reactive.function.server.RouterFunctions;
 import org.springframework.web.reactive.function.server.ServerResponse;
+import org.springframework.web.server.ResponseStatusException;
 
+import com.example.bookstore.admission.AdmissionControl;
+import com.example.bookstore.catalog.BookChangeListener;
+import com.example.bookstore.catalog.BookSearchIndex;
+import com.example.bookstore.catalog.SoldOutBooks;
+import com.example.bookstore.feed.OrderFeed;
+import com.example.bookstore.hold.Hold;
+import com.example.bookstore.hold.HoldHandler;
+import com.example.bookstore.hold.HoldService;
+import com.example.bookstore.queue.OrderQueue;
+import com.example.bookstore.queue.OrderQueueHandler;
+import com.example.bookstore.reactive.transaction.ReactiveOrderService;
+import com.example.bookstore.retry.TransactionRetryPolicy;
+import com.example.bookstore.stats.SalesLeaderboard;
+import com.example.bookstore.stats.SalesReports;
+import com.example.bookstore.sync.OrderService;
+import com.example.bookstore.sync.web.BlockingExecutor;
 import com.example.bookstore.util.ConsoleOutMongoDBCommandListener;
-import com.mongodb.MongoClientSettings;
+import com.example.bookstore.util.MongoClientSettingsFactory;
+import com.example.bookstore.util.MongoCommandMetrics;
+import com.example.bookstore.util.MongoPoolMetrics;
+import com.example.bookstore.util.SampledCommandListener;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.mongodb.client.MongoClients;
+import com.mongodb.client.model.changestream.FullDocument;
+import com.mongodb.event.CommandListener;
 
 /**
  * @author Christoph Strobl
@@ -54,33 +111,138 @@ public class FantasyBookstoreApplication {
 	 * The default configuration to apply no matter what.
 	 */
 	@Configuration
+	@EnableScheduling
 	class DefaultConfiguration {
 
 		@Autowired MongoTemplate template;
 
 		@Bean
-		com.mongodb.client.MongoClient mongoClient() {
+		com.mongodb.client.MongoClient mongoClient(MongoClientSettingsFactory clientSettings) {
+			return MongoClients.create(clientSettings.create("sync"));
+		}
+
+		/**
+		 * Pool, timeout and compressor settings per client read from {@code bookstore.mongodb.<client>.*}.
+		 *
+		 * @param environment
+		 * @param commandListeners
+		 * @param poolMetrics
+		 * @return
+		 */
+		@Bean
+		MongoClientSettingsFactory mongoClientSettingsFactory(Environment environment,
+				List<CommandListener> commandListeners, MongoPoolMetrics poolMetrics) {
+			return new MongoClientSettingsFactory(environment, commandListeners, poolMetrics);
+		}
+
+		/**
+		 * Checked out connections, wait queue and checkout wait times, and connection churn per client.
+		 *
+		 * @return
+		 */
+		@Bean
+		MongoPoolMetrics mongoPoolMetrics() {
+			return new MongoPoolMetrics();
+		}
 
-			MongoClientSettings settings = MongoClientSettings.builder() //
-					.addCommandListener(ConsoleOutMongoDBCommandListener.INSTANCE) //
-					.build();
+		/**
+		 * Answer duplicate submissions of the {@code bookstore.idempotency.cache-size} orders placed most recently with an
+		 * {@literal Idempotency-Key} from memory.
+		 *
+		 * @param cacheSize
+		 * @return
+		 */
+		@Bean
+		IdempotencyKeys idempotencyKeys(@Value("${bookstore.idempotency.cache-size:10000}") int cacheSize) {
+			return new IdempotencyKeys(cacheSize);
+		}
 
-			return MongoClients.create(settings);
+		/**
+		 * Latency, failure and reply size statistics per command.
+		 *
+		 * @return
+		 */
+		@Bean
+		MongoCommandMetrics mongoCommandMetrics() {
+			return new MongoCommandMetrics();
+		}
+
+		/**
+		 * Print every n-th command along with its reply to the console. Off by default as it is anything but cheap.
+		 *
+		 * @param sampleEvery
+		 * @return
+		 */
+		@Bean
+		SampledCommandListener consoleOutCommandListener(
+				@Value("${bookstore.mongodb.command-log.sample-every:0}") int sampleEvery) {
+			return new SampledCommandListener(ConsoleOutMongoDBCommandListener.INSTANCE, sampleEvery);
+		}
+
+		/**
+		 * Per customer and per book rate limits along with a cap on the requests in flight, applied to the
+		 * {@link BookstoreHandler} routes. All of them are off unless configured.
+		 *
+		 * @param customerRate
+		 * @param customerBurst
+		 * @param bookRate
+		 * @param bookBurst
+		 * @param maxConcurrent
+		 * @return
+		 */
+		@Bean
+		AdmissionControl admissionControl(@Value("${bookstore.admission.customer-rate:0}") double customerRate,
+				@Value("${bookstore.admission.customer-burst:100}") int customerBurst,
+				@Value("${bookstore.admission.book-rate:0}") double bookRate,
+				@Value("${bookstore.admission.book-burst:1000}") int bookBurst,
+				@Value("${bookstore.admission.max-concurrent:0}") int maxConcurrent) {
+			return new AdmissionControl(customerRate, customerBurst, bookRate, bookBurst, maxConcurrent);
 		}
 
 		/**
 		 * {@link RouterFunction Routes} to interact with the MongoDB Bookstore Application delegating the processing of
 		 * {@link org.springframework.web.reactive.function.server.ServerRequest requests} to the {@link BookstoreHandler}.
+		 * All but the metrics go through {@link AdmissionControl}. Orders for a single {@link Book} are accepted via the
+		 * {@link OrderQueueHandler} if present.
 		 *
 		 * @param handler
 		 * @return
 		 */
 		@Bean
-		RouterFunction<ServerResponse> routerFunction(BookstoreHandler handler) {
+		RouterFunction<ServerResponse> routerFunction(BookstoreHandler handler, Optional<OrderQueueHandler> orderQueue,
+				AdmissionControl admissionControl, MongoCommandMetrics commandMetrics, MongoPoolMetrics poolMetrics) {
+
+			HandlerFunction<ServerResponse> order = orderQueue.<HandlerFunction<ServerResponse>> map(it -> it::accept)
+					.orElse(handler::order);
 
 			return RouterFunctions.route(GET("/books"), handler::books) //
 					.andRoute(GET("/book/{book}"), handler::book) //
-					.andRoute(POST("/book/{book}/order"), handler::order);
+					.andRoute(POST("/book/{book}/order"), order) //
+					.andRoute(POST("/orders"), handler::orders) //
+					.andRoute(GET("/customer/{customer}/orders"), handler::customerOrders) //
+					.filter(admissionControl) //
+					.andRoute(GET("/metrics/commands"), request -> ServerResponse.ok().syncBody(commandMetrics.snapshot())) //
+					.andRoute(GET("/metrics/pool"), request -> ServerResponse.ok().syncBody(poolMetrics.snapshot())) //
+					.andRoute(GET("/metrics/admission"), request -> ServerResponse.ok().syncBody(admissionControl.snapshot()));
+		}
+
+		/**
+		 * Add a {@link Jackson2JsonEncoder} writing {@link BookstoreHandler#APPLICATION_NDJSON} element by element next to
+		 * the default one.
+		 *
+		 * @param objectMapper
+		 * @return
+		 */
+		@Bean
+		CodecCustomizer ndjsonCodecCustomizer(ObjectMapper objectMapper) {
+
+			return configurer -> {
+
+				Jackson2JsonEncoder encoder = new Jackson2JsonEncoder(objectMapper, BookstoreHandler.APPLICATION_NDJSON);
+				encoder.setStreamingMediaTypes(Collections.singletonList(BookstoreHandler.APPLICATION_NDJSON));
+
+				configurer.customCodecs().encoder(encoder);
+			};
 		}
 
 		/**
@@ -96,6 +258,54 @@ public class FantasyBookstoreApplication {
 			if (!template.collectionExists(Book.class)) {
 				template.createCollection(Book.class);
 			}
+
+			createIndexes();
+		}
+
+		/**
+		 * Create the indexes required by the queries issued. Does nothing for already existing ones.
+		 */
+		void createIndexes() {
+			template.indexOps(Order.class).ensureIndex(OrderHistory.INDEX);
+			template.indexOps(Order.class).ensureIndex(IdempotencyKeys.INDEX);
+		}
+	}
+
+	/**
+	 * Additional configuration for: all synchronous samples.
+	 */
+	@Configuration
+	@Profile({ AppProfiles.SYNC_ATOMIC, AppProfiles.SYNC_TRANSACTION, AppProfiles.NATIVE_SYNC_TRANSACTION })
+	class SyncWebConfiguration {
+
+		/**
+		 * Bounded {@link Scheduler} for blocking cursor reads that must not run on the event loop.
+		 *
+		 * @param threads
+		 * @return
+		 */
+		@Bean(destroyMethod = "dispose")
+		Scheduler cursorScheduler(@Value("${bookstore.books.cursor-threads:4}") int threads) {
+			return Schedulers
+					.fromExecutorService(Executors.newFixedThreadPool(threads, new CustomizableThreadFactory("books-cursor-")));
+		}
+
+		/**
+		 * {@link BlockingExecutor} for the blocking {@link com.example.bookstore.sync.OrderService} and repository calls.
+		 * Use {@literal direct} to run them on the event loop, {@literal elastic} to hand them over to an unbounded number
+		 * of threads or {@literal bounded} to use a fixed number of threads answering with {@literal 503} once
+		 * {@code queue-capacity} calls are waiting.
+		 *
+		 * @param mode
+		 * @param threads
+		 * @param queueCapacity
+		 * @return
+		 */
+		@Bean(destroyMethod = "dispose")
+		BlockingExecutor blockingExecutor(@Value("${bookstore.sync.execution.mode:bounded}") String mode,
+				@Value("${bookstore.sync.execution.threads:32}") int threads,
+				@Value("${bookstore.sync.execution.queue-capacity:256}") int queueCapacity) {
+			return BlockingExecutor.create(mode, threads, queueCapacity);
 		}
 	}
 
@@ -104,6 +314,7 @@ public class FantasyBookstoreApplication {
 	 */
 	@Configuration
 	@Profile(AppProfiles.SYNC_ATOMIC)
+	@EnableScheduling
 	class SyncConfiguration {
 
 	}
@@ -138,13 +349,8 @@ public class FantasyBookstoreApplication {
 	class ReactiveTransactionConfiguration {
 
 		@Bean
-		com.mongodb.reactivestreams.client.MongoClient reactiveMongoClient() {
-
-			MongoClientSettings settings = MongoClientSettings.builder() //
-					.addCommandListener(ConsoleOutMongoDBCommandListener.INSTANCE) //
-					.build();
-
-			return com.mongodb.reactivestreams.client.MongoClients.create(settings);
+		com.mongodb.reactivestreams.client.MongoClient reactiveMongoClient(MongoClientSettingsFactory clientSettings) {
+			return com.mongodb.reactivestreams.client.MongoClients.create(clientSettings.create("reactive"));
 		}
 	}
 
@@ -152,18 +358,361 @@ public class FantasyBookstoreApplication {
 	 * Additional configuration for: Change Streams
 	 */
 	@Configuration
-	@Profile(AppProfiles.REACTIVE_CHANGESTREAMS)
+	@Profile({ AppProfiles.REACTIVE_CHANGESTREAMS, AppProfiles.CATALOG_CACHE, AppProfiles.CATALOG_SEARCH,
+			AppProfiles.SALES_STATS, AppProfiles.SOLD_OUT })
 	class ReactiveChangeStreamConfiguration {
 
 		@Value("${spring.data.mongodb.database}") String database;
+		@Autowired ObjectProvider<BookChangeListener> bookChangeListeners;
+		@Autowired MongoClientSettingsFactory clientSettings;
+
+		private @Nullable com.mongodb.reactivestreams.client.MongoClient client;
+		private @Nullable ReactiveMongoTemplate template;
+
+		/**
+		 * Multicast the change stream of the {@literal order} collection to {@literal GET /orders/stream}.
+		 *
+		 * @param bufferSize
+		 * @param overflow {@literal drop} or {@literal disconnect}.
+		 * @param tokenSaveInterval
+		 * @return
+		 */
+		@Bean(initMethod = "start", destroyMethod = "stop")
+		@Profile(AppProfiles.REACTIVE_CHANGESTREAMS)
+		OrderFeed orderFeed(@Value("${bookstore.order-stream.buffer-size:256}") int bufferSize,
+				@Value("${bookstore.order-stream.overflow:drop}") String overflow,
+				@Value("${bookstore.order-stream.token-save-interval-ms:1000}") long tokenSaveInterval) {
+
+			return new OrderFeed(template(), bufferSize, OrderFeed.Overflow.of(overflow),
+					Duration.ofMillis(tokenSaveInterval));
+		}
+
+		/**
+		 * {@literal GET /orders/stream?customer=} answered with {@link MediaType#TEXT_EVENT_STREAM server-sent events}
+		 * unless {@link BookstoreHandler#APPLICATION_NDJSON} or {@link MediaType#APPLICATION_STREAM_JSON} is accepted.
+		 *
+		 * @param orderFeed
+		 * @return
+		 */
+		@Bean
+		@Profile(AppProfiles.REACTIVE_CHANGESTREAMS)
+		RouterFunction<ServerResponse> orderFeedRouterFunction(OrderFeed orderFeed) {
+
+			return RouterFunctions.route(GET("/orders/stream"), request -> {
+
+				Flux<Order> orders = orderFeed.orders(request.queryParam("customer").map(Customer::of).orElse(null));
+
+				Optional<MediaType> json = request.headers().accept().stream() //
+						.filter(it -> BookstoreHandler.APPLICATION_NDJSON.includes(it)
+								|| MediaType.APPLICATION_STREAM_JSON.includes(it)) //
+						.findFirst();
+
+				if (json.isPresent()) {
+					return ServerResponse.ok().contentType(json.get()).body(orders, Order.class);
+				}
+
+				return ServerResponse.ok().body(BodyInserters.fromServerSentEvents(orders //
+						.map(order -> ServerSentEvent.builder(order).id(order.getId()).event("order").build())));
+			}).andRoute(GET("/metrics/order-stream"), request -> ServerResponse.ok().syncBody(orderFeed.snapshot()));
+		}
+
+		/**
+		 * Best selling books within the configured windows, rebuilt on startup and kept up to date via the change stream of
+		 * the {@literal order} collection. A {@code sketch-width} other than {@literal 0} trades exact counts for memory
+		 * independent of the size of the catalog.
+		 *
+		 * @param mongoOps
+		 * @param bucket
+		 * @param windows
+		 * @param maxTopK
+		 * @param sketchWidth
+		 * @param sketchDepth
+		 * @return
+		 */
+		@Bean(initMethod = "start", destroyMethod = "stop")
+		@Profile(AppProfiles.SALES_STATS)
+		SalesLeaderboard salesLeaderboard(MongoTemplate mongoOps,
+				@Value("${bookstore.stats.bucket-seconds:60}") long bucket,
+				@Value("${bookstore.stats.windows:5m,1h,24h}") List<String> windows,
+				@Value("${bookstore.stats.max-top-k:100}") int maxTopK,
+				@Value("${bookstore.stats.sketch-width:0}") int sketchWidth,
+				@Value("${bookstore.stats.sketch-depth:4}") int sketchDepth) {
+
+			return new SalesLeaderboard(mongoOps, template(), Duration.ofSeconds(bucket), windows, maxTopK, sketchWidth,
+					sketchDepth);
+		}
+
+		/**
+		 * {@literal GET /stats/top-books?window=1h&limit=10} answered from the {@link SalesLeaderboard}.
+		 *
+		 * @param leaderboard
+		 * @return
+		 */
+		@Bean
+		@Profile(AppProfiles.SALES_STATS)
+		RouterFunction<ServerResponse> statsRouterFunction(SalesLeaderboard leaderboard) {
+
+			return RouterFunctions.route(GET("/stats/top-books"), request -> {
+
+				String window = request.queryParam("window").orElse("1h");
+				try {
+
+					int limit = request.queryParam("limit").map(String::trim).map(Integer::parseInt).orElse(10);
+					return ServerResponse.ok().syncBody(leaderboard.top(window, limit));
+				} catch (IllegalArgumentException e) {
+					return Mono.error(new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e));
+				}
+			});
+		}
+
+		/**
+		 * {@literal GET /metrics/sold-out} answered with the number of sold out books and orders rejected by the
+		 * {@link SoldOutBooks}.
+		 *
+		 * @param soldOutBooks
+		 * @return
+		 */
+		@Bean
+		@Profile(AppProfiles.SOLD_OUT)
+		RouterFunction<ServerResponse> soldOutRouterFunction(SoldOutBooks soldOutBooks) {
+			return RouterFunctions.route(GET("/metrics/sold-out"),
+					request -> ServerResponse.ok().syncBody(soldOutBooks.snapshot()));
+		}
 
+		/**
+		 * Follow the change stream of the {@literal books} collection on behalf of all {@link BookChangeListener
+		 * listeners}. The stream starts at the operation time of the cluster read before the listeners are told it is
+		 * {@link BookChangeListener#connected() connected}, so that changes made while its cursor is still being opened
+		 * are delivered as well. A stream that ends, eg. on an {@literal invalidate} event, is re-established with the same
+		 * backoff as one that failed.
+		 */
 		@PostConstruct
 		public void init() {
 
-			new ReactiveMongoTemplate(com.mongodb.reactivestreams.client.MongoClients.create(), database) //
-					.changeStream("order", ChangeStreamOptions.empty(), Order.class) //
-					.doOnNext(System.out::println) //
-					.subscribe();
+			List<BookChangeListener> listeners = bookChangeListeners.orderedStream().collect(Collectors.toList());
+
+			if (!listeners.isEmpty()) {
+
+				Flux.defer(() -> operationTime().flatMapMany(since -> {
+
+					listeners.forEach(BookChangeListener::connected);
+
+					return template().changeStream("books", ChangeStreamOptions.builder() //
+							.fullDocumentLookup(FullDocument.UPDATE_LOOKUP) //
+							.resumeAt(since) //
+							.build(), Book.class);
+				})) //
+						.doOnNext(event -> listeners.forEach(listener -> listener.onChange(event))) //
+						.concatWith(Mono.error(() -> new IllegalStateException("The change stream of books has ended."))) //
+						.doOnError(it -> listeners.forEach(BookChangeListener::disconnected)) //
+						.retryBackoff(Long.MAX_VALUE, Duration.ofSeconds(1), Duration.ofSeconds(30)) //
+						.subscribe();
+			}
+		}
+
+		@PreDestroy
+		public void destroy() {
+
+			if (client != null) {
+				client.close();
+			}
+		}
+
+		/**
+		 * Obtain the {@literal operationTime} the cluster reports for a {@literal ping}. Change streams can only start at
+		 * whole seconds, so one started there might deliver a few changes made just before.
+		 *
+		 * @return
+		 */
+		Mono<Instant> operationTime() {
+
+			return template().executeCommand(new Document("ping", 1)).map(reply -> {
+
+				Object operationTime = reply.get("operationTime");
+				return operationTime instanceof BsonTimestamp
+						? Instant.ofEpochSecond(((BsonTimestamp) operationTime).getTime())
+						: Instant.now();
+			});
+		}
+
+		/**
+		 * All change streams share the very same {@link ReactiveMongoTemplate} and therefore the connection pool of the
+		 * {@literal change-stream} client, set up via {@code bookstore.mongodb.change-stream.*}. Each open change stream
+		 * holds on to a connection while awaiting changes, so size it by the number of streams rather than the request load.
+		 */
+		ReactiveMongoTemplate template() {
+
+			if (template == null) {
+
+				client = com.mongodb.reactivestreams.client.MongoClients.create(clientSettings.create("change-stream"));
+				template = new ReactiveMongoTemplate(client, database);
+			}
+			return template;
+		}
+	}
+
+	/**
+	 * Additional configuration for: catalog search.
+	 */
+	@Configuration
+	@Profile(AppProfiles.CATALOG_SEARCH)
+	class CatalogSearchConfiguration {
+
+		/**
+		 * {@literal GET /books/search?q=} answered from the {@link BookSearchIndex}, or the {@literal $text} index with
+		 * {@literal mode=text}.
+		 *
+		 * @param searchIndex
+		 * @return
+		 */
+		@Bean
+		RouterFunction<ServerResponse> searchRouterFunction(BookSearchIndex searchIndex) {
+
+			return RouterFunctions.route(GET("/books/search"), request -> {
+
+				String query = request.queryParam("q").orElse("");
+				boolean useTextIndex = request.queryParam("mode").filter("text"::equals).isPresent();
+				int limit;
+
+				try {
+					limit = BookSearchIndex.limit(request.queryParam("limit").orElse(null));
+				} catch (IllegalArgumentException e) {
+					return Mono.error(new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e));
+				}
+
+				return searchIndex.search(query, limit, useTextIndex).flatMap(hits -> ServerResponse.ok().syncBody(hits));
+			});
+		}
+	}
+
+	/**
+	 * Additional configuration for: sales reports.
+	 */
+	@Configuration
+	@Profile(AppProfiles.SALES_REPORTS)
+	@EnableScheduling
+	class SalesReportsConfiguration {
+
+		/**
+		 * {@literal GET /reports/sales?by=publisher&from=2018-08-01&to=2018-08-31} answered from the pre-aggregated
+		 * {@link SalesReports}. Covers the last 30 days by default.
+		 *
+		 * @param reports
+		 * @return
+		 */
+		@Bean
+		RouterFunction<ServerResponse> reportsRouterFunction(SalesReports reports) {
+
+			return RouterFunctions.route(GET("/reports/sales"), request -> {
+
+				String by = request.queryParam("by").orElse("day");
+
+				return Mono.fromCallable(() -> {
+
+					LocalDate to = request.queryParam("to").map(LocalDate::parse).orElseGet(reports::today);
+					LocalDate from = request.queryParam("from").map(LocalDate::parse).orElseGet(() -> to.minusDays(29));
+
+					return reports.report(by, from, to);
+				}) //
+						.subscribeOn(Schedulers.elastic()) //
+						.onErrorMap(e -> e instanceof IllegalArgumentException || e instanceof DateTimeException,
+								e -> new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e)) //
+						.flatMap(report -> ServerResponse.ok().syncBody(report));
+			});
+		}
+	}
+
+	/**
+	 * Additional configuration for: cart holds.
+	 */
+	@Configuration
+	@Profile(AppProfiles.HOLDS)
+	@EnableScheduling
+	class HoldsConfiguration {
+
+		/**
+		 * {@link RouterFunction Routes} to reserve a {@link Book} and turn the {@link Hold} into an {@link Order} later on.
+		 *
+		 * @param handler
+		 * @param holdService
+		 * @return
+		 */
+		@Bean
+		RouterFunction<ServerResponse> holdsRouterFunction(HoldHandler handler, HoldService holdService) {
+
+			return RouterFunctions.route(POST("/book/{book}/hold"), handler::hold) //
+					.andRoute(GET("/hold/{hold}"), handler::status) //
+					.andRoute(POST("/hold/{hold}/order"), handler::order) //
+					.andRoute(DELETE("/hold/{hold}"), handler::release) //
+					.andRoute(GET("/metrics/holds"), request -> ServerResponse.ok().syncBody(holdService.snapshot()));
+		}
+	}
+
+	/**
+	 * Additional configuration for: asynchronous orders.
+	 */
+	@Configuration
+	@Profile(AppProfiles.ASYNC_ORDERS)
+	class AsyncOrderConfiguration {
+
+		/**
+		 * {@link OrderQueue} placing the accepted orders via the {@link OrderService} or {@link ReactiveOrderService} of the
+		 * active profiles using {@code workers} threads.
+		 *
+		 * @param mongoOps
+		 * @param orderService
+		 * @param reactiveOrderService
+		 * @param workers
+		 * @param batchSize
+		 * @param pollInterval
+		 * @param lease
+		 * @param maxAttempts
+		 * @return
+		 */
+		@Bean(initMethod = "start", destroyMethod = "stop")
+		OrderQueue orderQueue(MongoTemplate mongoOps, ObjectProvider<OrderService> orderService,
+				ObjectProvider<ReactiveOrderService> reactiveOrderService,
+				@Value("${bookstore.order-queue.workers:4}") int workers,
+				@Value("${bookstore.order-queue.batch-size:10}") int batchSize,
+				@Value("${bookstore.order-queue.poll-interval-ms:100}") long pollInterval,
+				@Value("${bookstore.order-queue.lease-ms:30000}") long lease,
+				@Value("${bookstore.order-queue.max-attempts:5}") int maxAttempts) {
+
+			OrderService sync = orderService.getIfAvailable();
+			ReactiveOrderService reactive = reactiveOrderService.getIfAvailable();
+
+			OrderQueue.Placement placement;
+			if (sync != null) {
+				placement = sync::buy;
+			} else if (reactive != null) {
+				placement = (customer, book, key) -> reactive.buy(customer, book, key).block();
+			} else {
+				throw new IllegalStateException(String.format("Profile %s requires an order service. Use along with %s.",
+						AppProfiles.ASYNC_ORDERS, Arrays.asList(AppProfiles.SYNC_TRANSACTION,
+								AppProfiles.NATIVE_SYNC_TRANSACTION, AppProfiles.REACTIVE_TRANSACTION)));
+			}
+
+			return new OrderQueue(mongoOps, placement, workers, batchSize, Duration.ofMillis(pollInterval),
+					Duration.ofMillis(lease), maxAttempts);
+		}
+
+		@Bean
+		OrderQueueHandler orderQueueHandler(OrderQueue orderQueue) {
+			return new OrderQueueHandler(orderQueue);
+		}
+
+		/**
+		 * {@literal GET /order/{id}} answered with the current state of the order accepted.
+		 *
+		 * @param handler
+		 * @param orderQueue
+		 * @return
+		 */
+		@Bean
+		RouterFunction<ServerResponse> orderQueueRouterFunction(OrderQueueHandler handler, OrderQueue orderQueue) {
+
+			return RouterFunctions.route(GET("/order/{id}"), handler::status) //
+					.andRoute(GET("/metrics/order-queue"), request -> ServerResponse.ok().syncBody(orderQueue.snapshot()));
 		}
 	}
 
@@ -175,5 +724,32 @@ public class FantasyBookstoreApplication {
 	@EnableRetry
 	class RetryableTransactionConfiguration {
 
+		@Bean
+		TransactionRetryPolicy transactionRetryPolicy(
+				@Value("${bookstore.retry.initial-backoff-ms:10}") long initialBackoff,
+				@Value("${bookstore.retry.max-backoff-ms:500}") long maxBackoff,
+				@Value("${bookstore.retry.deadline-ms:3000}") long deadline,
+				@Value("${bookstore.retry.max-attempts:10}") int maxAttempts) {
+
+			return new TransactionRetryPolicy(Duration.ofMillis(initialBackoff), Duration.ofMillis(maxBackoff),
+					Duration.ofMillis(deadline), maxAttempts);
+		}
+
+		/**
+		 * Referenced by the {@link Retryable} annotations of {@link com.example.bookstore.sync.OrderService}.
+		 *
+		 * @param retryPolicy
+		 * @return
+		 */
+		@Bean
+		RetryOperationsInterceptor transactionRetryInterceptor(TransactionRetryPolicy retryPolicy) {
+			return RetryInterceptorBuilder.stateless().retryOperations(retryPolicy.retryTemplate()).build();
+		}
+
+		@Bean
+		RouterFunction<ServerResponse> retryMetricsRouterFunction(TransactionRetryPolicy retryPolicy) {
+			return RouterFunctions.route(GET("/metrics/retries"),
+					request -> ServerResponse.ok().syncBody(retryPolicy.snapshot()));
+		}
 	}
 }
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.bookstore;
+
+import static org.springframework.data.mongodb.core.query.Criteria.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Sort.Direction;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.IndexDefinition;
+import org.springframework.data.mongodb.core.index.PartialIndexFilter;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.http.HttpStatus;
+import org.springframework.lang.Nullable;
+import org.springframework.web.server.ResponseStatusException;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoServerException;
+import com.mongodb.MongoWriteException;
+
+/**
+ * {@literal Idempotency-Key}s make placing an {@link Order} safe to retry. The key is stored along with the
+ * {@link Order}, within the very same transaction, and the unique {@link #INDEX} rejects a second {@link Order} with
+ * the same key of the same customer. So a retry of an {@link Order} that has already been placed, eg. after a timeout
+ * or a commit with an unknown outcome, fails with a duplicate key error and is answered with the {@link Order} already
+ * placed instead.
+ * <p>
+ * The {@link Order orders} placed most recently are kept in a bounded LRU cache, so that duplicate submissions do not
+ * have to go to the database at all. Failed orders do not record their key, so they can simply be tried again.
+ *
+ * @author Christoph Strobl
+ */
+public class IdempotencyKeys {
+
+	/**
+	 * Unique index on the key per customer. {@link Order Orders} placed without a key are not part of it.
+	 */
+	public static final IndexDefinition INDEX = new Index().on("by", Direction.ASC).on("idempotency_key", Direction.ASC)
+			.unique().partial(PartialIndexFilter.of(where("idempotency_key").exists(true))).named("by_idempotency_key");
+
+	public static final String HEADER = "Idempotency-Key";
+	public static final String REPLAYED_HEADER = "Idempotent-Replayed";
+	public static final int MAX_LENGTH = 255;
+
+	private final Map<String, Order> recent;
+
+	/**
+	 * @param capacity number of recently placed {@link Order orders} to keep in memory.
+	 */
+	public IdempotencyKeys(int capacity) {
+
+		this.recent = Collections.synchronizedMap(new LinkedHashMap<String, Order>(16, 0.75f, true) {
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Order> eldest) {
+				return size() > capacity;
+			}
+		});
+	}
+
+	/**
+	 * @param key
+	 * @throws IllegalArgumentException if the key is blank or longer than {@link #MAX_LENGTH}.
+	 */
+	public static void validate(String key) {
+
+		if (key.trim().isEmpty() || key.length() > MAX_LENGTH) {
+			throw new IllegalArgumentException(
+					String.format("%s must not be blank nor longer than %s characters.", HEADER, MAX_LENGTH));
+		}
+	}
+
+	/**
+	 * @param customer
+	 * @param key
+	 * @return the error placing a second {@link Order} with the same key fails with, so that it is answered with the
+	 *         {@link Order} already placed.
+	 */
+	public static DuplicateKeyException alreadyPlaced(Customer customer, String key) {
+		return new DuplicateKeyException(
+				String.format("An order with %s %s has already been placed by %s.", HEADER, key, customer.getEmail()));
+	}
+
+	/**
+	 * @return the error answering with {@literal 422 Unprocessable Entity} as the key has been used for another
+	 *         {@link Order}.
+	 */
+	public static ResponseStatusException usedForAnotherOrder() {
+		return new ResponseStatusException(HttpStatus.UNPROCESSABLE_ENTITY,
+				String.format("%s has already been used for another order.", HEADER));
+	}
+
+	/**
+	 * @param customer
+	 * @param key
+	 * @return the {@link Order} recently placed with the given key, if still in memory.
+	 */
+	public Optional<Order> cached(Customer customer, String key) {
+		return Optional.ofNullable(recent.get(cacheKey(customer.getEmail(), key)));
+	}
+
+	/**
+	 * Remember the given {@link Order} if it has been placed with a key.
+	 *
+	 * @param order
+	 * @return the given {@link Order}.
+	 */
+	public Order remember(Order order) {
+
+		if (order.getIdempotencyKey() != null) {
+			recent.put(cacheKey(order.getCustomer(), order.getIdempotencyKey()), order);
+		}
+		return order;
+	}
+
+	/**
+	 * @param customer
+	 * @param key
+	 * @return {@link Query} for the {@link Order} placed by the customer with the given key.
+	 */
+	public static Query query(Customer customer, String key) {
+		return new Query(where("by").is(customer.getEmail()).and("idempotency_key").is(key));
+	}
+
+	/**
+	 * @param batch
+	 * @return {@link Query} for the {@link Order orders} already placed with any of the keys within the given
+	 *         {@link OrderBatch}, {@link Optional#empty() empty} if none of the requests carries a key.
+	 */
+	public static Optional<Query> query(OrderBatch batch) {
+
+		List<Criteria> keys = new ArrayList<>();
+		batch.getRequests().forEach(it -> {
+			if (it.idempotencyKey != null) {
+				keys.add(where("by").is(it.customer.getEmail()).and("idempotency_key").is(it.idempotencyKey));
+			}
+		});
+
+		if (keys.isEmpty()) {
+			return Optional.empty();
+		}
+
+		return Optional.of(new Query(new Criteria().orOperator(keys.toArray(new Criteria[0]))));
+	}
+
+	/**
+	 * @param order placed with the same key.
+	 * @param bookIds ids of the {@link Book books} requested.
+	 * @return {@literal true} if the given {@link Order} is the one requested once more, {@literal false} if the key has
+	 *         been used for another one.
+	 */
+	public static boolean isFor(Order order, List<String> bookIds) {
+
+		List<String> ordered = new ArrayList<>();
+		if (order.getBooks() != null) {
+			order.getBooks().forEach(it -> ordered.add(it.getId()));
+		}
+		return ordered.equals(bookIds);
+	}
+
+	/**
+	 * @param error
+	 * @return {@literal true} if the given error, or one of its causes, is a duplicate key error.
+	 */
+	public static boolean isDuplicateKey(@Nullable Throwable error) {
+
+		for (Throwable current = error; current != null; current = current.getCause()) {
+
+			if (current instanceof DuplicateKeyException) {
+				return true;
+			}
+			if (current instanceof MongoWriteException
+					&& ((MongoWriteException) current).getError().getCategory() == ErrorCategory.DUPLICATE_KEY) {
+				return true;
+			}
+			if (current instanceof MongoBulkWriteException && ((MongoBulkWriteException) current).getWriteErrors().stream()
+					.anyMatch(it -> ErrorCategory.fromErrorCode(it.getCode()) == ErrorCategory.DUPLICATE_KEY)) {
+				return true;
+			}
+			if (current instanceof MongoServerException
+					&& ErrorCategory.fromErrorCode(((MongoServerException) current).getCode()) == ErrorCategory.DUPLICATE_KEY) {
+				return true;
+			}
+			if (current.getCause() == current) {
+				break;
+			}
+		}
+		return false;
+	}
+
+	private static String cacheKey(String customer, String key) {
+		return customer + '\u0000' + key;
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.bookstore;
+
+import static org.springframework.data.mongodb.core.query.Criteria.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import org.bson.Document;
+import org.springframework.data.mongodb.core.query.Query;
+
+import com.mongodb.DBRef;
+
+/**
+ * Resolves the {@link DBRef references} to {@link Book books} held by {@link Order orders} written before the
+ * {@link Book books} got embedded as {@link BookSnapshot snapshots}. Instead of fetching each reference on its own, the
+ * {@link Book books} referenced by an entire page of {@link Order orders} are loaded with a single {@literal $in}
+ * {@link #query(Collection) query} and {@link #embed(List, Collection) embedded} into the raw {@link Order orders}
+ * before those are mapped.
+ *
+ * @author Christoph Strobl
+ */
+public class LegacyBookReferences {
+
+	private LegacyBookReferences() {}
+
+	/**
+	 * Create the {@link Query} loading the {@link BookSnapshot snapshot} fields of all {@link Book books} referenced by
+	 * the given raw {@link Order orders}.
+	 *
+	 * @param orders
+	 * @return {@link Optional#empty()} if none of the {@link Order orders} holds references.
+	 */
+	public static Optional<Query> query(Collection<Document> orders) {
+
+		Set<Object> ids = new LinkedHashSet<>();
+		orders.forEach(order -> references(order).forEach(it -> ids.add(it.getId())));
+
+		if (ids.isEmpty()) {
+			return Optional.empty();
+		}
+
+		Query query = new Query(where("_id").in(ids));
+		query.fields().include("_id").include("title").include("author");
+
+		return Optional.of(query);
+	}
+
+	/**
+	 * Replace the references held by the given raw {@link Order orders} with the given {@link Book books}. References
+	 * to {@link Book books} not present anymore are replaced with just their id.
+	 *
+	 * @param orders
+	 * @param books the result of the {@link #query(Collection)}.
+	 * @return the given {@link Order orders}.
+	 */
+	public static List<Document> embed(List<Document> orders, Collection<Document> books) {
+
+		Map<Object, Document> booksById = new LinkedHashMap<>();
+		books.forEach(it -> booksById.put(it.get("_id"), it));
+
+		for (Document order : orders) {
+
+			Object value = order.get("books");
+			if (!(value instanceof List)) {
+				continue;
+			}
+
+			List<Object> embedded = new ArrayList<>();
+			for (Object book : (List<?>) value) {
+
+				if (book instanceof DBRef) {
+
+					Object id = ((DBRef) book).getId();
+					embedded.add(booksById.getOrDefault(id, new Document("_id", id)));
+				} else {
+					embedded.add(book);
+				}
+			}
+			order.put("books", embedded);
+		}
+
+		return orders;
+	}
+
+	/**
+	 * Aggregation expression evaluating to the id of the {@link Book} at the given path, no matter if it holds a
+	 * {@link BookSnapshot} or a {@link DBRef}.
+	 *
+	 * @param path eg. {@literal $books} after unwinding the {@link Order#getBooks() books}.
+	 * @return
+	 */
+	public static Document bookId(String path) {
+
+		// a DBRef is stored as { $ref : ..., $id : ... } and $id cannot be addressed by a field path
+		return new Document("$ifNull", Arrays.asList(path + "._id", //
+				new Document("$arrayElemAt", Arrays.asList(new Document("$map", //
+						new Document("input", new Document("$objectToArray", path)).append("in", "$$this.v")), 1))));
+	}
+
+	private static List<DBRef> references(Document order) {
+
+		List<DBRef> references = new ArrayList<>();
+
+		Object value = order.get("books");
+		if (value instanceof List) {
+			((List<?>) value).forEach(it -> {
+				if (it instanceof DBRef) {
+					references.add((DBRef) it);
+				}
+			});
+		}
+
+		return references;
+	}
+}
@@ -16,23 +16,29 @@
 package com.example.bookstore;
 
 import lombok.Value;
+import lombok.experimental.Wither;
 
 import java.util.Date;
 import java.util.List;
+import java.util.stream.Collectors;
 
-import org.springframework.data.mongodb.core.mapping.DBRef;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.PersistenceConstructor;
 import org.springframework.data.mongodb.core.mapping.Field;
 import org.springframework.lang.Nullable;
 
 /**
- * An order as simple as it can be.
+ * An order as simple as it can be. The {@link Book books} are embedded as {@link BookSnapshot snapshots}, so that
+ * reading {@link Order orders} does not require to look up each of them. {@link Order Orders} still holding
+ * {@link com.mongodb.DBRef references} instead need to be read via {@link LegacyBookReferences}.
  *
  * <pre>
  * <code>
  * {
+ *     "_id" : ObjectId("5b83ce7f1c9d440000a8e3b1"),
  *     "by" : "cstrobl@pivotal.io",
  *     "date" : ISODate("2018-08-27T10:11:59.853Z"),
- *     "books" : [ { "$ref" : "books", "$id" : "f430cb49" } ]
+ *     "books" : [ { "_id" : "f430cb49", "title" : "The Warded Man", "author" : [ "Peter V. Brett" ] } ]
  * }
  *
  * </code>
@@ -45,21 +51,40 @@ import org.springframework.lang.Nullable;
 @Value
 public class Order {
 
+	@Nullable //
+	@Id @Wither String id;
+
 	@Field("by") //
 	String customer;
 	Date date;
 
+	@Nullable List<BookSnapshot> books;
+
+	/** The {@link IdempotencyKeys key} the {@link Order} was placed with, if any. Unique per customer. */
 	@Nullable //
-	@DBRef List<Book> books;
+	@Wither @Field("idempotency_key") String idempotencyKey;
 
 	public Order(String customer, Date date) {
 		this(customer, date, null);
 	}
 
 	public Order(String customer, Date date, @Nullable List<Book> books) {
+		this(null, customer, date,
+				books != null ? books.stream().map(BookSnapshot::of).collect(Collectors.toList()) : null);
+	}
+
+	public Order(@Nullable String id, String customer, Date date, @Nullable List<BookSnapshot> books) {
+		this(id, customer, date, books, null);
+	}
+
+	@PersistenceConstructor
+	public Order(@Nullable String id, String customer, Date date, @Nullable List<BookSnapshot> books,
+			@Nullable String idempotencyKey) {
 
+		this.id = id;
 		this.customer = customer;
 		this.date = date;
 		this.books = books;
+		this.idempotencyKey = idempotencyKey;
 	}
 }
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.bookstore;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import org.springframework.lang.Nullable;
+
+/**
+ * Concurrent orders for single {@link Book books} collected to be placed within one transaction. Stock is
+ * {@link #allocate(Map) allocated} in order of arrival, so that the first ones get served as long as there is stock
+ * left while the remaining ones fail with a {@link BookSoldOutException}. Requests repeating the
+ * {@link IdempotencyKeys idempotency key} of an earlier one of the same customer fail just like a second
+ * {@link Order} with that key would, {@link IdempotencyKeys#alreadyPlaced(Customer, String) as already placed} for the
+ * same {@link Book} once the earlier one is, or {@link IdempotencyKeys#usedForAnotherOrder() as used for another
+ * order} otherwise.
+ *
+ * @author Christoph Strobl
+ */
+public class OrderBatch {
+
+	private final List<Request> requests;
+
+	public OrderBatch(List<Request> requests) {
+		this.requests = requests;
+	}
+
+	/**
+	 * Create a new {@link Request} to be added to a batch.
+	 *
+	 * @param customer
+	 * @param book
+	 * @return
+	 */
+	public static Request request(Customer customer, Book book) {
+		return request(customer, book, null);
+	}
+
+	/**
+	 * Create a new {@link Request} placed with an {@link IdempotencyKeys idempotency key} to be added to a batch.
+	 *
+	 * @param customer
+	 * @param book
+	 * @param idempotencyKey can be {@literal null}.
+	 * @return
+	 */
+	public static Request request(Customer customer, Book book, @Nullable String idempotencyKey) {
+		return new Request(customer, book, idempotencyKey);
+	}
+
+	/**
+	 * @return the ids of all requested {@link Book books}.
+	 */
+	public Set<String> getBookIds() {
+
+		Set<String> ids = new LinkedHashSet<>();
+		requests.forEach(it -> ids.add(it.book.getId()));
+		return ids;
+	}
+
+	/**
+	 * Fail the requests whose {@link IdempotencyKeys idempotency key} has already been used and remove them from the
+	 * batch. Those for the very {@link Book} of the existing {@link Order} get to look it up and replay it, all others
+	 * are rejected.
+	 *
+	 * @param placed {@link Order orders} found for the {@link IdempotencyKeys#query(OrderBatch) keys} of the batch.
+	 */
+	public void replay(List<Order> placed) {
+
+		if (placed.isEmpty()) {
+			return;
+		}
+
+		requests.removeIf(request -> {
+
+			for (Order order : placed) {
+				if (request.idempotencyKey != null && request.idempotencyKey.equals(order.getIdempotencyKey())
+						&& request.customer.getEmail().equals(order.getCustomer())) {
+
+					request.result.completeExceptionally(request.isFor(order)
+							? IdempotencyKeys.alreadyPlaced(request.customer, request.idempotencyKey)
+							: IdempotencyKeys.usedForAnotherOrder());
+					return true;
+				}
+			}
+			return false;
+		});
+	}
+
+	/**
+	 * Serve as many requests as possible from the given stock. Requests repeating the idempotency key of an earlier
+	 * request of the same customer do not take any stock but wait for the outcome of that one. Requests whose caller
+	 * gave up already are skipped.
+	 *
+	 * @param stock available copies by {@link Book#getId() book id}.
+	 * @return the number of copies to take by {@link Book#getId() book id}.
+	 */
+	public Map<String, Integer> allocate(Map<String, Integer> stock) {
+
+		Map<String, Integer> remaining = new LinkedHashMap<>(stock);
+		Map<String, Integer> taken = new LinkedHashMap<>();
+		Map<List<String>, Request> keys = new HashMap<>();
+		Date date = new Date();
+
+		for (Request request : requests) {
+
+			if (request.result.isDone()) {
+				request.order = null;
+				continue;
+			}
+
+			if (request.idempotencyKey != null) {
+
+				List<String> key = Arrays.asList(request.customer.getEmail(), request.idempotencyKey);
+				request.repeats = keys.putIfAbsent(key, request);
+
+				if (request.repeats != null) {
+					request.order = null;
+					continue;
+				}
+			}
+
+			String id = request.book.getId();
+			int available = remaining.getOrDefault(id, 0);
+
+			if (available > 0) {
+
+				remaining.put(id, available - 1);
+				taken.merge(id, 1, Integer::sum);
+				request.order = new Order(request.customer.getEmail(), date, Collections.singletonList(request.book))
+						.withIdempotencyKey(request.idempotencyKey);
+			} else {
+				request.order = null;
+			}
+		}
+
+		return taken;
+	}
+
+	/**
+	 * @return the {@link Order orders} of all requests served by the last {@link #allocate(Map) allocation}.
+	 */
+	public List<Order> getOrders() {
+
+		List<Order> orders = new ArrayList<>();
+		requests.forEach(it -> {
+			if (it.order != null) {
+				orders.add(it.order);
+			}
+		});
+		return orders;
+	}
+
+	/**
+	 * Hand out the {@link Order orders} once they have been written. All requests not served fail with a
+	 * {@link BookSoldOutException}. Repeated ones fail just as the request they repeat, or as
+	 * {@link IdempotencyKeys#alreadyPlaced(Customer, String) already placed} if that one succeeded, unless they are for
+	 * another {@link Book} and thus fail right away.
+	 *
+	 * @param orders the written {@link #getOrders() orders} in the very same sequence.
+	 */
+	public void complete(List<Order> orders) {
+
+		Iterator<Order> written = orders.iterator();
+		requests.forEach(it -> {
+
+			if (it.repeats != null && !it.book.getId().equals(it.repeats.book.getId())) {
+				it.result.completeExceptionally(IdempotencyKeys.usedForAnotherOrder());
+			} else if (it.repeats != null) {
+				it.repeats.result.whenComplete((order, error) -> it.result.completeExceptionally(
+						error != null ? error : IdempotencyKeys.alreadyPlaced(it.customer, it.idempotencyKey)));
+			} else if (it.order != null && written.hasNext()) {
+				it.result.complete(written.next());
+			} else {
+				it.result.completeExceptionally(new BookSoldOutException(it.book));
+			}
+		});
+	}
+
+	List<Request> getRequests() {
+		return requests;
+	}
+
+	/**
+	 * Fail all requests with the given error.
+	 *
+	 * @param error
+	 */
+	public void fail(Throwable error) {
+		requests.forEach(it -> it.result.completeExceptionally(error));
+	}
+
+	/**
+	 * A single order waiting for its batch to be placed.
+	 */
+	@RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+	public static class Request {
+
+		final Customer customer;
+		final Book book;
+		final @Nullable String idempotencyKey;
+
+		@Getter final CompletableFuture<Order> result = new CompletableFuture<>();
+
+		@Nullable Order order;
+
+		/** The earlier request of the batch with the same customer and idempotency key, if any. */
+		@Nullable Request repeats;
+
+		boolean isFor(Order order) {
+			return IdempotencyKeys.isFor(order, Collections.singletonList(book.getId()));
+		}
+	}
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.bookstore;
+
+import static org.springframework.data.mongodb.core.query.Criteria.*;
+
+import lombok.Value;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Date;
+import java.util.List;
+
+import org.bson.types.ObjectId;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.domain.Sort.Direction;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.IndexDefinition;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.lang.Nullable;
+import org.springframework.util.StringUtils;
+
+/**
+ * One page of the {@link Order orders} placed by a {@link Customer}, most recent ones first. Pages are addressed by the
+ * {@link #getNext() cursor} pointing to the last {@link Order} of the previous page instead of an offset, so that the
+ * database can seek right to the first {@link Order} of any page using the {@link #INDEX} instead of skipping all the
+ * ones before.
+ *
+ * <pre>
+ * <code>
+ * {
+ *     "orders" : [ ... ],
+ *     "next" : "MTUzNTM2NDcxOTg1Mzo1YjgzY2U3ZjFjOWQ0NDAwMDBhOGUzYjE"
+ * }
+ * </code>
+ * </pre>
+ *
+ * @author Christoph Strobl
+ */
+@Value
+public class OrderHistory {
+
+	/**
+	 * Index supporting the history of a customer.
+	 */
+	public static final IndexDefinition INDEX = new Index().on("by", Direction.ASC).on("date", Direction.DESC)
+			.on("_id", Direction.DESC).named("by_date");
+
+	public static final int DEFAULT_LIMIT = 20;
+	public static final int MAX_LIMIT = 100;
+
+	List<Order> orders;
+
+	/** Cursor to obtain the next page. {@literal null} if there is none. */
+	@Nullable String next;
+
+	/**
+	 * Create the {@link Query} to obtain one page of the history of the given {@link Customer}. The {@link Query} fetches
+	 * one {@link Order} more than requested to find out if there is another page.
+	 *
+	 * @param customer
+	 * @param cursor {@link #getNext()} of the previous page. {@literal null} for the first one.
+	 * @param limit
+	 * @return
+	 * @throws IllegalArgumentException for malformed cursors.
+	 */
+	public static Query query(Customer customer, @Nullable String cursor, int limit) {
+
+		Criteria criteria = where("by").is(customer.getEmail());
+
+		if (StringUtils.hasText(cursor)) {
+
+			String[] position = decode(cursor);
+			Date date = new Date(Long.parseLong(position[0]));
+			ObjectId id = new ObjectId(position[1]);
+
+			criteria = criteria.orOperator(where("date").lt(date), where("date").is(date).and("_id").lt(id));
+		}
+
+		return new Query(criteria) //
+				.with(Sort.by(Direction.DESC, "date", "_id")) //
+				.limit(limit + 1);
+	}
+
+	/**
+	 * Create the page from the result of the {@link #query(Customer, String, int)}.
+	 *
+	 * @param orders
+	 * @param limit
+	 * @return
+	 */
+	public static OrderHistory of(List<Order> orders, int limit) {
+
+		if (orders.size() <= limit) {
+			return new OrderHistory(orders, null);
+		}
+
+		Order last = orders.get(limit - 1);
+		return new OrderHistory(orders.subList(0, limit), encode(last));
+	}
+
+	/**
+	 * @param limit the requested limit, if any.
+	 * @return the given limit within {@literal 1} and {@link #MAX_LIMIT}.
+	 * @throws IllegalArgumentException for non numeric limits.
+	 */
+	public static int limit(@Nullable String limit) {
+
+		if (!StringUtils.hasText(limit)) {
+			return DEFAULT_LIMIT;
+		}
+
+		try {
+			return Math.max(1, Math.min(MAX_LIMIT, Integer.parseInt(limit.trim())));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(String.format("Invalid limit '%s'. Use 1 to %s.", limit, MAX_LIMIT), e);
+		}
+	}
+
+	private static String encode(Order order) {
+
+		String position = order.getDate().getTime() + ":" + order.getId();
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(position.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String[] decode(String cursor) {
+
+		try {
+
+			String[] position = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split(":", 2);
+
+			if (position.length == 2 && ObjectId.isValid(position[1])) {
+
+				Long.parseLong(position[0]);
+				return position;
+			}
+		} catch (IllegalArgumentException e) {
+			// not Base64 or no date, just like any other malformed cursor
+		}
+
+		throw new IllegalArgumentException(String.format("Invalid cursor %s", cursor));
+	}
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.bookstore.admission;
+
+import reactor.core.publisher.Mono;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseCookie;
+import org.springframework.lang.Nullable;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.reactive.function.server.HandlerFilterFunction;
+import org.springframework.web.reactive.function.server.HandlerFunction;
+import org.springframework.web.reactive.function.server.ServerRequest;
+import org.springframework.web.reactive.function.server.ServerResponse;
+import org.springframework.web.server.ServerWebExchange;
+
+import com.example.bookstore.Customer;
+
+/**
+ * {@link HandlerFilterFunction} admitting requests before they reach MongoDB:
+ * <ul>
+ * <li>at most {@code customer-rate} requests per second per {@link Customer}, anonymous ones told apart by their
+ * address, answered with {@literal 429 Too Many Requests} otherwise.</li>
+ * <li>at most {@code book-rate} orders per second per {@link com.example.bookstore.Book}, so that a single hot book
+ * does not end up in a write conflict storm, answered with {@literal 429 Too Many Requests} otherwise.</li>
+ * <li>at most {@code max-concurrent} requests in flight, answered with {@literal 503 Service Unavailable} otherwise,
+ * instead of queueing up without limit.</li>
+ * </ul>
+ * Rejections carry a {@literal Retry-After} header. A rate of {@literal 0} disables the respective limit, which is the
+ * default. A request stays in flight until its handler has produced the response or the response has been written,
+ * whatever happens first. Its slot is given back exactly once, no matter whether the request completes, fails or is
+ * cancelled.
+ *
+ * @author Christoph Strobl
+ */
+public class AdmissionControl implements HandlerFilterFunction<ServerResponse, ServerResponse> {
+
+	private final @Nullable RateLimiter customers;
+	private final @Nullable RateLimiter books;
+	private final int maxConcurrent;
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final LongAdder admitted = new LongAdder();
+	private final LongAdder rejectedCustomer = new LongAdder();
+	private final LongAdder rejectedBook = new LongAdder();
+	private final LongAdder rejectedConcurrency = new LongAdder();
+
+	/**
+	 * @param customerRate requests per second per {@link Customer}. {@literal 0} for no limit.
+	 * @param customerBurst
+	 * @param bookRate orders per second per {@link com.example.bookstore.Book}. {@literal 0} for no limit.
+	 * @param bookBurst
+	 * @param maxConcurrent requests in flight. {@literal 0} for no limit.
+	 */
+	public AdmissionControl(double customerRate, int customerBurst, double bookRate, int bookBurst, int maxConcurrent) {
+
+		this.customers = customerRate > 0 ? new RateLimiter(customerRate, customerBurst) : null;
+		this.books = bookRate > 0 ? new RateLimiter(bookRate, bookBurst) : null;
+		this.maxConcurrent = maxConcurrent > 0 ? maxConcurrent : Integer.MAX_VALUE;
+	}
+
+	@Override
+	public Mono<ServerResponse> filter(ServerRequest request, HandlerFunction<ServerResponse> next) {
+
+		if (customers != null) {
+
+			long wait = customers.tryAcquire(customerOf(request));
+			if (wait > 0) {
+
+				rejectedCustomer.increment();
+				return reject(HttpStatus.TOO_MANY_REQUESTS, wait);
+			}
+		}
+
+		String book = request.pathVariables().get("book");
+		if (books != null && book != null && request.method() == HttpMethod.POST) {
+
+			long wait = books.tryAcquire(book);
+			if (wait > 0) {
+
+				rejectedBook.increment();
+				return reject(HttpStatus.TOO_MANY_REQUESTS, wait);
+			}
+		}
+
+		if (inFlight.incrementAndGet() > maxConcurrent) {
+
+			inFlight.decrementAndGet();
+			rejectedConcurrency.increment();
+			return reject(HttpStatus.SERVICE_UNAVAILABLE, TimeUnit.SECONDS.toNanos(1));
+		}
+
+		admitted.increment();
+
+		Permit permit = new Permit();
+		return Mono.defer(() -> next.handle(request)) //
+				.<ServerResponse> map(response -> new ReleasingResponse(response, permit)) //
+				.doFinally(signal -> permit.release());
+	}
+
+	/**
+	 * Drop the rate limit state of customers and books whose buckets have fully refilled.
+	 */
+	@Scheduled(fixedDelayString = "${bookstore.admission.sweep-interval-ms:1000}")
+	public void sweep() {
+
+		if (customers != null) {
+			customers.sweep();
+		}
+		if (books != null) {
+			books.sweep();
+		}
+	}
+
+	/**
+	 * @return requests in flight, admitted and rejected ones.
+	 */
+	public Map<String, Object> snapshot() {
+
+		Map<String, Object> rejected = new TreeMap<>();
+		rejected.put("customer", rejectedCustomer.sum());
+		rejected.put("book", rejectedBook.sum());
+		rejected.put("concurrency", rejectedConcurrency.sum());
+
+		Map<String, Object> snapshot = new TreeMap<>();
+		snapshot.put("inFlight", inFlight.get());
+		snapshot.put("admitted", admitted.sum());
+		snapshot.put("rejected", rejected);
+		snapshot.put("trackedCustomers", customers != null ? customers.size() : 0);
+		snapshot.put("trackedBooks", books != null ? books.size() : 0);
+		return snapshot;
+	}
+
+	/**
+	 * Requests not naming a {@link Customer} are accounted to the {@link Customer#guest() guest} at their address.
+	 */
+	private static String customerOf(ServerRequest request) {
+
+		String customer = request.queryParam("customer").orElse(request.pathVariables().get("customer"));
+		if (customer != null) {
+			return Customer.of(customer).getEmail();
+		}
+
+		return Customer.guest().getEmail() + request.remoteAddress() //
+				.map(it -> "@" + it.getHostString()) //
+				.orElse("");
+	}
+
+	private static Mono<ServerResponse> reject(HttpStatus status, long waitNanos) {
+
+		long seconds = Math.max(1, (waitNanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+		return ServerResponse.status(status).header(HttpHeaders.RETRY_AFTER, Long.toString(seconds)).build();
+	}
+
+	/**
+	 * A single slot of {@code max-concurrent}, released exactly once no matter how often {@link #release()} is called.
+	 */
+	class Permit {
+
+		final AtomicBoolean released = new AtomicBoolean();
+
+		void release() {
+
+			if (released.compareAndSet(false, true)) {
+				inFlight.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * {@link ServerResponse} releasing its {@link Permit} once written.
+	 */
+	static class ReleasingResponse implements ServerResponse {
+
+		private final ServerResponse delegate;
+		private final Permit permit;
+
+		ReleasingResponse(ServerResponse delegate, Permit permit) {
+
+			this.delegate = delegate;
+			this.permit = permit;
+		}
+
+		@Override
+		public HttpStatus statusCode() {
+			return delegate.statusCode();
+		}
+
+		@Override
+		public HttpHeaders headers() {
+			return delegate.headers();
+		}
+
+		@Override
+		public MultiValueMap<String, ResponseCookie> cookies() {
+			return delegate.cookies();
+		}
+
+		@Override
+		public Mono<Void> writeTo(ServerWebExchange exchange, Context context) {
+			return delegate.writeTo(exchange, context).doFinally(signal -> permit.release());
+		}
+	}
+}
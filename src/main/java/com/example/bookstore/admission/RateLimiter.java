@@ -0,0 +1,112 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.bookstore.admission;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import org.springframework.util.Assert;
+
+/**
+ * Token bucket per key, allowing {@code rate} permits per second on average and bursts of up to {@code burst} permits.
+ * <p>
+ * Instead of a token count and a refill timestamp, each bucket holds just the <em>theoretical arrival time</em> of the
+ * next permit (GCRA), which fits into a single {@link AtomicLong}. Acquiring a permit is a compare and set on that one
+ * value, so concurrent requests for the same key never block each other, and the {@link ConcurrentHashMap} holding the
+ * buckets is striped anyway. Buckets that have fully refilled carry no state worth keeping and are dropped by
+ * {@link #sweep()}, which is left to a background task so that requests never pay for walking all buckets.
+ *
+ * @author Christoph Strobl
+ */
+class RateLimiter {
+
+	private final Map<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+	private final long interval;
+	private final long tolerance;
+	private final LongSupplier clock;
+
+	/**
+	 * @param rate permits per second.
+	 * @param burst permits that can be acquired at once.
+	 */
+	RateLimiter(double rate, int burst) {
+		this(rate, burst, System::nanoTime);
+	}
+
+	/**
+	 * @param rate permits per second.
+	 * @param burst permits that can be acquired at once.
+	 * @param clock nanosecond time source.
+	 */
+	RateLimiter(double rate, int burst, LongSupplier clock) {
+
+		Assert.isTrue(rate > 0, "Rate must be greater than zero!");
+		Assert.isTrue(burst > 0, "Burst must be greater than zero!");
+
+		this.interval = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / rate));
+		this.tolerance = interval * burst;
+		this.clock = clock;
+	}
+
+	/**
+	 * Acquire a permit for the given key.
+	 *
+	 * @param key
+	 * @return {@literal 0} if the permit has been granted, otherwise the nanoseconds to wait until it would be.
+	 */
+	long tryAcquire(String key) {
+
+		long now = clock.getAsLong();
+
+		AtomicLong bucket = buckets.get(key);
+		if (bucket == null) {
+			bucket = buckets.computeIfAbsent(key, it -> new AtomicLong(now));
+		}
+
+		while (true) {
+
+			long arrival = bucket.get();
+			long next = Math.max(arrival, now) + interval;
+			long wait = next - now - tolerance;
+
+			if (wait > 0) {
+				return wait;
+			}
+			if (bucket.compareAndSet(arrival, next)) {
+				return 0;
+			}
+		}
+	}
+
+	/**
+	 * @return number of keys currently tracked.
+	 */
+	int size() {
+		return buckets.size();
+	}
+
+	/**
+	 * Drop the buckets that have fully refilled, as acquiring a permit for their key starts over from scratch anyway.
+	 */
+	void sweep() {
+
+		long now = clock.getAsLong();
+		buckets.values().removeIf(it -> it.get() - now <= 0);
+	}
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.bookstore.catalog;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.mongodb.core.ChangeStreamEvent;
+import org.springframework.stereotype.Component;
+
+import com.example.bookstore.AppProfiles;
+import com.example.bookstore.Book;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+
+/**
+ * Bounded, read-through in-memory cache for the {@link Book} catalog. Entries are kept up to date by
+ * {@link #onChange(ChangeStreamEvent) applying} the change stream of the {@literal books} collection. Entries are only
+ * served while that change stream is {@link #connected() connected}. Once it is
+ * {@link #disconnected() interrupted} the cache is cleared and all reads go to the database until it has been
+ * re-established, so that stock values never lag behind silently.
+ *
+ * @author Christoph Strobl
+ */
+@Component
+@Profile(AppProfiles.CATALOG_CACHE)
+public class BookCatalogCache implements BookChangeListener {
+
+	private final long maximumSize;
+	private final Cache<String, Book> books;
+
+	/**
+	 * Incremented whenever a {@link Book} is removed or the cache is reset, so that loads started before cannot put
+	 * back what has just been removed.
+	 */
+	private final AtomicLong generation = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/** Whether the change stream is connected and entries may be served. */
+	private volatile boolean live;
+
+	/** Whether the cache holds the entire catalog, so that {@link #findAll(Flux)} can be served from memory. */
+	private volatile boolean complete;
+
+	public BookCatalogCache(@Value("${bookstore.catalog.cache.maximum-size:10000}") long maximumSize) {
+
+		this.maximumSize = maximumSize;
+		this.books = Caffeine.newBuilder() //
+				.maximumSize(maximumSize) //
+				.executor(Runnable::run) //
+				.removalListener((String id, Book book, RemovalCause cause) -> {
+
+					if (cause.wasEvicted()) {
+						evictions.incrementAndGet();
+						complete = false;
+					}
+				}).build();
+	}
+
+	/**
+	 * Look up a single {@link Book} falling back to the given {@code source} if not present.
+	 *
+	 * @param id
+	 * @param source
+	 * @return
+	 */
+	public Mono<Book> findById(String id, Mono<Book> source) {
+
+		return Mono.defer(() -> {
+
+			Book cached = live ? books.getIfPresent(id) : null;
+			if (cached != null) {
+				return Mono.just(cached);
+			}
+
+			long generation = this.generation.get();
+			return source.doOnNext(it -> cache(it, generation));
+		});
+	}
+
+	/**
+	 * Look up all {@link Book books} falling back to the given {@code source} unless the entire catalog fits into and has
+	 * already been loaded into memory.
+	 *
+	 * @param source
+	 * @return
+	 */
+	public Flux<Book> findAll(Flux<Book> source) {
+
+		return Flux.defer(() -> {
+
+			if (live && complete) {
+				return Flux.fromIterable(new ArrayList<>(books.asMap().values()));
+			}
+
+			long generation = this.generation.get();
+			long evictions = this.evictions.get();
+			AtomicLong count = new AtomicLong();
+
+			return source.doOnNext(it -> {
+
+				cache(it, generation);
+				count.incrementAndGet();
+			}).doOnComplete(() -> {
+				complete = count.get() <= maximumSize && evictions == this.evictions.get()
+						&& generation == this.generation.get();
+			});
+		});
+	}
+
+	@Override
+	public void onChange(ChangeStreamEvent<Book> event) {
+
+		switch (event.getOperationType()) {
+
+			case INSERT:
+			case UPDATE:
+			case REPLACE:
+
+				Book book = event.getBody();
+				if (book != null) {
+					books.put(book.getId(), book);
+				} else {
+					evict(event); // deleted in the meantime
+				}
+				break;
+			case DELETE:
+				evict(event);
+				break;
+			default:
+				reset();
+		}
+	}
+
+	/**
+	 * Start serving entries as changes are now tracked.
+	 */
+	@Override
+	public void connected() {
+
+		reset();
+		live = true;
+	}
+
+	/**
+	 * Stop serving entries as changes might be missed.
+	 */
+	@Override
+	public void disconnected() {
+
+		live = false;
+		reset();
+	}
+
+	private void cache(Book book, long generation) {
+
+		if (!live) {
+			return;
+		}
+
+		// compared under the same entry lock evict holds while counting up, so a removal is never undone. An entry put
+		// by a concurrent change carries the more recent state.
+		books.asMap().compute(book.getId(), (id, current) -> {
+
+			if (current != null) {
+				return current;
+			}
+			return generation == this.generation.get() ? book : null;
+		});
+	}
+
+	private void evict(ChangeStreamEvent<Book> event) {
+
+		String id = BookChangeListener.idOf(event);
+		if (id == null) {
+			reset();
+			return;
+		}
+
+		books.asMap().compute(id, (key, current) -> {
+
+			generation.incrementAndGet();
+			return null;
+		});
+	}
+
+	private void reset() {
+
+		generation.incrementAndGet();
+		complete = false;
+		books.invalidateAll();
+	}
+}
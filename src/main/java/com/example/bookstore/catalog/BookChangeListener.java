@@ -0,0 +1,66 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.bookstore.catalog;
+
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.springframework.data.mongodb.core.ChangeStreamEvent;
+import org.springframework.lang.Nullable;
+
+import com.example.bookstore.Book;
+
+/**
+ * Component kept up to date via the change stream of the {@literal books} collection. All listeners share one single
+ * change stream.
+ *
+ * @author Christoph Strobl
+ */
+public interface BookChangeListener {
+
+	/**
+	 * The change stream has been (re-)established. Changes made from now on are delivered, even the ones made before its
+	 * cursor is actually open. Changes made before might have been missed.
+	 */
+	void connected();
+
+	/**
+	 * Apply a change event of the {@literal books} collection.
+	 *
+	 * @param event
+	 */
+	void onChange(ChangeStreamEvent<Book> event);
+
+	/**
+	 * The change stream has been interrupted. Changes might be missed until {@link #connected()} is called again.
+	 */
+	void disconnected();
+
+	/**
+	 * @param event
+	 * @return the id of the {@link Book} the given event refers to. {@literal null} if not present.
+	 */
+	@Nullable
+	static String idOf(ChangeStreamEvent<Book> event) {
+
+		BsonDocument documentKey = event.getRaw() != null ? event.getRaw().getDocumentKey() : null;
+		BsonValue id = documentKey != null ? documentKey.get("_id") : null;
+
+		if (id == null) {
+			return null;
+		}
+		return id.isString() ? id.asString().getValue() : id.toString();
+	}
+}
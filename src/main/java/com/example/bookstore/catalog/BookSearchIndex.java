@@ -0,0 +1,612 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.bookstore.catalog;
+
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.mongodb.core.ChangeStreamEvent;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.index.TextIndexDefinition.TextIndexDefinitionBuilder;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.TextCriteria;
+import org.springframework.data.mongodb.core.query.TextQuery;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.lang.Nullable;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import com.example.bookstore.AppProfiles;
+import com.example.bookstore.Book;
+
+/**
+ * In-memory inverted index over {@link Book#getTitle() title} and {@link Book#getAuthors() authors} of all
+ * {@link Book books}. Each term maps to a sorted list of primitive document numbers. All but the last term of a query
+ * have to match exactly while the last one is treated as a prefix, so that results can be shown while typing.
+ * <p>
+ * The index is (re-)loaded in the background whenever the change stream of the {@literal books} collection gets
+ * {@link #connected() connected} and kept up to date by {@link #onChange(ChangeStreamEvent) applying} its changes.
+ * Changed {@link Book books} get a new document number, the previous one is just marked as deleted until enough of
+ * those have piled up to rebuild the postings. The rebuild runs in the background and is swapped in once done, so
+ * searches are not held up by it. Until the index is ready, searches go to the {@literal $text} index.
+ *
+ * @author Christoph Strobl
+ */
+@Component
+@Profile(AppProfiles.CATALOG_SEARCH)
+public class BookSearchIndex implements BookChangeListener {
+
+	public static final int DEFAULT_LIMIT = 10;
+	public static final int MAX_LIMIT = 100;
+
+	/** Number of terms starting with the last one of a query still probed for each candidate document. */
+	private static final int MAX_PREFIX_PROBES = 8;
+
+	private final MongoOperations mongoOps;
+	private final ExecutorService loader = Executors
+			.newSingleThreadExecutor(new CustomizableThreadFactory("book-search-index-"));
+	private final ExecutorService compactor = Executors
+			.newSingleThreadExecutor(new CustomizableThreadFactory("book-search-compactor-"));
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/** Guarded by {@link #lock}. */
+	private Segment segment = new Segment();
+	private final Set<String> removedWhileLoading = new HashSet<>();
+	private @Nullable Set<String> changedWhileCompacting;
+	private boolean loading;
+	private long generation;
+
+	private volatile boolean ready;
+
+	private @Value("${bookstore.search.load-batch-size:1000}") int batchSize;
+
+	public BookSearchIndex(MongoOperations mongoOps) {
+		this.mongoOps = mongoOps;
+	}
+
+	/**
+	 * Create the {@literal $text} index used until the in-memory one is ready.
+	 */
+	@PostConstruct
+	public void init() {
+
+		mongoOps.indexOps(Book.class).ensureIndex(new TextIndexDefinitionBuilder() //
+				.onField("title") //
+				.onField("author") //
+				.named("title_author_text") //
+				.build());
+	}
+
+	/**
+	 * Search the {@link Book books} matching all terms of the given query.
+	 *
+	 * @param query
+	 * @param limit maximum number of hits.
+	 * @param useTextIndex {@literal true} to query the {@literal $text} index in MongoDB instead.
+	 * @return
+	 */
+	public Mono<List<SearchHit>> search(String query, int limit, boolean useTextIndex) {
+
+		if (useTextIndex || !ready) {
+			return Mono.fromCallable(() -> searchTextIndex(query, limit)).subscribeOn(Schedulers.elastic());
+		}
+
+		return Mono.fromSupplier(() -> searchIndex(query, limit));
+	}
+
+	/**
+	 * @param limit the requested limit, if any.
+	 * @return the given limit within {@literal 1} and {@link #MAX_LIMIT}.
+	 * @throws IllegalArgumentException for non numeric limits.
+	 */
+	public static int limit(@Nullable String limit) {
+
+		if (!StringUtils.hasText(limit)) {
+			return DEFAULT_LIMIT;
+		}
+
+		try {
+			return Math.max(1, Math.min(MAX_LIMIT, Integer.parseInt(limit.trim())));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(String.format("Invalid limit '%s'. Use 1 to %s.", limit, MAX_LIMIT), e);
+		}
+	}
+
+	/**
+	 * Look up the in-memory index. All but the last term must match exactly, the last one is a prefix.
+	 *
+	 * @param query
+	 * @param limit
+	 * @return
+	 */
+	List<SearchHit> searchIndex(String query, int limit) {
+
+		List<String> tokens = tokenize(query);
+		if (tokens.isEmpty()) {
+			return new ArrayList<>();
+		}
+
+		String prefix = tokens.get(tokens.size() - 1);
+		List<String> exact = tokens.subList(0, tokens.size() - 1);
+
+		lock.readLock().lock();
+		try {
+
+			Segment segment = this.segment;
+			Collection<Postings> completions = segment.terms
+					.subMap(prefix, true, prefix + Character.MAX_VALUE, false).values();
+
+			if (completions.isEmpty()) {
+				return new ArrayList<>();
+			}
+
+			Set<Integer> matches = new LinkedHashSet<>();
+
+			if (exact.isEmpty()) {
+
+				for (Postings postings : completions) {
+					for (int i = 0; i < postings.size && matches.size() < limit; i++) {
+						if (!segment.deleted.get(postings.values[i])) {
+							matches.add(postings.values[i]);
+						}
+					}
+					if (matches.size() == limit) {
+						break;
+					}
+				}
+			} else {
+
+				List<Postings> postings = new ArrayList<>(exact.size());
+				for (String term : exact) {
+
+					Postings candidate = segment.terms.get(term);
+					if (candidate == null) {
+						return new ArrayList<>();
+					}
+					postings.add(candidate);
+				}
+
+				postings.sort(Comparator.comparingInt(it -> it.size));
+				Postings shortest = postings.get(0);
+				if (isCheaperToProbe(shortest, completions)) {
+
+					// walk the shortest list and probe the other ones along with each completion of the prefix
+					for (int i = 0; i < shortest.size && matches.size() < limit; i++) {
+
+						int document = shortest.values[i];
+						if (!segment.deleted.get(document) && containsAll(postings, 1, document)
+								&& containsAny(completions, document)) {
+							matches.add(document);
+						}
+					}
+				} else {
+
+					// walk the completions of the prefix and probe all lists
+					for (Postings completion : completions) {
+
+						for (int i = 0; i < completion.size && matches.size() < limit; i++) {
+
+							int document = completion.values[i];
+							if (!segment.deleted.get(document) && containsAll(postings, 0, document)) {
+								matches.add(document);
+							}
+						}
+						if (matches.size() == limit) {
+							break;
+						}
+					}
+				}
+			}
+
+			return matches.stream().map(segment.documents::get).collect(Collectors.toList());
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	List<SearchHit> searchTextIndex(String query, int limit) {
+
+		Query textQuery = TextQuery.queryText(TextCriteria.forDefaultLanguage().matching(query)).sortByScore()
+				.limit(limit);
+		textQuery.fields().include("title").include("author");
+
+		return mongoOps.find(textQuery, Book.class).stream().map(SearchHit::of).collect(Collectors.toList());
+	}
+
+	/**
+	 * Reload the index in the background. Searches go to the {@literal $text} index until done.
+	 */
+	@Override
+	public void connected() {
+
+		long generation;
+
+		lock.writeLock().lock();
+		try {
+
+			segment = new Segment();
+			removedWhileLoading.clear();
+			loading = true;
+			ready = false;
+			generation = ++this.generation;
+		} finally {
+			lock.writeLock().unlock();
+		}
+
+		loader.execute(() -> load(generation));
+	}
+
+	@Override
+	public void onChange(ChangeStreamEvent<Book> event) {
+
+		switch (event.getOperationType()) {
+
+			case INSERT:
+			case UPDATE:
+			case REPLACE:
+
+				Book book = event.getBody();
+				if (book != null) {
+					write(() -> put(SearchHit.of(book)));
+				} else {
+					remove(event); // deleted in the meantime
+				}
+				break;
+			case DELETE:
+				remove(event);
+				break;
+			default:
+				connected();
+		}
+	}
+
+	@Override
+	public void disconnected() {
+		ready = false;
+	}
+
+	@PreDestroy
+	public void shutdown() {
+
+		loader.shutdownNow();
+		compactor.shutdownNow();
+	}
+
+	/**
+	 * Add the given {@link SearchHit hits} right away and consider the index ready, eg. to benchmark lookups.
+	 *
+	 * @param hits
+	 */
+	void index(Collection<SearchHit> hits) {
+
+		write(() -> hits.forEach(this::put));
+		ready = true;
+	}
+
+	/**
+	 * @param generation the load is abandoned once the index got reset again.
+	 */
+	private void load(long generation) {
+
+		Query query = new Query().cursorBatchSize(batchSize);
+		query.fields().include("title").include("author");
+
+		try (CloseableIterator<Book> books = mongoOps.stream(query, Book.class)) {
+
+			List<SearchHit> batch = new ArrayList<>(batchSize);
+			while (books.hasNext() && !Thread.currentThread().isInterrupted()) {
+
+				batch.add(SearchHit.of(books.next()));
+				if (batch.size() == batchSize || !books.hasNext()) {
+
+					// a change event applied in the meantime carries the more recent state
+					write(() -> {
+						if (generation == this.generation) {
+							batch.stream() //
+									.filter(it -> !segment.contains(it.getId())) //
+									.filter(it -> !removedWhileLoading.contains(it.getId())) //
+									.forEach(this::put);
+						}
+					});
+					batch.clear();
+				}
+			}
+		}
+
+		write(() -> {
+
+			if (generation == this.generation) {
+
+				loading = false;
+				removedWhileLoading.clear();
+				ready = true;
+			}
+		});
+	}
+
+	private void remove(ChangeStreamEvent<Book> event) {
+
+		String id = BookChangeListener.idOf(event);
+		if (id == null) {
+			connected();
+			return;
+		}
+
+		write(() -> {
+
+			segment.remove(id);
+			changed(id);
+			if (loading) {
+				removedWhileLoading.add(id);
+			}
+			compactIfRequired();
+		});
+	}
+
+	/**
+	 * Add the given {@link SearchHit} unless it is already present just as it is. Must be called holding the write
+	 * lock.
+	 */
+	private void put(SearchHit hit) {
+
+		if (segment.put(hit)) {
+			changed(hit.getId());
+			compactIfRequired();
+		}
+	}
+
+	/**
+	 * Remember changes made while a compaction is running, to apply them to the compacted {@link Segment} as well. Must
+	 * be called holding the write lock.
+	 */
+	private void changed(String id) {
+
+		if (changedWhileCompacting != null) {
+			changedWhileCompacting.add(id);
+		}
+	}
+
+	/**
+	 * Rebuild the postings in the background once more than half of the documents are deleted ones. Must be called
+	 * holding the write lock.
+	 */
+	private void compactIfRequired() {
+
+		if (changedWhileCompacting != null || !segment.isCompactionRequired()) {
+			return;
+		}
+
+		List<SearchHit> live = segment.live();
+		long generation = this.generation;
+
+		changedWhileCompacting = new HashSet<>();
+		compactor.execute(() -> compact(live, generation));
+	}
+
+	/**
+	 * Build a new {@link Segment} out of the given live documents without holding the lock, then apply the changes made
+	 * in the meantime and swap it in.
+	 *
+	 * @param generation the compaction is abandoned once the index got reset again.
+	 */
+	private void compact(List<SearchHit> live, long generation) {
+
+		Segment compacted = new Segment();
+		live.forEach(compacted::put);
+
+		write(() -> {
+
+			if (generation == this.generation && changedWhileCompacting != null) {
+
+				for (String id : changedWhileCompacting) {
+
+					SearchHit hit = segment.get(id);
+					if (hit != null) {
+						compacted.put(hit);
+					} else {
+						compacted.remove(id);
+					}
+				}
+				segment = compacted;
+			}
+			changedWhileCompacting = null;
+		});
+	}
+
+	private void write(Runnable action) {
+
+		lock.writeLock().lock();
+		try {
+			action.run();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private static boolean containsAll(List<Postings> postings, int from, int document) {
+
+		for (int i = from; i < postings.size(); i++) {
+			if (!postings.get(i).contains(document)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Tell whether walking the given list probing each of just a few completions of the prefix takes less than walking
+	 * the completions.
+	 */
+	private static boolean isCheaperToProbe(Postings shortest, Collection<Postings> completions) {
+
+		int probes = 0;
+		long completed = 0;
+
+		for (Postings completion : completions) {
+
+			if (++probes > MAX_PREFIX_PROBES) {
+				return false;
+			}
+			completed += completion.size;
+		}
+		return (long) shortest.size * probes <= completed;
+	}
+
+	private static boolean containsAny(Collection<Postings> postings, int document) {
+
+		for (Postings candidate : postings) {
+			if (candidate.contains(document)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static List<String> tokenize(SearchHit hit) {
+
+		List<String> tokens = tokenize(hit.getTitle());
+		hit.getAuthors().forEach(author -> tokens.addAll(tokenize(author)));
+		return tokens;
+	}
+
+	static List<String> tokenize(String text) {
+
+		List<String> tokens = new ArrayList<>();
+		for (String token : text.toLowerCase().split("[^\\p{L}\\p{N}]+")) {
+			if (!token.isEmpty()) {
+				tokens.add(token);
+			}
+		}
+		return tokens;
+	}
+
+	/**
+	 * Terms and documents of the index. Changed documents are added anew, marking the previous number deleted.
+	 */
+	static class Segment {
+
+		final NavigableMap<String, Postings> terms = new TreeMap<>();
+		final List<SearchHit> documents = new ArrayList<>();
+		final Map<String, Integer> documentsById = new HashMap<>();
+		final BitSet deleted = new BitSet();
+
+		/**
+		 * @return {@literal false} if the {@link SearchHit} is present just as it is already.
+		 */
+		boolean put(SearchHit hit) {
+
+			Integer previous = documentsById.get(hit.getId());
+			if (previous != null) {
+
+				if (documents.get(previous).equals(hit)) {
+					return false; // eg. just the stock changed
+				}
+				deleted.set(previous);
+			}
+
+			int document = documents.size();
+			documents.add(hit);
+			documentsById.put(hit.getId(), document);
+
+			for (String term : new LinkedHashSet<>(tokenize(hit))) {
+				terms.computeIfAbsent(term, key -> new Postings()).add(document);
+			}
+			return true;
+		}
+
+		void remove(String id) {
+
+			Integer document = documentsById.remove(id);
+			if (document != null) {
+				deleted.set(document);
+			}
+		}
+
+		boolean contains(String id) {
+			return documentsById.containsKey(id);
+		}
+
+		@Nullable
+		SearchHit get(String id) {
+
+			Integer document = documentsById.get(id);
+			return document != null ? documents.get(document) : null;
+		}
+
+		boolean isCompactionRequired() {
+
+			int deleted = this.deleted.cardinality();
+			return deleted >= 1000 && deleted >= documents.size() / 2;
+		}
+
+		List<SearchHit> live() {
+
+			List<SearchHit> live = new ArrayList<>(documentsById.size());
+			for (int i = 0; i < documents.size(); i++) {
+				if (!deleted.get(i)) {
+					live.add(documents.get(i));
+				}
+			}
+			return live;
+		}
+	}
+
+	/**
+	 * Growable, ascending list of document numbers.
+	 */
+	static class Postings {
+
+		int[] values = new int[4];
+		int size;
+
+		void add(int document) {
+
+			if (size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = document;
+		}
+
+		boolean contains(int document) {
+			return Arrays.binarySearch(values, 0, size, document) >= 0;
+		}
+	}
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.bookstore.catalog;
+
+import lombok.Value;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.example.bookstore.Book;
+
+/**
+ * A {@link Book} matching a search, reduced to what is searched.
+ *
+ * @author Christoph Strobl
+ */
+@Value
+public class SearchHit {
+
+	String id;
+	String title;
+	List<String> authors;
+
+	static SearchHit of(Book book) {
+
+		return new SearchHit(book.getId(), book.getTitle() != null ? book.getTitle() : "",
+				book.getAuthors() != null ? book.getAuthors() : Collections.emptyList());
+	}
+}
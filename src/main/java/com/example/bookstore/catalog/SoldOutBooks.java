@@ -0,0 +1,216 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.bookstore.catalog;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.mongodb.core.ChangeStreamEvent;
+import org.springframework.stereotype.Component;
+
+import com.example.bookstore.AppProfiles;
+import com.example.bookstore.Book;
+import com.example.bookstore.BookSoldOutException;
+import com.example.bookstore.sync.transaction.ShardedStock;
+
+/**
+ * In-memory set of sold out {@link Book books}, so that orders for them are rejected before opening a session, let
+ * alone a transaction. A {@link Book} enters the set once the change stream of the {@literal books} collection reports
+ * it without any stock left, and leaves it as soon as it reports stock again.
+ * <p>
+ * An order failing to take the last unit marks its {@link Book} as well, as that usually happens before the change
+ * event arrives. Such a mark is not confirmed by the change stream though, and a restock reported just before might
+ * otherwise be overridden by it. So it only lasts for {@code bookstore.sold-out.unconfirmed-ttl-ms} unless the change
+ * stream confirms it in the meantime.
+ * <p>
+ * Just like the {@link BookCatalogCache}, the set is only consulted while the change stream is
+ * {@link #connected() connected}, and cleared whenever it is interrupted or ends, so that a missed restock never keeps
+ * a {@link Book} from being sold.
+ *
+ * @author Christoph Strobl
+ */
+@Component
+@Profile(AppProfiles.SOLD_OUT)
+public class SoldOutBooks implements BookChangeListener {
+
+	private static final long CONFIRMED = Long.MAX_VALUE;
+
+	/** Id of the sold out {@link Book} along with the {@link System#nanoTime()} the mark expires at. */
+	private final Map<String, Long> soldOut = new ConcurrentHashMap<>();
+	private final long unconfirmedTtl;
+
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder marked = new LongAdder();
+
+	/** Whether the change stream is connected and the set may be consulted. */
+	private volatile boolean live;
+
+	public SoldOutBooks(@Value("${bookstore.sold-out.unconfirmed-ttl-ms:1000}") long unconfirmedTtl) {
+		this.unconfirmedTtl = TimeUnit.MILLISECONDS.toNanos(unconfirmedTtl);
+	}
+
+	/**
+	 * @param bookId
+	 * @return {@literal true} if the {@link Book} with the given id is known to be sold out.
+	 */
+	public boolean isSoldOut(String bookId) {
+
+		if (!live) {
+			return false;
+		}
+
+		Long expiresAt = soldOut.get(bookId);
+		if (expiresAt == null) {
+			return false;
+		}
+		if (expiresAt == CONFIRMED || expiresAt - System.nanoTime() > 0) {
+			return true;
+		}
+
+		soldOut.remove(bookId, expiresAt);
+		return false;
+	}
+
+	/**
+	 * Reject an order for the given {@link Book} if it is known to be sold out.
+	 *
+	 * @param book
+	 * @throws BookSoldOutException
+	 */
+	public void check(Book book) {
+
+		if (isSoldOut(book.getId())) {
+
+			rejected.increment();
+			throw new BookSoldOutException(book);
+		}
+	}
+
+	/**
+	 * Reject an order for the given {@link Book books} if at least one of them is known to be sold out.
+	 *
+	 * @param books
+	 * @throws BookSoldOutException
+	 */
+	public void check(List<Book> books) {
+
+		if (books.stream().anyMatch(it -> isSoldOut(it.getId()))) {
+
+			rejected.increment();
+			throw new BookSoldOutException(books);
+		}
+	}
+
+	/**
+	 * Mark the {@link Book} with the given id sold out after an order failed to take a unit of it.
+	 *
+	 * @param bookId
+	 */
+	public void markSoldOut(String bookId) {
+
+		if (live) {
+
+			soldOut.merge(bookId, System.nanoTime() + unconfirmedTtl, Math::max);
+			marked.increment();
+		}
+	}
+
+	@Override
+	public void onChange(ChangeStreamEvent<Book> event) {
+
+		switch (event.getOperationType()) {
+
+			case INSERT:
+			case UPDATE:
+			case REPLACE:
+
+				Book book = event.getBody();
+				if (book == null) {
+					remove(event); // deleted in the meantime
+				} else if (book.getStock() > 0 || hasShardedStock(event)) {
+					soldOut.remove(book.getId());
+				} else {
+					soldOut.put(book.getId(), CONFIRMED);
+				}
+				break;
+			case DELETE:
+				remove(event);
+				break;
+			default:
+				disconnected(); // eg. invalidate, the change stream ends and gets re-established
+		}
+	}
+
+	/**
+	 * Start consulting the set as changes are now tracked.
+	 */
+	@Override
+	public void connected() {
+
+		soldOut.clear();
+		live = true;
+	}
+
+	/**
+	 * Stop consulting the set as a restock might be missed.
+	 */
+	@Override
+	public void disconnected() {
+
+		live = false;
+		soldOut.clear();
+	}
+
+	/**
+	 * @return number of sold out {@link Book books} and of orders rejected.
+	 */
+	public Map<String, Object> snapshot() {
+
+		Map<String, Object> snapshot = new TreeMap<>();
+		snapshot.put("live", live);
+		snapshot.put("soldOut", soldOut.size());
+		snapshot.put("rejected", rejected.sum());
+		snapshot.put("marked", marked.sum());
+		return snapshot;
+	}
+
+	/**
+	 * The stock of {@link Book books} split up by the {@link ShardedStock} is held in its slots, the {@link Book} document
+	 * always reports {@literal 0}.
+	 */
+	private static boolean hasShardedStock(ChangeStreamEvent<Book> event) {
+
+		Document document = event.getRaw() != null ? event.getRaw().getFullDocument() : null;
+		return document != null && Boolean.TRUE.equals(document.get(ShardedStock.SHARDED_FLAG));
+	}
+
+	private void remove(ChangeStreamEvent<Book> event) {
+
+		String id = BookChangeListener.idOf(event);
+		if (id != null) {
+			soldOut.remove(id);
+		} else {
+			soldOut.clear();
+		}
+	}
+}
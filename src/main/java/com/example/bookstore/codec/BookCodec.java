@@ -0,0 +1,101 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.bookstore.codec;
+
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+
+import com.example.bookstore.Book;
+
+/**
+ * {@link Codec} reading and writing a {@link Book} straight from and to the BSON stream, using the very same field
+ * names as the mapping annotations of {@link Book}. Fields not part of the {@link Book}, like the {@literal checkout}
+ * history of the {@link com.example.bookstore.AppProfiles#SYNC_ATOMIC} sample, are skipped without being read.
+ *
+ * @author Christoph Strobl
+ */
+public class BookCodec implements Codec<Book> {
+
+	@Override
+	public void encode(BsonWriter writer, Book book, EncoderContext encoderContext) {
+
+		writer.writeStartDocument();
+
+		if (book.getId() != null) {
+			writer.writeString("_id", book.getId());
+		}
+		BookstoreCodecs.writeString(writer, "title", book.getTitle());
+		BookstoreCodecs.writeStrings(writer, "author", book.getAuthors());
+		BookstoreCodecs.writeString(writer, "published_date", book.getPublishDate());
+		writer.writeInt32("pages", book.getPages());
+		BookstoreCodecs.writeString(writer, "language", book.getLanguage());
+		BookstoreCodecs.writeString(writer, "publisher_id", book.getPublisherId());
+		writer.writeInt32("available", book.getStock());
+
+		writer.writeEndDocument();
+	}
+
+	@Override
+	public Book decode(BsonReader reader, DecoderContext decoderContext) {
+
+		Book book = new Book();
+
+		reader.readStartDocument();
+		while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+
+			switch (reader.readName()) {
+				case "_id":
+					book.setId(BookstoreCodecs.readId(reader));
+					break;
+				case "title":
+					book.setTitle(BookstoreCodecs.readString(reader));
+					break;
+				case "author":
+					book.setAuthors(BookstoreCodecs.readStrings(reader));
+					break;
+				case "published_date":
+					book.setPublishDate(BookstoreCodecs.readString(reader));
+					break;
+				case "pages":
+					book.setPages(BookstoreCodecs.readInt(reader));
+					break;
+				case "language":
+					book.setLanguage(BookstoreCodecs.readString(reader));
+					break;
+				case "publisher_id":
+					book.setPublisherId(BookstoreCodecs.readString(reader));
+					break;
+				case "available":
+					book.setStock(BookstoreCodecs.readInt(reader));
+					break;
+				default:
+					reader.skipValue();
+			}
+		}
+		reader.readEndDocument();
+
+		return book;
+	}
+
+	@Override
+	public Class<Book> getEncoderClass() {
+		return Book.class;
+	}
+}
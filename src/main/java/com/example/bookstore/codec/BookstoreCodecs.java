@@ -0,0 +1,153 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.bookstore.codec;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonValue;
+import org.bson.BsonWriter;
+import org.bson.codecs.BsonValueCodec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.configuration.CodecRegistries;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.types.ObjectId;
+import org.springframework.lang.Nullable;
+
+import com.mongodb.MongoClientSettings;
+
+/**
+ * The {@link CodecRegistry} holding the {@link BookCodec} and {@link OrderCodec} in front of the driver defaults, along
+ * with the helpers they share. Values of an unexpected type are read as {@literal null} instead of failing the entire
+ * document.
+ *
+ * @author Christoph Strobl
+ */
+public final class BookstoreCodecs {
+
+	public static final CodecRegistry REGISTRY = CodecRegistries.fromRegistries( //
+			CodecRegistries.fromCodecs(new BookCodec(), new OrderCodec()), //
+			MongoClientSettings.getDefaultCodecRegistry());
+
+	private static final BsonValueCodec BSON_VALUE_CODEC = new BsonValueCodec();
+
+	private BookstoreCodecs() {}
+
+	/**
+	 * Write a {@link String} id as {@link ObjectId} if it is a valid one, just like the
+	 * {@link org.springframework.data.mongodb.core.convert.MappingMongoConverter} does.
+	 */
+	static void writeId(BsonWriter writer, String id) {
+
+		if (ObjectId.isValid(id)) {
+			writer.writeObjectId("_id", new ObjectId(id));
+		} else {
+			writer.writeString("_id", id);
+		}
+	}
+
+	static void writeString(BsonWriter writer, String name, @Nullable String value) {
+
+		if (value != null) {
+			writer.writeString(name, value);
+		}
+	}
+
+	static void writeStrings(BsonWriter writer, String name, @Nullable List<String> values) {
+
+		if (values == null) {
+			return;
+		}
+
+		writer.writeStartArray(name);
+		values.forEach(writer::writeString);
+		writer.writeEndArray();
+	}
+
+	/**
+	 * Read an id of any type as {@link String}.
+	 */
+	static String readId(BsonReader reader) {
+
+		switch (reader.getCurrentBsonType()) {
+			case STRING:
+				return reader.readString();
+			case OBJECT_ID:
+				return reader.readObjectId().toHexString();
+			default:
+				BsonValue id = BSON_VALUE_CODEC.decode(reader, DecoderContext.builder().build());
+				return id.isString() ? id.asString().getValue() : id.toString();
+		}
+	}
+
+	/**
+	 * @return the current {@link BsonType#STRING} value, {@literal null} for any other type.
+	 */
+	@Nullable
+	static String readString(BsonReader reader) {
+
+		if (reader.getCurrentBsonType() == BsonType.STRING) {
+			return reader.readString();
+		}
+
+		reader.skipValue();
+		return null;
+	}
+
+	@Nullable
+	static List<String> readStrings(BsonReader reader) {
+
+		if (reader.getCurrentBsonType() != BsonType.ARRAY) {
+
+			reader.skipValue();
+			return null;
+		}
+
+		List<String> values = new ArrayList<>();
+
+		reader.readStartArray();
+		while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+
+			String value = readString(reader);
+			if (value != null) {
+				values.add(value);
+			}
+		}
+		reader.readEndArray();
+
+		return values;
+	}
+
+	/**
+	 * @return the current numeric value as {@literal int}, {@literal 0} for any other type.
+	 */
+	static int readInt(BsonReader reader) {
+
+		switch (reader.getCurrentBsonType()) {
+			case INT32:
+				return reader.readInt32();
+			case INT64:
+				return (int) reader.readInt64();
+			case DOUBLE:
+				return (int) reader.readDouble();
+			default:
+				reader.skipValue();
+				return 0;
+		}
+	}
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.bookstore.codec;
+
+import static com.mongodb.client.model.Filters.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.stereotype.Component;
+
+import com.example.bookstore.AppProfiles;
+import com.example.bookstore.Book;
+import com.example.bookstore.Order;
+
+/**
+ * Reads {@link Book books} and writes {@link Order orders} via the {@link BookCodec} and {@link OrderCodec} instead of
+ * the {@link org.springframework.data.mongodb.core.convert.MappingMongoConverter}, so that neither reflection nor an
+ * intermediate {@link Document} is involved. Runs via {@link MongoOperations#execute(String,
+ * org.springframework.data.mongodb.core.CollectionCallback)}, so that calls participate in the surrounding transaction
+ * and errors are translated just like for any other template operation.
+ *
+ * @author Christoph Strobl
+ */
+@Component
+@Profile(AppProfiles.CODEC)
+public class CodecRepository {
+
+	/** The {@literal checkout} history of the {@link AppProfiles#SYNC_ATOMIC} sample is not part of the {@link Book}. */
+	private static final Bson CATALOG_FIELDS = new Document("checkout", 0);
+
+	private final MongoOperations mongoOps;
+	private final String bookCollection;
+	private final String orderCollection;
+
+	public CodecRepository(MongoOperations mongoOps) {
+
+		this.mongoOps = mongoOps;
+		this.bookCollection = mongoOps.getCollectionName(Book.class);
+		this.orderCollection = mongoOps.getCollectionName(Order.class);
+	}
+
+	/**
+	 * @param id
+	 * @return the {@link Book} with the given id, if any.
+	 */
+	public Optional<Book> findBookById(String id) {
+
+		return Optional.ofNullable(mongoOps.execute(bookCollection, collection -> collection //
+				.withDocumentClass(Book.class) //
+				.withCodecRegistry(BookstoreCodecs.REGISTRY) //
+				.find(eq("_id", id)) //
+				.projection(CATALOG_FIELDS) //
+				.first()));
+	}
+
+	/**
+	 * @param ids
+	 * @return the {@link Book books} with the given ids, in no particular order.
+	 */
+	public List<Book> findBooksById(Collection<String> ids) {
+
+		return mongoOps.execute(bookCollection, collection -> collection //
+				.withDocumentClass(Book.class) //
+				.withCodecRegistry(BookstoreCodecs.REGISTRY) //
+				.find(in("_id", ids)) //
+				.projection(CATALOG_FIELDS) //
+				.into(new ArrayList<>()));
+	}
+
+	/**
+	 * Insert the given {@link Order}, assigning a new id unless it already has one.
+	 *
+	 * @param order
+	 * @return the inserted {@link Order} along with its id.
+	 */
+	public Order insert(Order order) {
+
+		Order toInsert = order.getId() != null ? order : order.withId(new ObjectId().toHexString());
+
+		mongoOps.execute(orderCollection, collection -> {
+
+			collection.withDocumentClass(Order.class) //
+					.withCodecRegistry(BookstoreCodecs.REGISTRY) //
+					.insertOne(toInsert);
+			return null;
+		});
+
+		return toInsert;
+	}
+}
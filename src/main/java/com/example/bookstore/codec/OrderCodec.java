@@ -0,0 +1,208 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.bookstore.codec;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.bson.BsonObjectId;
+import org.bson.BsonReader;
+import org.bson.BsonString;
+import org.bson.BsonType;
+import org.bson.BsonValue;
+import org.bson.BsonWriter;
+import org.bson.codecs.CollectibleCodec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.types.ObjectId;
+import org.springframework.lang.Nullable;
+
+import com.example.bookstore.BookSnapshot;
+import com.example.bookstore.Order;
+
+/**
+ * {@link CollectibleCodec} reading and writing an {@link Order} along with its {@link BookSnapshot snapshots} straight
+ * from and to the BSON stream. {@link Order Orders} still referencing their {@link com.example.bookstore.Book books}
+ * via {@link com.mongodb.DBRef} are read with snapshots just holding the id. Those need to be resolved via
+ * {@link com.example.bookstore.LegacyBookReferences} to get title and authors.
+ *
+ * @author Christoph Strobl
+ */
+public class OrderCodec implements CollectibleCodec<Order> {
+
+	@Override
+	public void encode(BsonWriter writer, Order order, EncoderContext encoderContext) {
+
+		writer.writeStartDocument();
+
+		if (order.getId() != null) {
+			BookstoreCodecs.writeId(writer, order.getId());
+		}
+		writer.writeString("by", order.getCustomer());
+		writer.writeDateTime("date", order.getDate().getTime());
+
+		if (order.getBooks() != null) {
+
+			writer.writeStartArray("books");
+			for (BookSnapshot book : order.getBooks()) {
+
+				writer.writeStartDocument();
+				writer.writeString("_id", book.getId());
+				BookstoreCodecs.writeString(writer, "title", book.getTitle());
+				BookstoreCodecs.writeStrings(writer, "author", book.getAuthors());
+				writer.writeEndDocument();
+			}
+			writer.writeEndArray();
+		}
+
+		BookstoreCodecs.writeString(writer, "idempotency_key", order.getIdempotencyKey());
+
+		writer.writeEndDocument();
+	}
+
+	@Override
+	public Order decode(BsonReader reader, DecoderContext decoderContext) {
+
+		String id = null;
+		String customer = null;
+		Date date = null;
+		List<BookSnapshot> books = null;
+		String idempotencyKey = null;
+
+		reader.readStartDocument();
+		while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+
+			switch (reader.readName()) {
+				case "_id":
+					id = BookstoreCodecs.readId(reader);
+					break;
+				case "by":
+					customer = BookstoreCodecs.readString(reader);
+					break;
+				case "date":
+					date = readDate(reader);
+					break;
+				case "books":
+					books = readBooks(reader);
+					break;
+				case "idempotency_key":
+					idempotencyKey = BookstoreCodecs.readString(reader);
+					break;
+				default:
+					reader.skipValue();
+			}
+		}
+		reader.readEndDocument();
+
+		return new Order(id, customer, date, books, idempotencyKey);
+	}
+
+	@Override
+	public Class<Order> getEncoderClass() {
+		return Order.class;
+	}
+
+	@Override
+	public Order generateIdIfAbsentFromDocument(Order order) {
+		return order.getId() != null ? order : order.withId(new ObjectId().toHexString());
+	}
+
+	@Override
+	public boolean documentHasId(Order order) {
+		return order.getId() != null;
+	}
+
+	@Override
+	public BsonValue getDocumentId(Order order) {
+
+		if (order.getId() == null) {
+			throw new IllegalStateException("The order does not have an id.");
+		}
+		return ObjectId.isValid(order.getId()) ? new BsonObjectId(new ObjectId(order.getId()))
+				: new BsonString(order.getId());
+	}
+
+	@Nullable
+	private static Date readDate(BsonReader reader) {
+
+		if (reader.getCurrentBsonType() == BsonType.DATE_TIME) {
+			return new Date(reader.readDateTime());
+		}
+
+		reader.skipValue();
+		return null;
+	}
+
+	@Nullable
+	private static List<BookSnapshot> readBooks(BsonReader reader) {
+
+		if (reader.getCurrentBsonType() != BsonType.ARRAY) {
+
+			reader.skipValue();
+			return null;
+		}
+
+		List<BookSnapshot> books = new ArrayList<>();
+
+		reader.readStartArray();
+		while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+
+			if (reader.getCurrentBsonType() != BsonType.DOCUMENT) {
+
+				reader.skipValue();
+				continue;
+			}
+
+			books.add(readBook(reader));
+		}
+		reader.readEndArray();
+
+		return books;
+	}
+
+	/**
+	 * Read a {@link BookSnapshot} or a {@link com.mongodb.DBRef} stored as {@code { $ref : ..., $id : ... }}.
+	 */
+	private static BookSnapshot readBook(BsonReader reader) {
+
+		String id = null;
+		String title = null;
+		List<String> authors = null;
+
+		reader.readStartDocument();
+		while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+
+			switch (reader.readName()) {
+				case "_id":
+				case "$id":
+					id = BookstoreCodecs.readId(reader);
+					break;
+				case "title":
+					title = BookstoreCodecs.readString(reader);
+					break;
+				case "author":
+					authors = BookstoreCodecs.readStrings(reader);
+					break;
+				default:
+					reader.skipValue();
+			}
+		}
+		reader.readEndDocument();
+
+		return new BookSnapshot(id, title, authors);
+	}
+}
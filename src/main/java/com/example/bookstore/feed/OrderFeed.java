@@ -0,0 +1,245 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.bookstore.feed;
+
+import static com.mongodb.client.model.Filters.*;
+
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+import reactor.core.publisher.BufferOverflowStrategy;
+import reactor.core.publisher.ConnectableFlux;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.bson.BsonDateTime;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.springframework.data.mongodb.core.ChangeStreamEvent;
+import org.springframework.data.mongodb.core.ChangeStreamOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.lang.Nullable;
+
+import com.example.bookstore.Customer;
+import com.example.bookstore.Order;
+import com.mongodb.MongoException;
+import com.mongodb.client.model.ReplaceOptions;
+
+/**
+ * Live feed of newly placed {@link Order orders} multicasting one single change stream on the {@literal order}
+ * collection to any number of subscribers. Just inserts are sent over by the server, reduced to the fields of the
+ * {@link Order}.
+ * <p>
+ * The resume token of the latest event is saved to the {@link #TOKEN_COLLECTION} at most once per
+ * {@code tokenSaveInterval}, so that the change stream picks up right where it left off after a restart and events
+ * happening in between get delivered to the subscribers present by then. Should the server not know the token any
+ * longer, or the change stream get invalidated, it starts over from the current point in time.
+ * <p>
+ * Each subscriber gets a buffer of its own holding up to {@code bufferSize} {@link Order orders}, so that slow ones do
+ * not hold up the others. Once full, the {@link Overflow} policy applies.
+ *
+ * @author Christoph Strobl
+ */
+public class OrderFeed {
+
+	public static final String TOKEN_COLLECTION = "change_stream_tokens";
+	private static final String TOKEN_ID = "order";
+
+	/** Server errors telling the resume token is unknown, eg. as it fell off the oplog. */
+	private static final int CHANGE_STREAM_FATAL_ERROR = 280;
+	private static final int CHANGE_STREAM_HISTORY_LOST = 286;
+
+	private final ReactiveMongoOperations operations;
+	private final int bufferSize;
+	private final Overflow overflow;
+	private final Duration tokenSaveInterval;
+
+	private final AtomicInteger subscribers = new AtomicInteger();
+	private final LongAdder published = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder disconnected = new LongAdder();
+	private final LongAdder restarts = new LongAdder();
+
+	private final ConnectableFlux<Order> orders;
+
+	private volatile @Nullable BsonValue resumeToken;
+	private @Nullable Disposable connection;
+
+	/**
+	 * @param operations
+	 * @param bufferSize number of {@link Order orders} buffered per subscriber.
+	 * @param overflow what to do once the buffer of a subscriber is full.
+	 * @param tokenSaveInterval minimum time between saving resume tokens.
+	 */
+	public OrderFeed(ReactiveMongoOperations operations, int bufferSize, Overflow overflow, Duration tokenSaveInterval) {
+
+		this.operations = operations;
+		this.bufferSize = bufferSize;
+		this.overflow = overflow;
+		this.tokenSaveInterval = tokenSaveInterval;
+
+		this.orders = Flux.defer(this::changeStream) //
+				.doOnComplete(() -> resumeToken = null) // invalidated, eg. as the collection got dropped
+				.concatWith(Mono.error(() -> new IllegalStateException("The change stream of orders has ended."))) //
+				.doOnError(this::discardTokenIfUnknown) //
+				.retryBackoff(Long.MAX_VALUE, Duration.ofSeconds(1), Duration.ofSeconds(30)) //
+				.doOnNext(event -> resumeToken = event.getResumeToken()) //
+				.filter(event -> event.getBody() != null) //
+				.map(ChangeStreamEvent::getBody) //
+				.doOnNext(it -> published.increment()) //
+				.publish();
+	}
+
+	/**
+	 * Load the saved resume token and open the change stream.
+	 */
+	public void start() {
+
+		BsonDocument saved = Mono.from(tokens().find(eq("_id", TOKEN_ID)).first()).block();
+		resumeToken = saved != null ? saved.get("token") : null;
+
+		// keeps the change stream open no matter if there are subscribers or not
+		Disposable tokens = orders.sample(tokenSaveInterval) //
+				.concatMap(it -> saveToken()) //
+				.subscribe();
+
+		connection = Disposables.composite(tokens, orders.connect());
+	}
+
+	/**
+	 * Close the change stream.
+	 */
+	public void stop() {
+
+		if (connection != null) {
+			connection.dispose();
+		}
+	}
+
+	/**
+	 * Subscribe to the {@link Order orders} placed from now on.
+	 *
+	 * @param customer limit to the {@link Order orders} of the given {@link Customer}, if any.
+	 * @return
+	 */
+	public Flux<Order> orders(@Nullable Customer customer) {
+
+		Flux<Order> orders = customer != null //
+				? this.orders.filter(it -> customer.getEmail().equals(it.getCustomer())) //
+				: this.orders;
+
+		if (overflow == Overflow.DROP) {
+			orders = orders.onBackpressureBuffer(bufferSize, it -> dropped.increment(), BufferOverflowStrategy.DROP_OLDEST);
+		} else {
+			orders = orders.onBackpressureBuffer(bufferSize, it -> disconnected.increment(), BufferOverflowStrategy.ERROR);
+		}
+
+		return orders //
+				.doOnSubscribe(it -> subscribers.incrementAndGet()) //
+				.doFinally(it -> subscribers.decrementAndGet());
+	}
+
+	/**
+	 * @return the number of current subscribers, published {@link Order orders}, {@link Order orders} dropped for slow
+	 *         subscribers and the number of subscribers disconnected for being too slow.
+	 */
+	public Map<String, Object> snapshot() {
+
+		Map<String, Object> snapshot = new LinkedHashMap<>();
+		snapshot.put("subscribers", subscribers.get());
+		snapshot.put("published", published.sum());
+		snapshot.put("dropped", dropped.sum());
+		snapshot.put("disconnected", disconnected.sum());
+		snapshot.put("restarts", restarts.sum());
+		snapshot.put("overflow", overflow.name().toLowerCase(Locale.ENGLISH));
+		return snapshot;
+	}
+
+	private Flux<ChangeStreamEvent<Order>> changeStream() {
+
+		ChangeStreamOptions.ChangeStreamOptionsBuilder options = ChangeStreamOptions.builder() //
+				.filter(new Document("$match", new Document("operationType", "insert")), //
+						new Document("$project", new Document("operationType", 1) //
+								.append("ns", 1) //
+								.append("documentKey", 1) //
+								.append("fullDocument._id", 1) //
+								.append("fullDocument.by", 1) //
+								.append("fullDocument.date", 1) //
+								.append("fullDocument.books", 1)));
+
+		BsonValue resumeToken = this.resumeToken;
+		if (resumeToken != null) {
+			options.resumeToken(resumeToken);
+		}
+
+		return operations.changeStream(operations.getCollectionName(Order.class), options.build(), Order.class);
+	}
+
+	private void discardTokenIfUnknown(Throwable error) {
+
+		restarts.increment();
+
+		if (error instanceof MongoException && Arrays.asList(CHANGE_STREAM_FATAL_ERROR, CHANGE_STREAM_HISTORY_LOST)
+				.contains(((MongoException) error).getCode())) {
+			resumeToken = null;
+		}
+	}
+
+	private Mono<?> saveToken() {
+
+		BsonValue resumeToken = this.resumeToken;
+		if (resumeToken == null) {
+			return Mono.empty();
+		}
+
+		BsonDocument token = new BsonDocument("_id", new BsonString(TOKEN_ID)) //
+				.append("token", resumeToken) //
+				.append("date", new BsonDateTime(new Date().getTime()));
+
+		return Mono.from(tokens().replaceOne(eq("_id", TOKEN_ID), token, new ReplaceOptions().upsert(true))) //
+				.onErrorResume(it -> Mono.empty());
+	}
+
+	private com.mongodb.reactivestreams.client.MongoCollection<BsonDocument> tokens() {
+		return operations.getCollection(TOKEN_COLLECTION).withDocumentClass(BsonDocument.class);
+	}
+
+	/**
+	 * What to do once the buffer of a slow subscriber is full.
+	 */
+	public enum Overflow {
+
+		/** Drop the oldest {@link Order orders} from the buffer. */
+		DROP,
+
+		/** End the subscription with an error. */
+		DISCONNECT;
+
+		public static Overflow of(String name) {
+			return valueOf(name.trim().toUpperCase(Locale.ENGLISH));
+		}
+	}
+}
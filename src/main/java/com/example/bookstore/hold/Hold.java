@@ -0,0 +1,84 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.bookstore.hold;
+
+import lombok.Value;
+
+import java.util.Date;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Field;
+import org.springframework.lang.Nullable;
+
+import com.example.bookstore.BookSnapshot;
+import com.example.bookstore.Order;
+
+/**
+ * A single unit of a {@link com.example.bookstore.Book} taken from its stock and reserved for a customer until
+ * {@link #getExpiresAt()}. The {@link BookSnapshot} is taken along, so that turning the hold into an {@link Order} does
+ * not have to read the {@link com.example.bookstore.Book} again.
+ *
+ * <pre>
+ * <code>
+ * {
+ *     "_id" : ObjectId("5b83ce7f1c9d440000a8e3b1"),
+ *     "by" : "cstrobl@pivotal.io",
+ *     "book" : { "_id" : "f430cb49", "title" : "The Warded Man", "author" : [ "Peter V. Brett" ] },
+ *     "status" : "HELD",
+ *     "created" : ISODate("2018-08-27T10:11:59.853Z"),
+ *     "expires_at" : ISODate("2018-08-27T10:21:59.853Z")
+ * }
+ * </code>
+ * </pre>
+ *
+ * @author Christoph Strobl
+ */
+@Value
+public class Hold {
+
+	@Id String id;
+
+	@Field("by") //
+	String customer;
+	BookSnapshot book;
+	Status status;
+	Date created;
+
+	@Field("expires_at") //
+	Date expiresAt;
+
+	/** Point in time the hold has left {@link Status#HELD}. Purged by the TTL index some time after. */
+	@Nullable //
+	@Field("closed_at") Date closedAt;
+
+	/** The id of the {@link Order} once {@link Status#ORDERED ordered}. */
+	@Nullable String order;
+
+	public enum Status {
+
+		/** The unit is reserved for the customer. */
+		HELD,
+
+		/** The unit has been turned into an {@link Order}. */
+		ORDERED,
+
+		/** The customer gave the unit back. */
+		RELEASED,
+
+		/** The unit has been returned to the stock after the hold expired. */
+		EXPIRED
+	}
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.bookstore.hold;
+
+import lombok.RequiredArgsConstructor;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.net.URI;
+import java.util.Locale;
+
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.server.ServerRequest;
+import org.springframework.web.reactive.function.server.ServerResponse;
+import org.springframework.web.server.ResponseStatusException;
+
+import com.example.bookstore.AppProfiles;
+import com.example.bookstore.BookNotFoundException;
+import com.example.bookstore.BookSoldOutException;
+import com.example.bookstore.Customer;
+import com.example.bookstore.Order;
+
+/**
+ * Web request handler for {@link Hold holds}. The blocking {@link HoldService} calls run on
+ * {@link Schedulers#elastic()}.
+ *
+ * @author Christoph Strobl
+ */
+@Component
+@Profile(AppProfiles.HOLDS)
+@RequiredArgsConstructor
+public class HoldHandler {
+
+	private final HoldService holdService;
+
+	/**
+	 * Reserve a unit of a specific {@link com.example.bookstore.Book}, answered with {@literal 201 Created} and the
+	 * location of the {@link Hold}, {@literal 409 Conflict} if it is sold out or {@literal 404} if there is no such
+	 * {@link com.example.bookstore.Book}.
+	 *
+	 * @param request
+	 * @return
+	 */
+	public Mono<ServerResponse> hold(ServerRequest request) {
+
+		Customer customer = customer(request);
+		String book = request.pathVariable("book");
+
+		return Mono.fromCallable(() -> holdService.hold(customer, book)) //
+				.subscribeOn(Schedulers.elastic()) //
+				.onErrorMap(BookSoldOutException.class,
+						e -> new ResponseStatusException(HttpStatus.CONFLICT, e.getMessage(), e)) //
+				.onErrorMap(BookNotFoundException.class,
+						e -> new ResponseStatusException(HttpStatus.NOT_FOUND, e.getMessage(), e)) //
+				.flatMap(hold -> ServerResponse.created(URI.create("/hold/" + hold.getId())).syncBody(hold));
+	}
+
+	/**
+	 * Process a {@link ServerRequest} for the {@link Hold} with the given id, answered with {@literal 404} if there is
+	 * none.
+	 *
+	 * @param request
+	 * @return
+	 */
+	public Mono<ServerResponse> status(ServerRequest request) {
+
+		String id = request.pathVariable("hold");
+
+		return Mono.fromCallable(() -> holdService.findById(id)) //
+				.subscribeOn(Schedulers.elastic()) //
+				.flatMap(hold -> hold.isPresent() ? ServerResponse.ok().syncBody(hold.get())
+						: ServerResponse.notFound().build());
+	}
+
+	/**
+	 * Turn a {@link Hold} into an {@link Order}, answered with {@literal 410 Gone} if it has expired, been released or
+	 * ordered already.
+	 *
+	 * @param request
+	 * @return
+	 */
+	public Mono<ServerResponse> order(ServerRequest request) {
+
+		Customer customer = customer(request);
+		String id = request.pathVariable("hold");
+
+		return Mono.fromCallable(() -> holdService.order(customer, id)) //
+				.subscribeOn(Schedulers.elastic()) //
+				.flatMap(order -> order.isPresent() ? ServerResponse.ok().syncBody(order.get()) : notHeld(customer, id));
+	}
+
+	/**
+	 * Give a {@link Hold} back, answered with {@literal 204 No Content} or {@literal 410 Gone} if it has expired, been
+	 * ordered or released already.
+	 *
+	 * @param request
+	 * @return
+	 */
+	public Mono<ServerResponse> release(ServerRequest request) {
+
+		Customer customer = customer(request);
+		String id = request.pathVariable("hold");
+
+		return Mono.fromCallable(() -> holdService.release(customer, id)) //
+				.subscribeOn(Schedulers.elastic()) //
+				.flatMap(released -> released ? ServerResponse.noContent().build() : notHeld(customer, id));
+	}
+
+	/**
+	 * Tell a {@link Hold} of someone else, or none at all, from one that is no longer {@link Hold.Status#HELD held}.
+	 */
+	private Mono<ServerResponse> notHeld(Customer customer, String id) {
+
+		return Mono.fromCallable(() -> holdService.findById(id)) //
+				.subscribeOn(Schedulers.elastic()) //
+				.map(hold -> hold.filter(it -> it.getCustomer().equals(customer.getEmail()))) //
+				.flatMap(hold -> hold.isPresent() ? Mono.error(gone(hold.get())) : ServerResponse.notFound().build());
+	}
+
+	private static ResponseStatusException gone(Hold hold) {
+		return new ResponseStatusException(HttpStatus.GONE,
+				String.format("Hold %s is %s.", hold.getId(), hold.getStatus() == Hold.Status.HELD ? "expired"
+						: hold.getStatus().name().toLowerCase(Locale.ROOT)));
+	}
+
+	private static Customer customer(ServerRequest request) {
+		return Customer.of(request.queryParam("customer").orElse(Customer.guest().getEmail()));
+	}
+}
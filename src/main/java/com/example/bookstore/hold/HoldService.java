@@ -0,0 +1,370 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.bookstore.hold;
+
+import static org.springframework.data.mongodb.core.query.Criteria.*;
+import static org.springframework.data.mongodb.core.query.Query.*;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import javax.annotation.PostConstruct;
+
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.domain.Sort.Direction;
+import org.springframework.data.mongodb.MongoTransactionManager;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.BulkOperations.BulkMode;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.example.bookstore.AppProfiles;
+import com.example.bookstore.Book;
+import com.example.bookstore.BookNotFoundException;
+import com.example.bookstore.BookSnapshot;
+import com.example.bookstore.BookSoldOutException;
+import com.example.bookstore.Customer;
+import com.example.bookstore.Order;
+import com.example.bookstore.hold.Hold.Status;
+import com.example.bookstore.sync.transaction.ShardedStock;
+
+/**
+ * Reserves single units of a {@link Book} in the {@literal holds} collection for {@code bookstore.holds.ttl-seconds}.
+ * Taking the unit from the {@literal available} stock and inserting the {@link Hold} happen within one transaction, so
+ * customers learn that a {@link Book} has sold out when putting it into their cart rather than at checkout. Turning a
+ * {@link Hold} into an {@link Order} just flips its status and inserts the {@link Order}, without touching the
+ * {@link Book} document contended by everyone else again.
+ * <p>
+ * Expired holds are swept back into the stock every {@code bookstore.holds.sweep-interval-ms},
+ * {@code bookstore.holds.sweep-batch-size} at a time, with one update of the holds and one bulk write per batch adding
+ * the units back to the affected {@link Book books}. Holds no longer {@link Status#HELD held} carry a
+ * {@literal closed_at} date, and a TTL index on it purges them {@code bookstore.holds.retention-seconds} later. Holds
+ * still reserving a unit have no such date, so the TTL index never drops stock on the floor.
+ * <p>
+ * Units of {@link Book books} split up by {@link ShardedStock} are taken from and given back to its slots instead.
+ *
+ * @author Christoph Strobl
+ */
+@Component
+@Profile(AppProfiles.HOLDS)
+public class HoldService {
+
+	public static final String COLLECTION = "holds";
+
+	private final MongoOperations mongoOps;
+	private final MongoTransactionManager txManager;
+	private final Optional<ShardedStock> shardedStock;
+
+	private final LongAdder held = new LongAdder();
+	private final LongAdder ordered = new LongAdder();
+	private final LongAdder released = new LongAdder();
+	private final LongAdder expired = new LongAdder();
+
+	private @Value("${bookstore.holds.ttl-seconds:600}") long ttl;
+	private @Value("${bookstore.holds.retention-seconds:3600}") long retention;
+	private @Value("${bookstore.holds.sweep-batch-size:500}") int sweepBatchSize;
+
+	public HoldService(MongoOperations mongoOps, MongoTransactionManager txManager,
+			Optional<ShardedStock> shardedStock) {
+
+		this.mongoOps = mongoOps;
+		this.txManager = txManager;
+		this.shardedStock = shardedStock;
+	}
+
+	/**
+	 * Create the index to find expired holds and the TTL index purging closed ones.
+	 */
+	@PostConstruct
+	public void init() {
+
+		if (!mongoOps.collectionExists(COLLECTION)) {
+			mongoOps.createCollection(COLLECTION);
+		}
+
+		mongoOps.indexOps(COLLECTION).ensureIndex(new Index() //
+				.on("status", Direction.ASC) //
+				.on("expires_at", Direction.ASC) //
+				.named("status_expires_at"));
+		mongoOps.indexOps(COLLECTION).ensureIndex(new Index() //
+				.on("closed_at", Direction.ASC) //
+				.expire(retention, TimeUnit.SECONDS) //
+				.named("closed_at_ttl"));
+	}
+
+	/**
+	 * Take a single unit of the {@link Book} with the given id from its stock and reserve it for the given
+	 * {@link Customer}.
+	 *
+	 * @param customer
+	 * @param bookId
+	 * @return the {@link Status#HELD held} unit.
+	 * @throws BookSoldOutException if there is no unit left.
+	 * @throws BookNotFoundException if there is no such {@link Book}.
+	 */
+	public Hold hold(Customer customer, String bookId) {
+
+		Hold hold = new TransactionTemplate(txManager).execute(action -> {
+
+			Book book = isSharded(bookId) ? takeFromSlots(bookId) : take(bookId);
+
+			Date now = new Date();
+			return mongoOps.insert(new Hold(new ObjectId().toHexString(), customer.getEmail(),
+					BookSnapshot.of(book), Status.HELD, now,
+					new Date(now.getTime() + TimeUnit.SECONDS.toMillis(ttl)), null, null), COLLECTION);
+		});
+
+		held.increment();
+		return hold;
+	}
+
+	/**
+	 * @param id
+	 * @return the {@link Hold} with the given id, if any.
+	 */
+	public Optional<Hold> findById(String id) {
+		return ObjectId.isValid(id) ? Optional.ofNullable(mongoOps.findById(id, Hold.class, COLLECTION)) : Optional.empty();
+	}
+
+	/**
+	 * Turn the {@link Hold} with the given id into an {@link Order} unless it has expired.
+	 *
+	 * @param customer
+	 * @param id
+	 * @return the placed {@link Order}, {@link Optional#empty() empty} if the {@link Customer} holds no such unit
+	 *         (anymore).
+	 */
+	public Optional<Order> order(Customer customer, String id) {
+
+		if (!ObjectId.isValid(id)) {
+			return Optional.empty();
+		}
+
+		Order order = new TransactionTemplate(txManager).execute(action -> {
+
+			Date now = new Date();
+			String orderId = new ObjectId().toHexString();
+
+			Hold hold = mongoOps.findAndModify(held(customer, id).addCriteria(where("expiresAt").gt(now)), //
+					new Update().set("status", Status.ORDERED).set("closedAt", now).set("order", orderId), //
+					FindAndModifyOptions.options().returnNew(true), Hold.class, COLLECTION);
+
+			if (hold == null) {
+				return null;
+			}
+
+			return mongoOps.insert(new Order(orderId, customer.getEmail(), now, Collections.singletonList(hold.getBook())));
+		});
+
+		if (order != null) {
+			ordered.increment();
+		}
+		return Optional.ofNullable(order);
+	}
+
+	/**
+	 * Give the unit held back to the stock of its {@link Book}.
+	 *
+	 * @param customer
+	 * @param id
+	 * @return {@literal false} if the {@link Customer} holds no such unit (anymore).
+	 */
+	public boolean release(Customer customer, String id) {
+
+		if (!ObjectId.isValid(id)) {
+			return false;
+		}
+
+		Boolean returned = new TransactionTemplate(txManager).execute(action -> {
+
+			Hold hold = mongoOps.findAndModify(held(customer, id), //
+					new Update().set("status", Status.RELEASED).set("closedAt", new Date()), //
+					Hold.class, COLLECTION);
+
+			if (hold == null) {
+				return false;
+			}
+
+			restock(Collections.singletonMap(hold.getBook().getId(), 1L));
+			return true;
+		});
+
+		if (Boolean.TRUE.equals(returned)) {
+			released.increment();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Return all expired holds to the stock of their {@link Book books}, one batch after the other.
+	 *
+	 * @return the number of holds returned.
+	 */
+	@Scheduled(fixedDelayString = "${bookstore.holds.sweep-interval-ms:1000}")
+	public int sweep() {
+
+		int total = 0;
+		int swept;
+		do {
+			swept = sweepBatch();
+			total += swept;
+		} while (swept == sweepBatchSize);
+
+		return total;
+	}
+
+	/**
+	 * @return number of holds placed, ordered, released and expired by this instance.
+	 */
+	public Map<String, Object> snapshot() {
+
+		Map<String, Object> snapshot = new TreeMap<>();
+		snapshot.put("held", held.sum());
+		snapshot.put("ordered", ordered.sum());
+		snapshot.put("released", released.sum());
+		snapshot.put("expired", expired.sum());
+		return snapshot;
+	}
+
+	/**
+	 * Mark one batch of expired holds {@link Status#EXPIRED} and add their units back with a single bulk write. Holds
+	 * ordered or released concurrently fail the transaction, which leaves them to the next sweep.
+	 */
+	private int sweepBatch() {
+
+		Integer swept = new TransactionTemplate(txManager).execute(action -> {
+
+			Date now = new Date();
+			Query query = query(where("status").is(Status.HELD).and("expiresAt").lte(now)).limit(sweepBatchSize);
+			query.fields().include("book._id");
+
+			List<Hold> holds = mongoOps.find(query, Hold.class, COLLECTION);
+			if (holds.isEmpty()) {
+				return 0;
+			}
+
+			List<String> ids = holds.stream().map(Hold::getId).collect(Collectors.toList());
+			long modified = mongoOps.updateMulti(query(where("id").in(ids).and("status").is(Status.HELD)), //
+					new Update().set("status", Status.EXPIRED).set("closedAt", now), //
+					Hold.class, COLLECTION).getModifiedCount();
+
+			if (modified != ids.size()) {
+				throw new IllegalStateException("Holds changed while sweeping.");
+			}
+
+			restock(holds.stream().collect(Collectors.groupingBy(it -> it.getBook().getId(), Collectors.counting())));
+			return holds.size();
+		});
+
+		expired.add(swept);
+		return swept;
+	}
+
+	/**
+	 * Take a unit from the stock of the {@link Book}. Must be called within a transaction.
+	 *
+	 * @return the {@link Book} with just title and authors.
+	 */
+	private Book take(String bookId) {
+
+		Query query = query(where("id").is(bookId).and("stock").gt(0));
+		query.fields().include("title").include("authors");
+
+		Book book = mongoOps.findAndModify(query, new Update().inc("stock", -1), Book.class);
+		if (book == null) {
+			throw new BookSoldOutException(findBook(bookId));
+		}
+		return book;
+	}
+
+	/**
+	 * Take a unit from the {@link ShardedStock} slots of the {@link Book}. Must be called within a transaction.
+	 *
+	 * @return the {@link Book} with just title and authors.
+	 */
+	private Book takeFromSlots(String bookId) {
+
+		Book book = findBook(bookId);
+		if (!shardedStock.get().take(bookId, 1)) {
+			throw new BookSoldOutException(book);
+		}
+		return book;
+	}
+
+	/**
+	 * Give units back to the stock of their {@link Book books}, with a single bulk write for the ones not sharded. Must
+	 * be called within a transaction.
+	 *
+	 * @param units number of units by {@link Book#getId() book id}.
+	 */
+	private void restock(Map<String, Long> units) {
+
+		BulkOperations bulkOps = mongoOps.bulkOps(BulkMode.UNORDERED, Book.class);
+		int updates = 0;
+
+		for (Map.Entry<String, Long> entry : units.entrySet()) {
+
+			if (isSharded(entry.getKey())) {
+				shardedStock.get().restock(entry.getKey(), entry.getValue().intValue());
+				continue;
+			}
+
+			bulkOps.updateOne(query(where("id").is(entry.getKey())), //
+					new Update().inc("stock", entry.getValue().intValue()));
+			updates++;
+		}
+
+		if (updates > 0) {
+			bulkOps.execute();
+		}
+	}
+
+	private Book findBook(String bookId) {
+
+		Query query = query(where("id").is(bookId));
+		query.fields().include("title").include("authors");
+
+		Book book = mongoOps.findOne(query, Book.class);
+		if (book == null) {
+			throw new BookNotFoundException(bookId);
+		}
+		return book;
+	}
+
+	private boolean isSharded(String bookId) {
+		return shardedStock.isPresent() && shardedStock.get().isSharded(bookId);
+	}
+
+	private static Query held(Customer customer, String id) {
+		return query(where("id").is(id).and("customer").is(customer.getEmail()).and("status").is(Status.HELD));
+	}
+}
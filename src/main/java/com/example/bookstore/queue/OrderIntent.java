@@ -0,0 +1,90 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.bookstore.queue;
+
+import lombok.Value;
+
+import java.util.Date;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Field;
+import org.springframework.lang.Nullable;
+
+import com.example.bookstore.Order;
+
+/**
+ * An {@link Order} accepted but not necessarily placed yet, as held by the {@link OrderQueue}.
+ *
+ * <pre>
+ * <code>
+ * {
+ *     "_id" : ObjectId("5b83ce7f1c9d440000a8e3b1"),
+ *     "by" : "cstrobl@pivotal.io",
+ *     "book" : "f430cb49",
+ *     "status" : "PLACED",
+ *     "created" : ISODate("2018-08-27T10:11:59.853Z"),
+ *     "visible_at" : ISODate("2018-08-27T10:12:29.861Z"),
+ *     "attempts" : 1,
+ *     "order" : "5b83ce7f1c9d440000a8e3b2"
+ * }
+ * </code>
+ * </pre>
+ *
+ * @author Christoph Strobl
+ */
+@Value
+public class OrderIntent {
+
+	@Id String id;
+
+	@Field("by") //
+	String customer;
+	String book;
+
+	/** The key the {@link Order} is placed with. The {@link #getId() id} of the intent if the client did not send one. */
+	@Nullable //
+	@Field("idempotency_key") String idempotencyKey;
+
+	Status status;
+	Date created;
+
+	/** Point in time from which on the intent may be claimed (again). */
+	@Field("visible_at") //
+	Date visibleAt;
+
+	int attempts;
+
+	/** The id of the {@link Order} once {@link Status#PLACED placed}. */
+	@Nullable String order;
+
+	/** The reason the {@link Order} could not be placed. */
+	@Nullable String error;
+
+	public enum Status {
+
+		/** Waiting to be claimed by a worker. */
+		PENDING,
+
+		/** Claimed by a worker, until {@link OrderIntent#getVisibleAt()}. */
+		CLAIMED,
+
+		/** The {@link Order} has been placed. */
+		PLACED,
+
+		/** The {@link Order} could not be placed, eg. because the book is sold out. */
+		FAILED
+	}
+}
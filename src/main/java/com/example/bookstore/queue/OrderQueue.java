@@ -0,0 +1,376 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.bookstore.queue;
+
+import static org.springframework.data.mongodb.core.query.Criteria.*;
+import static org.springframework.data.mongodb.core.query.Query.*;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import org.bson.types.ObjectId;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.domain.Sort.Direction;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.PartialIndexFilter;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.lang.Nullable;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.web.server.ResponseStatusException;
+
+import com.example.bookstore.Book;
+import com.example.bookstore.BookSoldOutException;
+import com.example.bookstore.Customer;
+import com.example.bookstore.IdempotencyKeys;
+import com.example.bookstore.Order;
+import com.example.bookstore.queue.OrderIntent.Status;
+
+/**
+ * Work queue of {@link OrderIntent order intents} held in the {@literal order_queue} collection. Accepting an order
+ * takes just a single insert, while a pool of workers places them in the background using the very same order service
+ * as the synchronous endpoint, so that the latency of accepting an order no longer depends on the one of the
+ * transaction placing it.
+ * <p>
+ * Workers claim up to {@code batch-size} intents at a time, one {@literal findAndModify} each, which hides a claimed
+ * intent from the other workers for {@code lease}. Should a worker die, the intent becomes visible again once the lease
+ * has expired. Each {@link Order} is placed with an {@link IdempotencyKeys idempotency key}, so that an intent claimed
+ * twice is still placed only once. Completing an intent is conditional on the number of attempts the claim has seen,
+ * so a worker whose lease has expired in the meantime cannot overwrite the outcome of the one that took over.
+ * <p>
+ * Sold out and unknown {@link Book books} fail right away. Other errors put the intent back after a delay growing with
+ * the number of attempts until {@code max-attempts} have been made.
+ *
+ * @author Christoph Strobl
+ */
+public class OrderQueue {
+
+	public static final String COLLECTION = "order_queue";
+
+	private final MongoOperations mongoOps;
+	private final Placement placement;
+	private final int workers;
+	private final int batchSize;
+	private final Duration pollInterval;
+	private final Duration lease;
+	private final int maxAttempts;
+
+	private final Object signal = new Object();
+	private final List<Thread> threads = new ArrayList<>();
+
+	private final LongAdder submitted = new LongAdder();
+	private final LongAdder claimed = new LongAdder();
+	private final LongAdder placed = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	private final LongAdder retried = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+
+	public OrderQueue(MongoOperations mongoOps, Placement placement, int workers, int batchSize, Duration pollInterval,
+			Duration lease, int maxAttempts) {
+
+		this.mongoOps = mongoOps;
+		this.placement = placement;
+		this.workers = workers;
+		this.batchSize = batchSize;
+		this.pollInterval = pollInterval;
+		this.lease = lease;
+		this.maxAttempts = maxAttempts;
+	}
+
+	/**
+	 * Create the indexes to claim the next visible intent and to reject intents re-using an idempotency key. Then start
+	 * the workers.
+	 */
+	public void start() {
+
+		mongoOps.indexOps(COLLECTION).ensureIndex(new Index() //
+				.on("status", Direction.ASC) //
+				.on("visible_at", Direction.ASC) //
+				.named("status_visible_at"));
+		mongoOps.indexOps(COLLECTION).ensureIndex(new Index() //
+				.on("by", Direction.ASC) //
+				.on("idempotency_key", Direction.ASC) //
+				.unique() //
+				.partial(PartialIndexFilter.of(where("idempotency_key").exists(true))) //
+				.named("by_idempotency_key"));
+
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("order-queue-");
+		threadFactory.setDaemon(true);
+
+		for (int i = 0; i < workers; i++) {
+
+			Thread thread = threadFactory.newThread(this::work);
+			threads.add(thread);
+			thread.start();
+		}
+	}
+
+	public void stop() {
+		threads.forEach(Thread::interrupt);
+	}
+
+	/**
+	 * Accept an order for the given {@link Book} with a single insert. Submitting the same idempotency key again returns
+	 * the intent accepted before.
+	 *
+	 * @param customer
+	 * @param book the id of the {@link Book}.
+	 * @param idempotencyKey can be {@literal null}.
+	 * @return the {@link Status#PENDING pending} intent.
+	 */
+	public OrderIntent submit(Customer customer, String book, @Nullable String idempotencyKey) {
+
+		Date now = new Date();
+		OrderIntent intent = new OrderIntent(new ObjectId().toHexString(), customer.getEmail(), book, idempotencyKey,
+				Status.PENDING, now, now, 0, null, null);
+
+		try {
+			mongoOps.insert(intent, COLLECTION);
+		} catch (DuplicateKeyException e) {
+
+			OrderIntent existing = idempotencyKey != null ? mongoOps.findOne(
+					query(where("customer").is(customer.getEmail()).and("idempotencyKey").is(idempotencyKey)), OrderIntent.class,
+					COLLECTION) : null;
+			if (existing == null) {
+				throw e;
+			}
+			return existing;
+		}
+
+		submitted.increment();
+
+		synchronized (signal) {
+			signal.notify();
+		}
+
+		return intent;
+	}
+
+	/**
+	 * @param id
+	 * @return the intent with the given id, if any.
+	 */
+	public Optional<OrderIntent> findById(String id) {
+		return ObjectId.isValid(id) ? Optional.ofNullable(mongoOps.findById(id, OrderIntent.class, COLLECTION))
+				: Optional.empty();
+	}
+
+	/**
+	 * @return number of intents submitted, claimed, placed, failed and retried by this instance.
+	 */
+	public Map<String, Object> snapshot() {
+
+		Map<String, Object> snapshot = new TreeMap<>();
+		snapshot.put("workers", workers);
+		snapshot.put("submitted", submitted.sum());
+		snapshot.put("claimed", claimed.sum());
+		snapshot.put("placed", placed.sum());
+		snapshot.put("failed", failed.sum());
+		snapshot.put("retried", retried.sum());
+		snapshot.put("errors", errors.sum());
+		return snapshot;
+	}
+
+	private void work() {
+
+		while (!Thread.currentThread().isInterrupted()) {
+
+			try {
+
+				List<OrderIntent> batch = claim();
+				if (batch.isEmpty()) {
+					await();
+				} else {
+					process(batch);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (RuntimeException e) {
+
+				errors.increment();
+				try {
+					TimeUnit.MILLISECONDS.sleep(pollInterval.toMillis());
+				} catch (InterruptedException interrupted) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Claim up to {@code batch-size} visible intents, the ones visible the longest first.
+	 */
+	List<OrderIntent> claim() {
+
+		List<OrderIntent> batch = new ArrayList<>(batchSize);
+
+		while (batch.size() < batchSize) {
+
+			Date now = new Date();
+			OrderIntent intent = mongoOps.findAndModify( //
+					query(where("status").in(Status.PENDING, Status.CLAIMED).and("visibleAt").lte(now)) //
+							.with(Sort.by("visibleAt")), //
+					new Update().set("status", Status.CLAIMED) //
+							.set("visibleAt", new Date(now.getTime() + lease.toMillis())) //
+							.inc("attempts", 1), //
+					FindAndModifyOptions.options().returnNew(true), OrderIntent.class, COLLECTION);
+
+			if (intent == null) {
+				break;
+			}
+			batch.add(intent);
+		}
+
+		claimed.add(batch.size());
+		return batch;
+	}
+
+	/**
+	 * Load the {@link Book books} of the entire batch at once, then place one {@link Order} after the other.
+	 */
+	private void process(List<OrderIntent> batch) {
+
+		Set<String> ids = batch.stream().map(OrderIntent::getBook).collect(Collectors.toSet());
+		Map<String, Book> books = mongoOps.find(query(where("id").in(ids)), Book.class).stream()
+				.collect(Collectors.toMap(Book::getId, Function.identity(), (left, right) -> left, LinkedHashMap::new));
+
+		for (OrderIntent intent : batch) {
+
+			if (Thread.currentThread().isInterrupted()) {
+				return; // visible again once the lease expires
+			}
+
+			Book book = books.get(intent.getBook());
+			if (book == null) {
+				fail(intent, String.format("No book found for id %s", intent.getBook()));
+				continue;
+			}
+
+			Customer customer = Customer.of(intent.getCustomer());
+			String key = intent.getIdempotencyKey() != null ? intent.getIdempotencyKey() : intent.getId();
+
+			try {
+
+				Order order = placement.buy(customer, book, key);
+				complete(intent, order.getId() != null ? order.getId() : findOrderId(customer, key));
+			} catch (BookSoldOutException | UnsupportedOperationException e) {
+				fail(intent, e.getMessage());
+			} catch (ResponseStatusException e) {
+				fail(intent, e.getReason()); // key used for another book within the same batch
+			} catch (RuntimeException e) {
+
+				if (IdempotencyKeys.isDuplicateKey(e)) {
+
+					Order order = mongoOps.findOne(IdempotencyKeys.query(customer, key), Order.class);
+					if (order != null && IdempotencyKeys.isFor(order, Collections.singletonList(book.getId()))) {
+						complete(intent, order.getId());
+						continue;
+					}
+					if (order != null) {
+						fail(intent, String.format("%s has already been used for another order.", IdempotencyKeys.HEADER));
+						continue;
+					}
+				}
+
+				retryOrFail(intent, e);
+			}
+		}
+	}
+
+	@Nullable
+	private String findOrderId(Customer customer, String key) {
+
+		Order order = mongoOps.findOne(IdempotencyKeys.query(customer, key), Order.class);
+		return order != null ? order.getId() : null;
+	}
+
+	private void complete(OrderIntent intent, @Nullable String order) {
+
+		if (finish(intent, new Update().set("status", Status.PLACED).set("order", order))) {
+			placed.increment();
+		}
+	}
+
+	private void fail(OrderIntent intent, @Nullable String error) {
+
+		if (finish(intent, new Update().set("status", Status.FAILED).set("error", error))) {
+			failed.increment();
+		}
+	}
+
+	private void retryOrFail(OrderIntent intent, RuntimeException error) {
+
+		if (intent.getAttempts() >= maxAttempts) {
+
+			fail(intent, String.format("Gave up after %s attempts: %s", intent.getAttempts(), error.getMessage()));
+			return;
+		}
+
+		long delay = pollInterval.toMillis() << Math.min(intent.getAttempts(), 10);
+		if (finish(intent, new Update().set("status", Status.PENDING) //
+				.set("visibleAt", new Date(System.currentTimeMillis() + delay)) //
+				.set("error", error.getMessage()))) {
+			retried.increment();
+		}
+	}
+
+	/**
+	 * Update the intent unless it has been claimed by someone else in the meantime.
+	 */
+	private boolean finish(OrderIntent intent, Update update) {
+
+		return mongoOps.updateFirst(query(where("id").is(intent.getId()) //
+				.and("status").is(Status.CLAIMED) //
+				.and("attempts").is(intent.getAttempts())), update, OrderIntent.class, COLLECTION) //
+				.getModifiedCount() == 1;
+	}
+
+	private void await() throws InterruptedException {
+
+		synchronized (signal) {
+			signal.wait(pollInterval.toMillis());
+		}
+	}
+
+	/**
+	 * Places a single {@link Order}, eg. via {@link com.example.bookstore.sync.OrderService}.
+	 */
+	@FunctionalInterface
+	public interface Placement {
+
+		/**
+		 * @param customer
+		 * @param book
+		 * @param idempotencyKey
+		 * @return the placed {@link Order}.
+		 */
+		Order buy(Customer customer, Book book, String idempotencyKey);
+	}
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.bookstore.queue;
+
+import lombok.RequiredArgsConstructor;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.net.URI;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.reactive.function.server.ServerRequest;
+import org.springframework.web.reactive.function.server.ServerResponse;
+import org.springframework.web.server.ResponseStatusException;
+
+import com.example.bookstore.BookstoreHandler;
+import com.example.bookstore.Customer;
+import com.example.bookstore.IdempotencyKeys;
+
+/**
+ * Web request handler accepting orders via the {@link OrderQueue} instead of placing them within the request.
+ *
+ * @author Christoph Strobl
+ */
+@RequiredArgsConstructor
+public class OrderQueueHandler {
+
+	private final OrderQueue orderQueue;
+
+	/**
+	 * Accept an order for a specific {@link com.example.bookstore.Book}, answered with {@literal 202 Accepted} and the
+	 * location of the {@link OrderIntent} to poll. Requests carrying an {@link IdempotencyKeys#HEADER Idempotency-Key}
+	 * already used by the customer are answered with the intent accepted before.
+	 *
+	 * @param request
+	 * @return
+	 */
+	public Mono<ServerResponse> accept(ServerRequest request) {
+
+		Customer customer = Customer.of(request.queryParam("customer").orElse(Customer.guest().getEmail()));
+		String book = request.pathVariable("book");
+		String key = BookstoreHandler.idempotencyKey(request).orElse(null);
+
+		return Mono.fromCallable(() -> orderQueue.submit(customer, book, key)) //
+				.subscribeOn(Schedulers.elastic()) //
+				.flatMap(intent -> {
+
+					if (!intent.getBook().equals(book)) {
+						return Mono.error(new ResponseStatusException(HttpStatus.UNPROCESSABLE_ENTITY,
+								String.format("%s has already been used for another order.", IdempotencyKeys.HEADER)));
+					}
+
+					return ServerResponse.accepted().location(URI.create("/order/" + intent.getId())).syncBody(intent);
+				});
+	}
+
+	/**
+	 * Process a {@link ServerRequest} for the {@link OrderIntent} with the given id, answered with {@literal 404} if
+	 * there is none.
+	 *
+	 * @param request
+	 * @return
+	 */
+	public Mono<ServerResponse> status(ServerRequest request) {
+
+		String id = request.pathVariable("id");
+
+		return Mono.fromCallable(() -> orderQueue.findById(id)) //
+				.subscribeOn(Schedulers.elastic()) //
+				.flatMap(intent -> intent.isPresent() ? ServerResponse.ok().syncBody(intent.get())
+						: ServerResponse.notFound().build());
+	}
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.bookstore.reactive.transaction;
+
+import reactor.core.Disposable;
+import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.UnicastProcessor;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Primary;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Service;
+
+import com.example.bookstore.AppProfiles;
+import com.example.bookstore.Book;
+import com.example.bookstore.Customer;
+import com.example.bookstore.Order;
+import com.example.bookstore.OrderBatch;
+import com.example.bookstore.catalog.SoldOutBooks;
+import com.example.bookstore.retry.TransactionRetryPolicy;
+
+/**
+ * {@link ReactiveOrderService} collecting concurrent orders for single {@link Book books} for up to
+ * {@code bookstore.coalesce.window-ms} or until {@code bookstore.coalesce.max-batch-size} of them are waiting, to then
+ * place them all at once via {@link ReactiveOrderService#buy(OrderBatch)}. Each subscriber receives the outcome of its
+ * very own order for up to {@code bookstore.coalesce.timeout-ms}. Batches are placed one after another, so they do not
+ * conflict with each other on hot {@link Book books}.
+ * <p>
+ * At most {@code bookstore.coalesce.max-pending} orders may wait at a time, further ones are rejected with a
+ * {@link RejectedExecutionException}. Should the batching ever terminate, the orders still waiting fail and a new one
+ * takes over.
+ *
+ * @author Christoph Strobl
+ */
+@Service
+@Primary
+@Profile(AppProfiles.COALESCE + " & " + AppProfiles.REACTIVE_TRANSACTION)
+public class CoalescingReactiveOrderService extends ReactiveOrderService implements DisposableBean {
+
+	private final Duration window;
+	private final int maxBatchSize;
+	private final int maxPending;
+	private final Duration timeout;
+
+	private volatile Batching batching;
+	private volatile boolean destroyed;
+
+	public CoalescingReactiveOrderService(ReactiveMongoOperations mongoOperations,
+			Optional<TransactionRetryPolicy> retryPolicy, Optional<SoldOutBooks> soldOutBooks,
+			@Value("${bookstore.coalesce.window-ms:5}") long window,
+			@Value("${bookstore.coalesce.max-batch-size:64}") int maxBatchSize,
+			@Value("${bookstore.coalesce.max-pending:4096}") int maxPending,
+			@Value("${bookstore.coalesce.timeout-ms:10000}") long timeout) {
+
+		super(mongoOperations, retryPolicy, soldOutBooks);
+
+		this.window = Duration.ofMillis(window);
+		this.maxBatchSize = maxBatchSize;
+		this.maxPending = maxPending;
+		this.timeout = Duration.ofMillis(timeout);
+		this.batching = new Batching();
+	}
+
+	@Override
+	public Mono<Order> buy(Customer customer, Book book, @Nullable String idempotencyKey) {
+
+		return rejectIfSoldOut(Arrays.asList(book)).then(withRetry(Mono.defer(() -> {
+
+			OrderBatch.Request request = OrderBatch.request(customer, book, idempotencyKey);
+			if (!batching.submit(request)) {
+				return Mono.error(new RejectedExecutionException(
+						String.format("More than %s orders waiting to be placed.", maxPending)));
+			}
+
+			return Mono.fromFuture(request.getResult()) //
+					.timeout(timeout, Mono.error(() -> new IllegalStateException(String.format(
+							"No outcome for the order within %s ms, it may still be placed.", timeout.toMillis()))));
+		})));
+	}
+
+	@Override
+	public void destroy() {
+
+		destroyed = true;
+		batching.terminate(new IllegalStateException("Shutting down."));
+	}
+
+	/**
+	 * A single subscription collecting {@link OrderBatch.Request requests} into batches along with the requests it
+	 * holds. {@code bufferTimeout} cannot hold back its timer, so batches wait in an unbounded buffer while the
+	 * previous one is placed. Their number is bounded by the requests admitted.
+	 */
+	private class Batching {
+
+		private final Set<OrderBatch.Request> pending = ConcurrentHashMap.newKeySet();
+		private final FluxSink<OrderBatch.Request> requests;
+		private final Disposable subscription;
+
+		Batching() {
+
+			UnicastProcessor<OrderBatch.Request> processor = UnicastProcessor.create();
+
+			this.requests = processor.sink();
+			this.subscription = processor //
+					.bufferTimeout(maxBatchSize, window) //
+					.onBackpressureBuffer() //
+					.map(OrderBatch::new) //
+					.concatMap(batch -> buy(batch) //
+							.doOnNext(batch::complete) //
+							.doOnError(batch::fail) //
+							.onErrorResume(it -> Mono.empty())) //
+					.subscribe(null, this::restart, //
+							() -> restart(new IllegalStateException("Order batching has ended.")));
+		}
+
+		/**
+		 * @return {@literal false} if too many requests are waiting already.
+		 */
+		boolean submit(OrderBatch.Request request) {
+
+			if (pending.size() >= maxPending) {
+				return false;
+			}
+
+			pending.add(request);
+			request.getResult().whenComplete((order, error) -> pending.remove(request));
+			requests.next(request);
+			return true;
+		}
+
+		void restart(Throwable error) {
+
+			if (!destroyed) {
+				batching = new Batching();
+			}
+			terminate(error);
+		}
+
+		void terminate(Throwable error) {
+
+			subscription.dispose();
+			pending.forEach(it -> it.getResult().completeExceptionally(error));
+		}
+	}
+}
@@ -15,16 +15,36 @@
  */
 package com.example.bookstore.reactive.transaction;
 
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
 import org.springframework.context.annotation.Profile;
+import org.springframework.data.mongodb.repository.Query;
 import org.springframework.data.repository.reactive.ReactiveCrudRepository;
 
 import com.example.bookstore.AppProfiles;
 import com.example.bookstore.Book;
 
 /**
+ * Reads leave out the {@literal checkout} history embedded by the {@link AppProfiles#SYNC_ATOMIC} sample, which is not
+ * part of the {@link Book} anyway.
+ *
  * @author Christoph Strobl
  */
 @Profile({ AppProfiles.REACTIVE_TRANSACTION })
 public interface ReactiveBookRepository extends ReactiveCrudRepository<Book, String> {
 
+	String CATALOG_FIELDS = "{ 'checkout' : 0 }";
+
+	@Override
+	@Query(value = "{}", fields = CATALOG_FIELDS)
+	Flux<Book> findAll();
+
+	@Override
+	@Query(value = "{ '_id' : ?0 }", fields = CATALOG_FIELDS)
+	Mono<Book> findById(String id);
+
+	@Override
+	@Query(value = "{ '_id' : { '$in' : ?0 } }", fields = CATALOG_FIELDS)
+	Flux<Book> findAllById(Iterable<String> ids);
 }
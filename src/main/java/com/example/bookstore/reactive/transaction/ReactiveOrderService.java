@@ -23,20 +23,39 @@ import reactor.core.publisher.Mono;
 
 import java.util.Arrays;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+import org.bson.Document;
 
 import org.springframework.context.annotation.Profile;
 import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.lang.Nullable;
 import org.springframework.stereotype.Service;
+import org.springframework.util.Assert;
 
 import com.example.bookstore.AppProfiles;
 import com.example.bookstore.Book;
 import com.example.bookstore.BookSoldOutException;
 import com.example.bookstore.Customer;
+import com.example.bookstore.IdempotencyKeys;
 import com.example.bookstore.Order;
+import com.example.bookstore.OrderBatch;
+import com.example.bookstore.catalog.SoldOutBooks;
+import com.example.bookstore.retry.TransactionRetryPolicy;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.Updates;
 
 /**
- * Reactive OrderService using MongoDB 4.0 transactions.
+ * Reactive OrderService using MongoDB 4.0 transactions. Once
+ * {@link AppProfiles#RETRYABLE_TRANSACTION retry} is active, transactions failing with a transient error are retried
+ * as defined by the {@link TransactionRetryPolicy}.
  *
  * @author Christoph Strobl
  */
@@ -46,6 +65,8 @@ import com.example.bookstore.Order;
 public class ReactiveOrderService {
 
 	private final ReactiveMongoOperations mongoOperations;
+	private final Optional<TransactionRetryPolicy> retryPolicy;
+	private final Optional<SoldOutBooks> soldOutBooks;
 
 	/**
 	 * Place the order for a specific {@link Book}.
@@ -55,10 +76,26 @@ public class ReactiveOrderService {
 	 * @return
 	 */
 	public Mono<Order> buy(Customer customer, Book book) {
+		return buy(customer, book, null);
+	}
 
-		return mongoOperations.inTransaction().execute(action -> {
+	/**
+	 * Place the order for a specific {@link Book} along with the given
+	 * {@link com.example.bookstore.IdempotencyKeys idempotency key}. The {@link Order} is inserted first, so that a
+	 * duplicate key fails the transaction with a {@link org.springframework.dao.DuplicateKeyException} before touching
+	 * the stock.
+	 *
+	 * @param customer
+	 * @param book
+	 * @param idempotencyKey can be {@literal null}.
+	 * @return
+	 */
+	public Mono<Order> buy(Customer customer, Book book, @Nullable String idempotencyKey) {
 
-			return action.save(new Order(customer.getEmail(), new Date(), Arrays.asList(book)))
+		return rejectIfSoldOut(Arrays.asList(book)).then(withRetry(mongoOperations.inTransaction().execute(action -> {
+
+			return action
+					.save(new Order(customer.getEmail(), new Date(), Arrays.asList(book)).withIdempotencyKey(idempotencyKey))
 
 					.flatMap(order -> {
 
@@ -69,12 +106,119 @@ public class ReactiveOrderService {
 								.map(result -> {
 
 									if (result.getModifiedCount() == 0) {
+
+										soldOutBooks.ifPresent(it -> it.markSoldOut(book.getId()));
 										throw new BookSoldOutException(book);
 									}
 
 									return order;
 								});
 					});
-		}).next();
+		}).next()));
+	}
+
+	/**
+	 * Place a single order for all given {@link Book books}. Either all of them are bought or none.
+	 *
+	 * @param customer
+	 * @param books
+	 * @return
+	 */
+	public Mono<Order> buy(Customer customer, List<Book> books) {
+
+		Assert.notEmpty(books, "Books must not be empty!");
+
+		List<UpdateOneModel<Document>> updates = books.stream()
+				.collect(Collectors.groupingBy(Book::getId, LinkedHashMap::new, Collectors.summingInt(it -> 1))) //
+				.entrySet().stream() //
+				.map(it -> new UpdateOneModel<Document>( //
+						Filters.and(Filters.eq("_id", it.getKey()), Filters.gte("available", it.getValue())), //
+						Updates.inc("available", -it.getValue()))) //
+				.collect(Collectors.toList());
+
+		return rejectIfSoldOut(books).then(withRetry(mongoOperations.inTransaction().execute(action -> {
+
+			return action.save(new Order(customer.getEmail(), new Date(), books))
+
+					.flatMap(order -> {
+
+						return action
+								.execute(Book.class,
+										collection -> collection.bulkWrite(updates, new BulkWriteOptions().ordered(false))) //
+								.next() //
+								.map(result -> {
+
+									if (result.getModifiedCount() != updates.size()) {
+										throw new BookSoldOutException(books);
+									}
+
+									return order;
+								});
+					});
+		}).next()));
+	}
+
+	/**
+	 * Place all orders of the given {@link OrderBatch} within one transaction reading the stock of all requested
+	 * {@link Book books} at once, updating each one of them just once and inserting all {@link Order orders} with a
+	 * single command. Requests already placed with their idempotency key are left to look up the existing
+	 * {@link Order}, see {@link OrderBatch#replay(List)}.
+	 *
+	 * @param batch
+	 * @return the written {@link Order orders}, emitted once the transaction has been committed.
+	 */
+	public Mono<List<Order>> buy(OrderBatch batch) {
+
+		return mongoOperations.inTransaction().execute(action -> {
+
+			Mono<Void> replay = IdempotencyKeys.query(batch) //
+					.map(it -> action.find(it, Order.class).collectList().doOnNext(batch::replay).then()) //
+					.orElseGet(Mono::empty);
+
+			return replay.then(Mono.defer(() -> {
+
+				Query query = query(where("id").in(batch.getBookIds()));
+				query.fields().include("stock");
+
+				return action.find(query, Book.class) //
+						.collectMap(Book::getId, Book::getStock) //
+						.flatMap(stock -> {
+
+							List<UpdateOneModel<Document>> updates = batch.allocate(stock).entrySet().stream() //
+									.map(it -> new UpdateOneModel<Document>( //
+											Filters.and(Filters.eq("_id", it.getKey()), Filters.gte("available", it.getValue())), //
+											Updates.inc("available", -it.getValue()))) //
+									.collect(Collectors.toList());
+
+							Mono<?> decrement = updates.isEmpty() ? Mono.empty()
+									: action.execute(Book.class,
+											collection -> collection.bulkWrite(updates, new BulkWriteOptions().ordered(false))) //
+											.next() //
+											.doOnNext(result -> {
+
+												if (result.getModifiedCount() != updates.size()) {
+													throw new IllegalStateException("Stock changed while placing the batch.");
+												}
+											});
+
+							List<Order> orders = batch.getOrders();
+							return decrement.then(orders.isEmpty() ? Mono.just(orders) : action.insertAll(orders).collectList());
+						});
+			}));
+		}).single();
+	}
+
+	/**
+	 * Reject orders for {@link Book books} known to the {@link SoldOutBooks} before opening a transaction.
+	 *
+	 * @param books
+	 * @return
+	 */
+	protected Mono<Void> rejectIfSoldOut(List<Book> books) {
+		return soldOutBooks.isPresent() ? Mono.fromRunnable(() -> soldOutBooks.get().check(books)) : Mono.empty();
+	}
+
+	protected <T> Mono<T> withRetry(Mono<T> source) {
+		return retryPolicy.isPresent() ? retryPolicy.get().retry(source) : source;
 	}
 }
@@ -15,21 +15,39 @@
  */
 package com.example.bookstore.reactive.web;
 
+import static org.springframework.data.mongodb.core.query.Criteria.*;
 import static org.springframework.web.reactive.function.server.ServerResponse.*;
 
 import lombok.RequiredArgsConstructor;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.Collectors;
+
+import org.bson.Document;
 import org.springframework.context.annotation.Profile;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Component;
 import org.springframework.web.reactive.function.server.ServerRequest;
 import org.springframework.web.reactive.function.server.ServerResponse;
 
 import com.example.bookstore.AppProfiles;
 import com.example.bookstore.Book;
+import com.example.bookstore.BookView;
 import com.example.bookstore.BookstoreHandler;
 import com.example.bookstore.Customer;
+import com.example.bookstore.IdempotencyKeys;
+import com.example.bookstore.LegacyBookReferences;
 import com.example.bookstore.Order;
+import com.example.bookstore.OrderHistory;
+import com.example.bookstore.catalog.BookCatalogCache;
 import com.example.bookstore.reactive.transaction.ReactiveBookRepository;
 import com.example.bookstore.reactive.transaction.ReactiveOrderService;
 
@@ -45,25 +63,136 @@ public class ReactiveBookstoreHandler implements BookstoreHandler {
 
 	private final ReactiveBookRepository bookRepository;
 	private final ReactiveOrderService orderService;
+	private final ReactiveMongoOperations mongoOps;
+	private final Optional<BookCatalogCache> catalogCache;
+	private final IdempotencyKeys idempotencyKeys;
 
+	/**
+	 * Just the fields of the requested {@link BookView} are read unless the {@link BookCatalogCache} holds the entire
+	 * {@link Book books} anyway.
+	 */
 	@Override
 	public Mono<ServerResponse> books(ServerRequest request) {
 
-		return ok().body(bookRepository.findAll(), Book.class);
+		BookView view = BookstoreHandler.view(request);
+
+		Flux<?> books = catalogCache //
+				.<Flux<?>> map(it -> it.findAll(bookRepository.findAll())) //
+				.orElseGet(() -> view.isDetail() ? bookRepository.findAll() //
+						: mongoOps.find(view.project(new Query()), view.getType(), //
+								mongoOps.getCollectionName(Book.class)));
+
+		return ok().body(books.map(view::render), Object.class);
 	}
 
 	@Override
 	public Mono<ServerResponse> book(ServerRequest request) {
-		return ok().body(bookRepository.findById(request.pathVariable("book")), Book.class);
+
+		BookView view = BookstoreHandler.view(request);
+		if (view.isDetail() || catalogCache.isPresent()) {
+			return ok().body(bookById(request).map(view::render), Object.class);
+		}
+
+		Query query = view.project(new Query(where("_id").is(request.pathVariable("book"))));
+
+		return ok().body(mongoOps.findOne(query, view.getType(), mongoOps.getCollectionName(Book.class)) //
+				.map(view::render), Object.class);
 	}
 
+	/**
+	 * Orders placed with an idempotency key are answered from the {@link IdempotencyKeys} cache if recently placed.
+	 * Otherwise the order is placed, just to look up the existing one if the key turns out to be taken. Orders rejected
+	 * for too many waiting to be placed are answered with {@literal 503 Service Unavailable}.
+	 */
 	@Override
 	public Mono<ServerResponse> order(ServerRequest request) {
 
+		Customer customer = Customer.of(request.queryParam("customer").orElse(Customer.guest().getEmail()));
+		Optional<String> key = BookstoreHandler.idempotencyKey(request);
+
+		if (!key.isPresent()) {
+			return orUnavailable(bookById(request) //
+					.flatMap(book -> orderService.buy(customer, book)) //
+					.flatMap(order -> ok().syncBody(order)));
+		}
+
+		String id = request.pathVariable("book");
+		Optional<Order> placed = idempotencyKeys.cached(customer, key.get());
+		if (placed.isPresent()) {
+			return BookstoreHandler.replay(placed.get(), id);
+		}
+
+		return orUnavailable(bookById(request) //
+				.flatMap(book -> orderService.buy(customer, book, key.get())) //
+				.flatMap(order -> ok().syncBody(idempotencyKeys.remember(order))) //
+				.onErrorResume(IdempotencyKeys::isDuplicateKey,
+						error -> mongoOps.findOne(IdempotencyKeys.query(customer, key.get()), Order.class) //
+								.flatMap(order -> BookstoreHandler.replay(idempotencyKeys.remember(order), id)) //
+								.switchIfEmpty(Mono.error(error))));
+	}
+
+	@Override
+	public Mono<ServerResponse> orders(ServerRequest request) {
+
 		Customer customer = Customer.of(request.queryParam("customer").orElse(Customer.guest().getEmail()));
 
 		return ok() //
-				.body(bookRepository.findById(request.pathVariable("book")) //
-						.flatMap(book -> orderService.buy(customer, book)), Order.class);
+				.body(BookstoreHandler.bookIds(request) //
+						.flatMap(this::booksById) //
+						.flatMap(books -> orderService.buy(customer, books)), Order.class);
+	}
+
+	/**
+	 * {@link Order Orders} still referencing their {@link Book books} get those resolved with a single query per page,
+	 * as the reactive infrastructure does not resolve {@link com.mongodb.DBRef DBRefs} at all.
+	 */
+	@Override
+	public Mono<ServerResponse> customerOrders(ServerRequest request) {
+
+		Customer customer = Customer.of(request.pathVariable("customer"));
+		int limit = BookstoreHandler.historyLimit(request);
+		Query query = BookstoreHandler.historyQuery(request, customer, limit);
+
+		return ok().body(mongoOps.find(query, Document.class, mongoOps.getCollectionName(Order.class)) //
+				.collectList() //
+				.flatMap(orders -> LegacyBookReferences.query(orders) //
+						.map(books -> mongoOps.find(books, Document.class, mongoOps.getCollectionName(Book.class)) //
+								.collectList() //
+								.map(it -> LegacyBookReferences.embed(orders, it))) //
+						.orElseGet(() -> Mono.just(orders))) //
+				.map(orders -> OrderHistory.of(orders.stream() //
+						.map(it -> mongoOps.getConverter().read(Order.class, it)) //
+						.collect(Collectors.toList()), limit)), OrderHistory.class);
+	}
+
+	private static Mono<ServerResponse> orUnavailable(Mono<ServerResponse> response) {
+
+		return response.onErrorResume(RejectedExecutionException.class, it -> status(HttpStatus.SERVICE_UNAVAILABLE) //
+				.header(HttpHeaders.RETRY_AFTER, "1") //
+				.build());
+	}
+
+	private Mono<Book> bookById(ServerRequest request) {
+
+		String id = request.pathVariable("book");
+		Mono<Book> book = bookRepository.findById(id);
+
+		return catalogCache.map(it -> it.findById(id, book)).orElse(book);
+	}
+
+	/**
+	 * Load all {@link Book books} with a single query retaining the order and multiplicity of the given ids.
+	 */
+	private Mono<List<Book>> booksById(List<String> ids) {
+
+		return bookRepository.findAllById(new HashSet<>(ids)) //
+				.collectMap(Book::getId) //
+				.map(books -> ids.stream().map(id -> {
+
+					if (!books.containsKey(id)) {
+						throw new RuntimeException(String.format("No book found for id %s", id));
+					}
+					return books.get(id);
+				}).collect(Collectors.toList()));
 	}
 }
@@ -0,0 +1,284 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.bookstore.retry;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.lang.Nullable;
+import org.springframework.retry.RetryCallback;
+import org.springframework.retry.RetryContext;
+import org.springframework.retry.RetryPolicy;
+import org.springframework.retry.backoff.BackOffContext;
+import org.springframework.retry.backoff.BackOffInterruptedException;
+import org.springframework.retry.backoff.BackOffPolicy;
+import org.springframework.retry.context.RetryContextSupport;
+import org.springframework.retry.listener.RetryListenerSupport;
+import org.springframework.retry.support.RetryTemplate;
+
+import com.mongodb.MongoException;
+
+/**
+ * Retry policy for MongoDB transactions shared by the synchronous and the reactive order services. Only errors carrying
+ * one of the {@link #RETRYABLE_LABELS} are retried, everything else (eg.
+ * {@link com.example.bookstore.BookSoldOutException}) fails right away.
+ * <p>
+ * Retries back off exponentially starting at {@code initialBackoff}, capped at {@code maxBackoff}, using full jitter so
+ * that conflicting transactions do not all come back at the very same time. No retry is started once
+ * {@code deadline} has passed since the first attempt.
+ *
+ * @author Christoph Strobl
+ * @see <a href="https://docs.mongodb.com/manual/core/transactions/#retry-transaction">MongoDB - Retry Transaction</a>
+ */
+public class TransactionRetryPolicy {
+
+	public static final List<String> RETRYABLE_LABELS = Arrays.asList(MongoException.TRANSIENT_TRANSACTION_ERROR_LABEL,
+			MongoException.UNKNOWN_TRANSACTION_COMMIT_RESULT_LABEL);
+
+	private final Duration initialBackoff;
+	private final Duration maxBackoff;
+	private final Duration deadline;
+	private final int maxAttempts;
+
+	private final Map<String, LongAdder> errors = new LinkedHashMap<>();
+	private final LongAdder retries = new LongAdder();
+	private final LongAdder recovered = new LongAdder();
+	private final LongAdder exhausted = new LongAdder();
+
+	/**
+	 * @param initialBackoff upper bound of the first backoff.
+	 * @param maxBackoff upper bound of any backoff.
+	 * @param deadline time after the first attempt no retry is started.
+	 * @param maxAttempts maximum number of attempts including the first one.
+	 */
+	public TransactionRetryPolicy(Duration initialBackoff, Duration maxBackoff, Duration deadline, int maxAttempts) {
+
+		this.initialBackoff = initialBackoff;
+		this.maxBackoff = maxBackoff;
+		this.deadline = deadline;
+		this.maxAttempts = maxAttempts;
+
+		RETRYABLE_LABELS.forEach(label -> errors.put(label, new LongAdder()));
+	}
+
+	/**
+	 * @param error
+	 * @return the retryable label of the given error or any of its causes. {@literal null} if none.
+	 */
+	@Nullable
+	public static String retryableLabel(@Nullable Throwable error) {
+
+		for (Throwable current = error; current != null; current = current.getCause()) {
+
+			if (current instanceof MongoException) {
+				for (String label : RETRYABLE_LABELS) {
+					if (((MongoException) current).hasErrorLabel(label)) {
+						return label;
+					}
+				}
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * @return a {@link RetryTemplate} applying this policy to blocking calls.
+	 */
+	public RetryTemplate retryTemplate() {
+
+		RetryTemplate template = new RetryTemplate();
+		template.setRetryPolicy(new LabelRetryPolicy());
+		template.setBackOffPolicy(new JitterBackOffPolicy());
+		template.registerListener(new RetryListenerSupport() {
+
+			@Override
+			public <T, E extends Throwable> void close(RetryContext context, RetryCallback<T, E> callback,
+					@Nullable Throwable error) {
+				completed(context.getRetryCount() > 0, error);
+			}
+		});
+		return template;
+	}
+
+	/**
+	 * Apply this policy to the given {@link Mono}, resubscribing to it for each retry.
+	 *
+	 * @param source
+	 * @return
+	 */
+	public <T> Mono<T> retry(Mono<T> source) {
+
+		return Mono.defer(() -> {
+
+			long start = System.nanoTime();
+			LongAdder attempts = new LongAdder();
+
+			return source //
+					.retryWhen(errors -> errors.concatMap(error -> {
+
+						attempts.increment();
+						if (!shouldRetry(error, attempts.intValue(), start)) {
+							return Flux.error(error);
+						}
+
+						retries.increment();
+						return Mono.delay(backoff(attempts.intValue()));
+					})) //
+					.doOnSuccess(it -> completed(attempts.sum() > 0, null)) //
+					.doOnError(error -> completed(true, error));
+		});
+	}
+
+	/**
+	 * @return error, retry, recovery and exhaustion counters.
+	 */
+	public Map<String, Object> snapshot() {
+
+		Map<String, Object> errorsByLabel = new LinkedHashMap<>();
+		errors.forEach((label, count) -> errorsByLabel.put(label, count.sum()));
+
+		Map<String, Object> snapshot = new LinkedHashMap<>();
+		snapshot.put("errors", errorsByLabel);
+		snapshot.put("retries", retries.sum());
+		snapshot.put("recovered", recovered.sum());
+		snapshot.put("exhausted", exhausted.sum());
+		return snapshot;
+	}
+
+	/**
+	 * @param error
+	 * @param attempts number of failed attempts so far.
+	 * @param start {@link System#nanoTime()} of the first attempt.
+	 * @return
+	 */
+	boolean shouldRetry(Throwable error, int attempts, long start) {
+
+		String label = retryableLabel(error);
+		if (label == null) {
+			return false;
+		}
+
+		errors.get(label).increment();
+		return attempts < maxAttempts && System.nanoTime() - start < deadline.toNanos();
+	}
+
+	/**
+	 * @param attempts number of failed attempts so far.
+	 * @return a random duration between zero and the exponentially growing upper bound.
+	 */
+	Duration backoff(int attempts) {
+
+		long bound = Math.min(maxBackoff.toMillis(), initialBackoff.toMillis() << Math.min(attempts - 1, 30));
+		return Duration.ofMillis(ThreadLocalRandom.current().nextLong(bound + 1));
+	}
+
+	private void completed(boolean retried, @Nullable Throwable error) {
+
+		if (error == null) {
+			if (retried) {
+				recovered.increment();
+			}
+		} else if (retryableLabel(error) != null) {
+			exhausted.increment();
+		}
+	}
+
+	/**
+	 * {@link RetryPolicy} based on {@link #shouldRetry(Throwable, int, long)}.
+	 */
+	class LabelRetryPolicy implements RetryPolicy {
+
+		private static final long serialVersionUID = 1L;
+
+		private static final String START = "start";
+		private static final String RETRY = "retry";
+
+		@Override
+		public boolean canRetry(RetryContext context) {
+
+			Throwable error = context.getLastThrowable();
+			return error == null || Boolean.TRUE.equals(context.getAttribute(RETRY));
+		}
+
+		@Override
+		public RetryContext open(@Nullable RetryContext parent) {
+
+			RetryContextSupport context = new RetryContextSupport(parent);
+			context.setAttribute(START, System.nanoTime());
+			return context;
+		}
+
+		@Override
+		public void close(RetryContext context) {}
+
+		@Override
+		public void registerThrowable(RetryContext context, Throwable error) {
+
+			((RetryContextSupport) context).registerThrowable(error);
+
+			// decide once per error, as canRetry may be called multiple times
+			boolean retry = shouldRetry(error, context.getRetryCount(), (Long) context.getAttribute(START));
+			context.setAttribute(RETRY, retry);
+
+			if (retry) {
+				retries.increment();
+			}
+		}
+	}
+
+	/**
+	 * {@link BackOffPolicy} based on {@link #backoff(int)}.
+	 */
+	class JitterBackOffPolicy implements BackOffPolicy {
+
+		@Override
+		public BackOffContext start(RetryContext context) {
+			return new RetryBackOffContext(context);
+		}
+
+		@Override
+		public void backOff(BackOffContext backOffContext) throws BackOffInterruptedException {
+
+			try {
+				Thread.sleep(backoff(((RetryBackOffContext) backOffContext).context.getRetryCount()).toMillis());
+			} catch (InterruptedException e) {
+
+				Thread.currentThread().interrupt();
+				throw new BackOffInterruptedException("Thread interrupted while sleeping", e);
+			}
+		}
+	}
+
+	static class RetryBackOffContext implements BackOffContext {
+
+		private static final long serialVersionUID = 1L;
+
+		final RetryContext context;
+
+		RetryBackOffContext(RetryContext context) {
+			this.context = context;
+		}
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.bookstore.stats;
+
+import java.util.Arrays;
+
+/**
+ * Fixed size frequency table over-estimating counts by a small margin at most. Sketches of the same dimensions can be
+ * {@link #subtract(CountMinSketch) subtracted} from each other, which allows to maintain the sum of a sliding window
+ * of sketches.
+ * <p>
+ * Rows are indexed by double hashing: two independent hashes, taken from a single 64 bit hash over the characters of
+ * the key, are combined into a different index for each row. Keys sharing their {@link String#hashCode()} therefore
+ * do not end up in the same counter of every row.
+ *
+ * @author Christoph Strobl
+ * @see <a href="https://en.wikipedia.org/wiki/Count%E2%80%93min_sketch">Count-min sketch</a>
+ */
+class CountMinSketch {
+
+	private final int width;
+	private final long[][] cells;
+
+	/**
+	 * @param width number of counters per row.
+	 * @param depth number of rows.
+	 */
+	CountMinSketch(int width, int depth) {
+
+		this.width = width;
+		this.cells = new long[depth][width];
+	}
+
+	void add(String key, long count) {
+
+		long hash = hash(key);
+		for (int row = 0; row < cells.length; row++) {
+			cells[row][index(hash, row)] += count;
+		}
+	}
+
+	long estimate(String key) {
+
+		long hash = hash(key);
+		long estimate = Long.MAX_VALUE;
+		for (int row = 0; row < cells.length; row++) {
+			estimate = Math.min(estimate, cells[row][index(hash, row)]);
+		}
+		return estimate;
+	}
+
+	void subtract(CountMinSketch other) {
+
+		for (int row = 0; row < cells.length; row++) {
+			for (int column = 0; column < width; column++) {
+				cells[row][column] -= other.cells[row][column];
+			}
+		}
+	}
+
+	void clear() {
+
+		for (long[] row : cells) {
+			Arrays.fill(row, 0);
+		}
+	}
+
+	private int index(long hash, int row) {
+
+		int first = (int) hash;
+		int second = (int) (hash >>> 32) | 1; // never 0, which would put a key into the same column of all rows
+		return ((first + row * second) & Integer.MAX_VALUE) % width;
+	}
+
+	/**
+	 * FNV-1a over the characters of the key, finished with the MurmurHash3 mix so that both halves are well spread.
+	 */
+	private static long hash(String key) {
+
+		long hash = 0xCBF29CE484222325L;
+		for (int i = 0; i < key.length(); i++) {
+
+			hash ^= key.charAt(i);
+			hash *= 0x100000001B3L;
+		}
+
+		hash ^= hash >>> 33;
+		hash *= 0xFF51AFD7ED558CCDL;
+		hash ^= hash >>> 33;
+		hash *= 0xC4CEB9FE1A85EC53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+}
@@ -0,0 +1,549 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.bookstore.stats;
+
+import lombok.Value;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.function.LongSupplier;
+import java.util.function.ObjLongConsumer;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.bson.Document;
+import org.springframework.data.mongodb.core.ChangeStreamOptions;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.lang.Nullable;
+
+import com.example.bookstore.Book;
+import com.example.bookstore.BookSnapshot;
+import com.example.bookstore.LegacyBookReferences;
+import com.example.bookstore.Order;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+/**
+ * Best selling {@link Book books} within sliding time windows such as the last hour, answered from memory without
+ * looking at a single {@link Order}.
+ * <p>
+ * Sales are counted per {@link Book} in time buckets of fixed length kept in a ring covering the largest window. Each
+ * window holds the running total of the buckets it spans. Sales are added to the bucket and the totals of the windows
+ * covering it, and once a bucket falls out of a window its counts are subtracted again. A query just needs to pick the
+ * top {@literal k} of the totals of one window using a bounded heap.
+ * <p>
+ * For catalogs too large to count each {@link Book} on its own, buckets and windows hold a {@link CountMinSketch} of
+ * fixed size instead and each window just tracks a bounded number of candidates with the highest estimates. Counts
+ * then may be slightly too high.
+ * <p>
+ * The counts are rebuilt with a single aggregation on {@link #start()} and whenever the change stream on the
+ * {@literal order} collection feeding new sales had to be re-established. The change stream starts when the
+ * aggregation does, so {@link Order orders} dated just before but committed while or after it ran are neither lost nor
+ * counted twice.
+ *
+ * @author Christoph Strobl
+ */
+public class SalesLeaderboard {
+
+	private static final Pattern WINDOW = Pattern.compile("(\\d+)([smhd])");
+
+	/** How long an {@link Order} may take to commit, bounded by the default transaction lifetime limit of MongoDB. */
+	private static final Duration LATE_COMMIT = Duration.ofMinutes(1);
+
+	private final MongoOperations mongoOps;
+	private final ReactiveMongoOperations changeStreams;
+	private final long bucketMillis;
+	private final int maxTopK;
+	private final boolean approximate;
+	private final LongSupplier clock;
+
+	/** Guarded by {@literal this}. */
+	private final Counts[] buckets;
+	private final Map<String, Window> windows = new LinkedHashMap<>();
+	private long current = Long.MIN_VALUE;
+
+	private final Cache<String, String> titles = Caffeine.newBuilder().maximumSize(10_000).build();
+	private @Nullable Disposable subscription;
+
+	/**
+	 * @param mongoOps used to rebuild the counts.
+	 * @param changeStreams used to follow new {@link Order orders}.
+	 * @param bucket length of the time buckets.
+	 * @param windows the windows to maintain, eg. {@literal 5m}, {@literal 1h} or {@literal 24h}.
+	 * @param maxTopK largest {@literal k} that can be asked for.
+	 * @param sketchWidth number of counters per row of the {@link CountMinSketch}. {@literal 0} to count exactly.
+	 * @param sketchDepth number of rows of the {@link CountMinSketch}.
+	 */
+	public SalesLeaderboard(MongoOperations mongoOps, ReactiveMongoOperations changeStreams, Duration bucket,
+			List<String> windows, int maxTopK, int sketchWidth, int sketchDepth) {
+		this(mongoOps, changeStreams, bucket, windows, maxTopK, sketchWidth, sketchDepth, System::currentTimeMillis);
+	}
+
+	/**
+	 * @param clock milliseconds since the epoch telling the current bucket.
+	 */
+	SalesLeaderboard(MongoOperations mongoOps, ReactiveMongoOperations changeStreams, Duration bucket,
+			List<String> windows, int maxTopK, int sketchWidth, int sketchDepth, LongSupplier clock) {
+
+		this.mongoOps = mongoOps;
+		this.clock = clock;
+		this.changeStreams = changeStreams;
+		this.bucketMillis = bucket.toMillis();
+		this.maxTopK = maxTopK;
+		this.approximate = sketchWidth > 0;
+
+		int span = 1;
+		for (String name : windows) {
+
+			Duration duration = parse(name.trim());
+			int buckets = (int) Math.max(1, (duration.toMillis() + bucketMillis - 1) / bucketMillis);
+
+			// the candidates tracked per window leave some headroom for the ones just about to climb up
+			this.windows.put(name.trim(), new Window(buckets,
+					approximate ? new SketchCounts(sketchWidth, sketchDepth, maxTopK * 4) : new ExactCounts()));
+			span = Math.max(span, buckets);
+		}
+
+		Supplier<Counts> bucketCounts = approximate ? () -> new SketchCounts(sketchWidth, sketchDepth, 0)
+				: ExactCounts::new;
+		this.buckets = new Counts[span];
+		for (int i = 0; i < span; i++) {
+			this.buckets[i] = bucketCounts.get();
+		}
+	}
+
+	/**
+	 * Rebuild the counts and follow new {@link Order orders}.
+	 */
+	public void start() {
+
+		subscription = Flux.defer(() -> {
+
+			// orders dated before are counted by the aggregation unless committed after it ran
+			Instant since = Instant.now();
+
+			return Mono.fromCallable(() -> rebuild(since)) //
+					.subscribeOn(Schedulers.elastic()) //
+					.flatMapMany(counted -> changeStream(since) //
+							.filter(order -> !isCounted(order, since, counted)));
+		}) //
+				.retryBackoff(Long.MAX_VALUE, Duration.ofSeconds(1), Duration.ofSeconds(30)) //
+				.subscribe(this::record);
+	}
+
+	public void stop() {
+
+		if (subscription != null) {
+			subscription.dispose();
+		}
+	}
+
+	/**
+	 * @return the names of the windows maintained.
+	 */
+	public Set<String> getWindows() {
+		return Collections.unmodifiableSet(windows.keySet());
+	}
+
+	/**
+	 * Count the sales of the given {@link Order}.
+	 *
+	 * @param order
+	 */
+	public void record(Order order) {
+
+		if (order.getBooks() == null) {
+			return;
+		}
+
+		for (BookSnapshot book : order.getBooks()) {
+			record(book.getId(), book.getTitle(), order.getDate().getTime(), 1);
+		}
+	}
+
+	/**
+	 * Obtain the best selling {@link Book books} within the given window.
+	 *
+	 * @param window one of {@link #getWindows()}.
+	 * @param k number of {@link Book books}, at most {@code maxTopK}.
+	 * @return
+	 * @throws IllegalArgumentException for unknown windows.
+	 */
+	public Ranking top(String window, int k) {
+
+		Window target = windows.get(window);
+		if (target == null) {
+			throw new IllegalArgumentException(
+					String.format("Unknown window '%s'. Use any of %s.", window, windows.keySet()));
+		}
+
+		int limit = Math.max(1, Math.min(k, maxTopK));
+		PriorityQueue<BookSales> heap = new PriorityQueue<>(limit + 1, Comparator.comparingLong(BookSales::getSales));
+		Date since;
+
+		synchronized (this) {
+
+			advance(bucketOf(clock.getAsLong()));
+			since = new Date((current - target.span + 1) * bucketMillis);
+
+			target.counts.forEach((book, sales) -> {
+
+				if (sales <= 0 || (heap.size() == limit && sales <= heap.peek().getSales())) {
+					return;
+				}
+
+				heap.add(new BookSales(book, null, sales));
+				if (heap.size() > limit) {
+					heap.poll();
+				}
+			});
+		}
+
+		List<BookSales> books = new ArrayList<>(heap.size());
+		while (!heap.isEmpty()) {
+
+			BookSales sales = heap.poll();
+			books.add(new BookSales(sales.getBook(), titles.getIfPresent(sales.getBook()), sales.getSales()));
+		}
+		Collections.reverse(books);
+
+		return new Ranking(window, since, approximate, books);
+	}
+
+	/**
+	 * Replace all counts with the sales of the {@link Order orders} placed within the largest window before the given
+	 * point in time.
+	 *
+	 * @param until
+	 * @return the ids of the {@link Order orders} counted that are dated less than {@link #LATE_COMMIT} before
+	 *         {@code until}.
+	 */
+	Set<String> rebuild(Instant until) {
+
+		long from = (bucketOf(until.toEpochMilli()) - buckets.length + 1) * bucketMillis;
+		Date recent = Date.from(until.minus(LATE_COMMIT));
+
+		Document millis = new Document("$subtract", Arrays.asList("$date", new Date(0)));
+		Document bookId = LegacyBookReferences.bookId("$books");
+		Document recentOrderId = new Document("$cond",
+				Arrays.asList(new Document("$gte", Arrays.asList("$date", recent)), "$_id", null));
+
+		List<Document> pipeline = Arrays.asList( //
+				new Document("$match", new Document("date", //
+						new Document("$gte", new Date(from)).append("$lt", Date.from(until)))), //
+				new Document("$unwind", "$books"), //
+				new Document("$group", new Document("_id", new Document("book", bookId) //
+						.append("bucket", new Document("$subtract",
+								Arrays.asList(millis, new Document("$mod", Arrays.asList(millis, bucketMillis)))))) //
+										.append("title", new Document("$first", "$books.title")) //
+										.append("sales", new Document("$sum", 1)) //
+										.append("orders", new Document("$addToSet", recentOrderId))));
+
+		List<Document> sales = mongoOps.getCollection(mongoOps.getCollectionName(Order.class)).aggregate(pipeline) //
+				.allowDiskUse(true) //
+				.into(new ArrayList<>());
+
+		Set<String> counted = new HashSet<>();
+
+		synchronized (this) {
+
+			current = Long.MIN_VALUE;
+			advance(bucketOf(until.toEpochMilli()));
+
+			for (Document bookSales : sales) {
+
+				Document id = bookSales.get("_id", Document.class);
+				Object book = id.get("book");
+				if (book != null) {
+					record(book.toString(), bookSales.getString("title"), ((Number) id.get("bucket")).longValue(),
+							((Number) bookSales.get("sales")).longValue());
+				}
+
+				for (Object order : (List<?>) bookSales.get("orders")) {
+					if (order != null) {
+						counted.add(order.toString());
+					}
+				}
+			}
+		}
+
+		return counted;
+	}
+
+	/**
+	 * Tell whether the given {@link Order} from the change stream is already part of the counts obtained via
+	 * {@link #rebuild(Instant)}. Each id of the given {@link Set} is used just once.
+	 *
+	 * @param order
+	 * @param since the point in time the counts were rebuilt for.
+	 * @param counted the ids of recent {@link Order orders} counted by {@link #rebuild(Instant)}.
+	 * @return
+	 */
+	private static boolean isCounted(Order order, Instant since, Set<String> counted) {
+
+		Instant date = order.getDate().toInstant();
+		if (!date.isBefore(since)) {
+			return false;
+		}
+
+		return date.isBefore(since.minus(LATE_COMMIT)) || counted.remove(order.getId());
+	}
+
+	private Flux<Order> changeStream(Instant since) {
+
+		ChangeStreamOptions options = ChangeStreamOptions.builder() //
+				.filter(new Document("$match", new Document("operationType", "insert")), //
+						new Document("$project", new Document("operationType", 1) //
+								.append("ns", 1) //
+								.append("documentKey", 1) //
+								.append("fullDocument._id", 1) //
+								.append("fullDocument.date", 1) //
+								.append("fullDocument.books._id", 1) //
+								.append("fullDocument.books.title", 1))) //
+				.resumeAt(since) //
+				.build();
+
+		return changeStreams.changeStream(mongoOps.getCollectionName(Order.class), options, Order.class) //
+				.filter(event -> event.getBody() != null) //
+				.map(event -> event.getBody());
+	}
+
+	private synchronized void record(String book, @Nullable String title, long timestamp, long sales) {
+
+		advance(bucketOf(clock.getAsLong()));
+
+		long bucket = Math.min(bucketOf(timestamp), current);
+		if (bucket <= current - buckets.length) {
+			return; // too old for any window
+		}
+
+		if (title != null) {
+			titles.put(book, title);
+		}
+
+		bucketAt(bucket).add(book, sales);
+		for (Window window : windows.values()) {
+			if (bucket > current - window.span) {
+				window.counts.add(book, sales);
+			}
+		}
+	}
+
+	/**
+	 * Move on to the given bucket subtracting the buckets falling out of each window on the way.
+	 */
+	private void advance(long bucket) {
+
+		if (current == Long.MIN_VALUE || bucket - current >= buckets.length) {
+
+			Arrays.stream(buckets).forEach(Counts::clear);
+			windows.values().forEach(it -> it.counts.clear());
+			current = bucket;
+			return;
+		}
+
+		for (long next = current + 1; next <= bucket; next++) {
+
+			for (Window window : windows.values()) {
+				window.counts.subtract(bucketAt(next - window.span));
+			}
+
+			// the slot is about to be reused and has just left the largest window
+			bucketAt(next).clear();
+		}
+
+		current = Math.max(current, bucket);
+	}
+
+	private Counts bucketAt(long bucket) {
+		return buckets[(int) Math.floorMod(bucket, (long) buckets.length)];
+	}
+
+	private long bucketOf(long timestamp) {
+		return Math.floorDiv(timestamp, bucketMillis);
+	}
+
+	private static Duration parse(String window) {
+
+		Matcher matcher = WINDOW.matcher(window);
+		if (!matcher.matches()) {
+			throw new IllegalArgumentException(String.format("Invalid window '%s'. Use eg. 5m, 1h or 24h.", window));
+		}
+
+		long amount = Long.parseLong(matcher.group(1));
+		switch (matcher.group(2)) {
+			case "s":
+				return Duration.ofSeconds(amount);
+			case "m":
+				return Duration.ofMinutes(amount);
+			case "h":
+				return Duration.ofHours(amount);
+			default:
+				return Duration.ofDays(amount);
+		}
+	}
+
+	/**
+	 * The best selling {@link Book books} within a window.
+	 */
+	@Value
+	public static class Ranking {
+
+		String window;
+		Date since;
+
+		/** {@literal true} if sales are estimates that might be slightly too high. */
+		boolean approximate;
+		List<BookSales> books;
+	}
+
+	@Value
+	public static class BookSales {
+
+		String book;
+		@Nullable String title;
+		long sales;
+	}
+
+	@Value
+	private static class Window {
+
+		int span;
+		Counts counts;
+	}
+
+	/**
+	 * Sales per {@link Book}.
+	 */
+	interface Counts {
+
+		void add(String book, long sales);
+
+		/**
+		 * @param bucket counts of the same kind to take away.
+		 */
+		void subtract(Counts bucket);
+
+		void clear();
+
+		void forEach(ObjLongConsumer<String> action);
+	}
+
+	static class ExactCounts implements Counts {
+
+		private final Map<String, Long> sales = new HashMap<>();
+
+		@Override
+		public void add(String book, long sales) {
+			this.sales.merge(book, sales, Long::sum);
+		}
+
+		@Override
+		public void subtract(Counts bucket) {
+
+			((ExactCounts) bucket).sales.forEach((book, sales) -> this.sales.computeIfPresent(book, (key, total) -> {
+
+				long remaining = total - sales;
+				return remaining > 0 ? remaining : null;
+			}));
+		}
+
+		@Override
+		public void clear() {
+			sales.clear();
+		}
+
+		@Override
+		public void forEach(ObjLongConsumer<String> action) {
+			sales.forEach(action::accept);
+		}
+	}
+
+	static class SketchCounts implements Counts {
+
+		private final CountMinSketch sketch;
+		private final int capacity;
+		private final Map<String, Long> candidates = new HashMap<>();
+
+		SketchCounts(int width, int depth, int capacity) {
+
+			this.sketch = new CountMinSketch(width, depth);
+			this.capacity = capacity;
+		}
+
+		@Override
+		public void add(String book, long sales) {
+
+			sketch.add(book, sales);
+			if (capacity == 0) {
+				return;
+			}
+
+			long estimate = sketch.estimate(book);
+			if (candidates.containsKey(book) || candidates.size() < capacity) {
+
+				candidates.put(book, estimate);
+				return;
+			}
+
+			Map.Entry<String, Long> lowest = Collections.min(candidates.entrySet(), Map.Entry.comparingByValue());
+			if (estimate > lowest.getValue()) {
+
+				candidates.remove(lowest.getKey());
+				candidates.put(book, estimate);
+			}
+		}
+
+		@Override
+		public void subtract(Counts bucket) {
+
+			sketch.subtract(((SketchCounts) bucket).sketch);
+
+			candidates.replaceAll((book, sales) -> sketch.estimate(book));
+			candidates.values().removeIf(sales -> sales <= 0);
+		}
+
+		@Override
+		public void clear() {
+
+			sketch.clear();
+			candidates.clear();
+		}
+
+		@Override
+		public void forEach(ObjLongConsumer<String> action) {
+			candidates.forEach(action::accept);
+		}
+	}
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.bookstore.stats;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.domain.Sort.Direction;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import com.example.bookstore.AppProfiles;
+import com.example.bookstore.Book;
+import com.example.bookstore.LegacyBookReferences;
+import com.example.bookstore.Order;
+import com.mongodb.ClientSessionOptions;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.result.UpdateResult;
+
+/**
+ * Sales per day, publisher and language pre-aggregated into the {@literal sales_daily} collection, so that reports
+ * read a few small documents instead of joining {@link Order orders} with {@link Book books} over and over again.
+ *
+ * <pre>
+ * <code>
+ * {
+ *     _id: { day: "2018-08-27", publisherId: "Harper Collins Publishers", language: "English" },
+ *     day: "2018-08-27",
+ *     publisherId: "Harper Collins Publishers",
+ *     language: "English",
+ *     sales: 42
+ * }
+ * </code>
+ * </pre>
+ *
+ * Every {@code bookstore.reports.interval-ms} just the {@link Order orders} placed since the high-water mark of the
+ * previous run are aggregated and added to the daily documents. Orders placed within the last
+ * {@code bookstore.reports.settle-seconds} are left for the next run, so that transactions still in flight are not
+ * skipped. Adding the sales and moving the high-water mark happen within one transaction, so no {@link Order} is
+ * counted twice.
+ *
+ * @author Christoph Strobl
+ */
+@Component
+@Profile(AppProfiles.SALES_REPORTS)
+public class SalesReports {
+
+	public static final String COLLECTION = "sales_daily";
+	public static final String WATERMARKS = "report_watermarks";
+
+	private static final Map<String, String> DIMENSIONS = new LinkedHashMap<>();
+
+	static {
+
+		DIMENSIONS.put("day", "day");
+		DIMENSIONS.put("publisher", "publisherId");
+		DIMENSIONS.put("language", "language");
+	}
+
+	private final MongoTemplate template;
+
+	private @Value("${bookstore.reports.settle-seconds:60}") long settleSeconds;
+	private @Value("${bookstore.reports.time-zone:UTC}") String timeZone;
+
+	public SalesReports(MongoTemplate template) {
+		this.template = template;
+	}
+
+	/**
+	 * Index the {@link Order orders} by {@literal date} for the incremental runs and the daily documents by
+	 * {@literal day} for the reports. Collections cannot be created within a transaction, so make sure they exist.
+	 */
+	@PostConstruct
+	public void init() {
+
+		if (!template.collectionExists(WATERMARKS)) {
+			template.createCollection(WATERMARKS);
+		}
+
+		template.indexOps(Order.class).ensureIndex(new Index().on("date", Direction.ASC).named("date"));
+		template.indexOps(COLLECTION).ensureIndex(new Index().on("day", Direction.ASC).named("day"));
+	}
+
+	/**
+	 * Aggregate the {@link Order orders} placed since the last run into the daily documents.
+	 *
+	 * @return the number of daily documents updated.
+	 */
+	@Scheduled(fixedDelayString = "${bookstore.reports.interval-ms:60000}")
+	public int refresh() {
+
+		Document watermark = template.getCollection(WATERMARKS).find(new Document("_id", COLLECTION)).first();
+		Date from = watermark != null ? watermark.getDate("until") : new Date(0);
+		Date until = new Date(System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(settleSeconds));
+
+		if (!until.after(from)) {
+			return 0;
+		}
+
+		List<Document> sales = template.getCollection(template.getCollectionName(Order.class)) //
+				.aggregate(pipeline(from, until)) //
+				.allowDiskUse(true) //
+				.into(new ArrayList<>());
+
+		List<WriteModel<Document>> updates = new ArrayList<>(sales.size());
+		for (Document daily : sales) {
+
+			Document id = daily.get("_id", Document.class);
+			updates.add(new UpdateOneModel<>(new Document("_id", id), //
+					new Document("$inc", new Document("sales", daily.get("sales"))) //
+							.append("$setOnInsert", new Document(id)), //
+					new UpdateOptions().upsert(true)));
+		}
+
+		try (ClientSession session = template.getMongoDbFactory()
+				.getSession(ClientSessionOptions.builder().causallyConsistent(true).build())) {
+
+			session.startTransaction();
+
+			if (!updates.isEmpty()) {
+				template.getCollection(COLLECTION).bulkWrite(session, updates);
+			}
+
+			// a concurrent run either fails with a write conflict or does not find the previous high-water mark anymore
+			MongoCollection<Document> watermarks = template.getCollection(WATERMARKS);
+			if (watermark == null) {
+				watermarks.insertOne(session, new Document("_id", COLLECTION).append("until", until));
+			} else {
+
+				UpdateResult result = watermarks.updateOne(session, new Document("_id", COLLECTION).append("until", from),
+						new Document("$set", new Document("until", until)));
+
+				if (result.getModifiedCount() == 0) {
+
+					session.abortTransaction(); // moved on by a concurrent run
+					return 0;
+				}
+			}
+
+			session.commitTransaction();
+		}
+
+		return updates.size();
+	}
+
+	/**
+	 * Sum up the sales of all days between {@code from} and {@code to} (both inclusive) by the given dimension.
+	 *
+	 * @param by one of {@literal day}, {@literal publisher} or {@literal language}.
+	 * @param from
+	 * @param to
+	 * @return sales per value of the dimension, best selling ones first.
+	 * @throws IllegalArgumentException for unknown dimensions.
+	 */
+	public List<Document> report(String by, LocalDate from, LocalDate to) {
+
+		String field = DIMENSIONS.get(by);
+		if (field == null) {
+			throw new IllegalArgumentException(
+					String.format("Unknown dimension '%s'. Use any of %s.", by, DIMENSIONS.keySet()));
+		}
+
+		Document sort = "day".equals(by) ? new Document("_id", 1) : new Document("sales", -1).append("_id", 1);
+
+		List<Document> pipeline = Arrays.asList( //
+				new Document("$match", new Document("day", //
+						new Document("$gte", from.toString()).append("$lte", to.toString()))), //
+				new Document("$group", new Document("_id", "$" + field) //
+						.append("sales", new Document("$sum", "$sales"))), //
+				new Document("$sort", sort), //
+				new Document("$project", new Document("_id", 0).append(by, "$_id").append("sales", 1)));
+
+		return template.getCollection(COLLECTION).aggregate(pipeline).into(new ArrayList<>());
+	}
+
+	/**
+	 * @return today in the {@code bookstore.reports.time-zone}.
+	 */
+	public LocalDate today() {
+		return LocalDate.now(ZoneId.of(timeZone));
+	}
+
+	/**
+	 * Join the {@link Order orders} placed within the given range with their {@link Book books} and count the sales per
+	 * day, publisher and language.
+	 */
+	private List<Document> pipeline(Date from, Date until) {
+
+		Document day = new Document("$dateToString", new Document("format", "%Y-%m-%d") //
+				.append("date", "$date") //
+				.append("timezone", timeZone));
+
+		return Arrays.asList( //
+				new Document("$match", new Document("date", new Document("$gte", from).append("$lt", until))), //
+				new Document("$unwind", "$books"), //
+				new Document("$addFields", new Document("book", LegacyBookReferences.bookId("$books"))), //
+				new Document("$lookup", new Document("from", template.getCollectionName(Book.class)) //
+						.append("localField", "book") //
+						.append("foreignField", "_id") //
+						.append("as", "details")), //
+				new Document("$unwind", new Document("path", "$details").append("preserveNullAndEmptyArrays", true)), //
+				new Document("$group", new Document("_id", new Document("day", day) //
+						.append("publisherId", new Document("$ifNull", Arrays.asList("$details.publisher_id", "unknown"))) //
+						.append("language", new Document("$ifNull", Arrays.asList("$details.language", "unknown")))) //
+								.append("sales", new Document("$sum", 1))));
+	}
+}
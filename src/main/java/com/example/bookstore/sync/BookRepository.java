@@ -15,11 +15,28 @@
  */
 package com.example.bookstore.sync;
 
+import java.util.Optional;
+
+import org.springframework.data.mongodb.repository.Query;
 import org.springframework.data.repository.CrudRepository;
 
 import com.example.bookstore.Book;
 
 /**
+ * Reads leave out the {@literal checkout} history embedded by the {@link com.example.bookstore.AppProfiles#SYNC_ATOMIC}
+ * sample, which is not part of the {@link Book} anyway.
+ *
  * @author Christoph Strobl
  */
-public interface BookRepository extends CrudRepository<Book, String> {}
+public interface BookRepository extends CrudRepository<Book, String> {
+
+	String CATALOG_FIELDS = "{ 'checkout' : 0 }";
+
+	@Override
+	@Query(value = "{ '_id' : ?0 }", fields = CATALOG_FIELDS)
+	Optional<Book> findById(String id);
+
+	@Override
+	@Query(value = "{ '_id' : { '$in' : ?0 } }", fields = CATALOG_FIELDS)
+	Iterable<Book> findAllById(Iterable<String> ids);
+}
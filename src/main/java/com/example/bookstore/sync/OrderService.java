@@ -15,7 +15,9 @@
  */
 package com.example.bookstore.sync;
 
-import org.springframework.retry.annotation.Backoff;
+import java.util.List;
+
+import org.springframework.lang.Nullable;
 import org.springframework.retry.annotation.Retryable;
 
 import com.example.bookstore.Book;
@@ -23,6 +25,9 @@ import com.example.bookstore.Customer;
 import com.example.bookstore.Order;
 
 /**
+ * Once {@link com.example.bookstore.AppProfiles#RETRYABLE_TRANSACTION retry} is active, orders failing with a transient
+ * transaction error are retried as defined by the {@link com.example.bookstore.retry.TransactionRetryPolicy}.
+ *
  * @author Christoph Strobl
  */
 public interface OrderService {
@@ -34,6 +39,33 @@ public interface OrderService {
 	 * @param book
 	 * @return
 	 */
-	@Retryable(backoff = @Backoff(5000))
-	Order buy(Customer customer, Book book);
+	@Retryable(interceptor = "transactionRetryInterceptor")
+	default Order buy(Customer customer, Book book) {
+		return buy(customer, book, null);
+	}
+
+	/**
+	 * Place the order for a specific {@link Book} along with the given
+	 * {@link com.example.bookstore.IdempotencyKeys idempotency key}.
+	 *
+	 * @param customer
+	 * @param book
+	 * @param idempotencyKey can be {@literal null}.
+	 * @return
+	 * @throws org.springframework.dao.DuplicateKeyException if the customer already placed an order with the given key.
+	 */
+	@Retryable(interceptor = "transactionRetryInterceptor")
+	Order buy(Customer customer, Book book, @Nullable String idempotencyKey);
+
+	/**
+	 * Place a single order for all given {@link Book books}. Either all of them are bought or none.
+	 *
+	 * @param customer
+	 * @param books
+	 * @return
+	 * @throws com.example.bookstore.BookSoldOutException if at least one of the {@link Book books} is not available in
+	 *           the requested quantity.
+	 */
+	@Retryable(interceptor = "transactionRetryInterceptor")
+	Order buy(Customer customer, List<Book> books);
 }
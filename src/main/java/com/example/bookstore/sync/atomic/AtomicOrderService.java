@@ -22,11 +22,15 @@ import lombok.RequiredArgsConstructor;
 
 import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 
+import org.bson.types.ObjectId;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Profile;
 import org.springframework.data.mongodb.core.MongoOperations;
 import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.lang.Nullable;
 import org.springframework.stereotype.Service;
 
 import com.example.bookstore.AppProfiles;
@@ -39,7 +43,8 @@ import com.example.bookstore.sync.OrderService;
 import com.mongodb.client.result.UpdateResult;
 
 /**
- * Synchronous {@link OrderService} implementation using the atomic document update model.
+ * Synchronous {@link OrderService} implementation using the atomic document update model. The embedded
+ * {@literal checkout} history is kept small by the {@link CheckoutCompactor}.
  *
  * @author Christoph Strobl
  */
@@ -51,25 +56,61 @@ public class AtomicOrderService implements OrderService {
 
 	private final BookRepository bookRepository;
 	private final MongoOperations mongoOperations;
+	private final CheckoutCompactor compactor;
 
+	private @Value("${bookstore.checkout.max-embedded:1000}") int maxEmbedded;
+
+	/**
+	 * {@link Order Orders} are embedded in the {@link Book} until compacted, out of reach of the unique index on the
+	 * idempotency key. Placing them along with a key therefore requires a transactional profile.
+	 */
 	@Override
-	public Order buy(Customer customer, Book book) {
+	public Order buy(Customer customer, Book book, @Nullable String idempotencyKey) {
+
+		if (idempotencyKey != null) {
+			throw new UnsupportedOperationException("Idempotency keys require a transactional profile.");
+		}
 
-		Order order = new Order(customer.getEmail(), new Date());
+		// the id allows the compactor to remove exactly the entries it moved
+		Order order = new Order(new ObjectId().toHexString(), customer.getEmail(), new Date(), null);
 		return checkout(order, book);
 	}
 
+	/**
+	 * The denormalized model only guarantees atomicity within a single {@link Book} document, so there's no way to buy
+	 * multiple ones all-or-nothing without a transaction.
+	 */
+	@Override
+	public Order buy(Customer customer, List<Book> books) {
+		throw new UnsupportedOperationException("Ordering multiple books at once requires a transactional profile.");
+	}
+
+	/**
+	 * Push the {@link Order} to the {@literal checkout} of the {@link Book} unless that one already holds
+	 * {@code bookstore.checkout.max-embedded} entries. In that case the {@link CheckoutCompactor} has fallen behind and
+	 * the oldest entries are moved right away.
+	 */
 	private Order checkout(Order order, Book book) {
 
+		if (!tryCheckout(order, book)) {
+
+			if (!mongoOperations.exists(query(where("id").is(book.getId()).and("stock").gt(0)), Book.class)
+					|| compactor.compact(book.getId()) == 0 || !tryCheckout(order, book)) {
+				throw new BookSoldOutException(book);
+			}
+		}
+
+		return new Order(order.getCustomer(), order.getDate(), Arrays.asList(book)).withId(order.getId());
+	}
+
+	private boolean tryCheckout(Order order, Book book) {
+
 		UpdateResult result = mongoOperations.update(Book.class) //
-				.matching(query(where("id").is(book.getId()).and("stock").gt(0))) //
+				.matching(query(where("id").is(book.getId()).and("stock").gt(0) //
+						.and("checkout." + (maxEmbedded - 1)).exists(false))) //
 				.apply(new Update().inc("stock", -1).push("checkout", order)) //
 				.first();
 
-		if (result.getModifiedCount() != 1) {
-			throw new BookSoldOutException(book);
-		}
-
-		return new Order(order.getCustomer(), order.getDate(), Arrays.asList(book));
+		return result.getModifiedCount() == 1;
 	}
 }
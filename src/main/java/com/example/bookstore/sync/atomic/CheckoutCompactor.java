@@ -0,0 +1,182 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.bookstore.sync.atomic;
+
+import static org.springframework.data.mongodb.core.query.Criteria.*;
+import static org.springframework.data.mongodb.core.query.Query.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import javax.annotation.PostConstruct;
+
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+
+import com.example.bookstore.AppProfiles;
+import com.example.bookstore.Book;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.result.UpdateResult;
+
+/**
+ * Moves all but the {@code bookstore.checkout.keep-recent} most recent {@literal checkout} entries of a {@link Book}
+ * into bucket documents of the {@literal order_buckets} collection, {@code bookstore.checkout.compact-batch-size}
+ * entries at a time.
+ *
+ * <pre>
+ * <code>
+ * {
+ *     _id: "bb4e114f:5b83ce7f1c9d440000a8e3b1",
+ *     book: "bb4e114f",
+ *     from: ISODate("2018-08-27T10:11:59.853Z"),
+ *     to: ISODate("2018-08-27T10:12:03.120Z"),
+ *     count: 500,
+ *     checkout: [ { _id: ObjectId("5b83ce7f1c9d440000a8e3b1"), by: "cstrobl", date: ISODate(...) }, ... ]
+ * }
+ * </code>
+ * </pre>
+ *
+ * A bucket is written before its entries are pulled from the {@link Book}. Its id is derived from the first entry, so
+ * that compacting the very same entries again after a failure in between does not create another bucket. Entries are
+ * added to the set of the bucket rather than written along with it on insert, as the scheduled run and an order
+ * compacting inline may move slices of different length starting at the very same entry at the same time. Just the
+ * entries the bucket then actually holds are pulled from the {@link Book}.
+ *
+ * @author Christoph Strobl
+ */
+@Component
+@Profile(AppProfiles.SYNC_ATOMIC)
+public class CheckoutCompactor {
+
+	public static final String COLLECTION = "order_buckets";
+
+	private final MongoOperations mongoOps;
+	private final String bookCollection;
+
+	private @Value("${bookstore.checkout.keep-recent:100}") int keepRecent;
+	private @Value("${bookstore.checkout.max-embedded:1000}") int maxEmbedded;
+	private @Value("${bookstore.checkout.compact-batch-size:500}") int batchSize;
+
+	public CheckoutCompactor(MongoOperations mongoOps) {
+
+		this.mongoOps = mongoOps;
+		this.bookCollection = mongoOps.getCollectionName(Book.class);
+	}
+
+	/**
+	 * A {@link Book} holding {@code bookstore.checkout.max-embedded} entries has to have some to compact, otherwise it
+	 * cannot be ordered anymore.
+	 */
+	@PostConstruct
+	public void validate() {
+
+		Assert.state(maxEmbedded > keepRecent,
+				() -> String.format("bookstore.checkout.max-embedded (%s) must exceed keep-recent (%s)!",
+						maxEmbedded, keepRecent));
+	}
+
+	/**
+	 * Compact all {@link Book books} holding more than {@code bookstore.checkout.keep-recent} entries.
+	 */
+	@Scheduled(fixedDelayString = "${bookstore.checkout.compact-interval-ms:10000}")
+	public void compactAll() {
+
+		Query query = query(where("checkout." + keepRecent).exists(true));
+		query.fields().include("_id");
+
+		mongoOps.find(query, Document.class, bookCollection).forEach(book -> {
+			while (compact(book.getString("_id")) > 0) {}
+		});
+	}
+
+	/**
+	 * Move one batch of the oldest {@literal checkout} entries of the given {@link Book} into a bucket.
+	 *
+	 * @param bookId
+	 * @return the number of entries moved.
+	 */
+	public int compact(String bookId) {
+
+		// just read the size and the oldest entries instead of the entire array
+		Document oldest = mongoOps.getCollection(bookCollection).aggregate(Arrays.asList( //
+				new Document("$match", new Document("_id", bookId)), //
+				new Document("$project", new Document("size", new Document("$size", "$checkout")) //
+						.append("checkout", new Document("$slice", Arrays.asList("$checkout", batchSize))))))
+				.first();
+
+		if (oldest == null || oldest.getInteger("size") <= keepRecent) {
+			return 0;
+		}
+
+		List<Document> entries = checkout(oldest);
+		entries = entries.subList(0, Math.min(entries.size(), oldest.getInteger("size") - keepRecent));
+
+		Document first = entries.get(0);
+		Document bucketId = new Document("_id", bookId + ":" + entryKey(first));
+
+		Document bucket = mongoOps.getCollection(COLLECTION).findOneAndUpdate(bucketId, //
+				new Document("$setOnInsert", new Document("book", bookId).append("from", first.get("date"))) //
+						.append("$max", new Document("to", entries.get(entries.size() - 1).get("date"))) //
+						.append("$addToSet", new Document("checkout", new Document("$each", entries))), //
+				new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.AFTER));
+
+		List<Document> stored = bucket != null ? checkout(bucket) : Collections.emptyList();
+
+		// a concurrent compaction of a longer slice may have added entries, so the largest count seen wins
+		mongoOps.getCollection(COLLECTION).updateOne(bucketId,
+				new Document("$max", new Document("count", stored.size())));
+
+		Set<String> storedKeys = stored.stream().map(CheckoutCompactor::entryKey).collect(Collectors.toSet());
+
+		List<Document> moved = new ArrayList<>(entries.size());
+		entries.stream().filter(entry -> storedKeys.contains(entryKey(entry)))
+				.forEach(entry -> moved.add(entry.containsKey("_id") ? new Document("_id", entry.get("_id"))
+						: new Document("by", entry.get("by")).append("date", entry.get("date"))));
+
+		if (moved.isEmpty()) {
+			return 0;
+		}
+
+		UpdateResult result = mongoOps.getCollection(bookCollection).updateOne(new Document("_id", bookId),
+				new Document("$pull", new Document("checkout", new Document("$or", moved))));
+
+		return result.getModifiedCount() == 1 ? moved.size() : 0;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<Document> checkout(Document document) {
+		return (List<Document>) document.get("checkout");
+	}
+
+	/**
+	 * Entries written before they got an id are identified by customer and date.
+	 */
+	private static String entryKey(Document entry) {
+		return entry.containsKey("_id") ? entry.get("_id").toString()
+				: entry.get("by") + ":" + entry.getDate("date").getTime();
+	}
+}
@@ -22,28 +22,40 @@ import lombok.RequiredArgsConstructor;
 
 import java.util.Arrays;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.stream.Collectors;
 
 import org.bson.Document;
+import org.bson.types.ObjectId;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Profile;
+import org.springframework.lang.Nullable;
 import org.springframework.stereotype.Service;
+import org.springframework.util.Assert;
 
 import com.example.bookstore.AppProfiles;
 import com.example.bookstore.Book;
 import com.example.bookstore.BookSoldOutException;
 import com.example.bookstore.Customer;
 import com.example.bookstore.Order;
+import com.example.bookstore.catalog.SoldOutBooks;
 import com.example.bookstore.sync.OrderService;
-import com.mongodb.DBRef;
+import com.mongodb.bulk.BulkWriteResult;
 import com.mongodb.client.ClientSession;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.UpdateOneModel;
 import com.mongodb.client.result.UpdateResult;
 
 /**
- * Synchronous {@link OrderService} implementation using transactions directly via {@link MongoClient}.
+ * Synchronous {@link OrderService} implementation using transactions directly via {@link MongoClient}. {@link Book
+ * Books} known to the {@link SoldOutBooks} are rejected before starting a session. {@link Order Orders} are written via
+ * the {@link com.example.bookstore.codec.OrderCodec} registered with the {@link MongoClient}.
  *
  * @author Christoph Strobl
  */
@@ -54,25 +66,31 @@ import com.mongodb.client.result.UpdateResult;
 public class NativeMongoTransactionalOrderService implements OrderService {
 
 	private final MongoClient client;
+	private final Optional<SoldOutBooks> soldOutBooks;
 	private @Value("${spring.data.mongodb.database}") String databaseName;
 
 	@Override
-	public Order buy(Customer customer, Book book) {
+	public Order buy(Customer customer, Book book, @Nullable String idempotencyKey) {
 
-		Order order = new Order(customer.getEmail(), new Date(), Arrays.asList(book));
+		soldOutBooks.ifPresent(it -> it.check(book));
+
+		Order order = new Order(customer.getEmail(), new Date(), Arrays.asList(book)).withIdempotencyKey(idempotencyKey)
+				.withId(new ObjectId().toHexString());
 
 		MongoDatabase database = client.getDatabase(databaseName);
 		try (ClientSession session = client.startSession()) {
 
 			session.startTransaction();
 
-			database.getCollection("order").insertOne(session, toDocument(order));
+			database.getCollection("order", Order.class).insertOne(session, order);
 
 			UpdateResult result = database.getCollection("books").updateOne(session, //
 					and(eq("_id", book.getId()), gt("available", 0)), //
 					inc("available", -1)); //
 
 			if (result.getModifiedCount() != 1) {
+
+				soldOutBooks.ifPresent(it -> it.markSoldOut(book.getId()));
 				throw new BookSoldOutException(book);
 			}
 
@@ -82,11 +100,39 @@ public class NativeMongoTransactionalOrderService implements OrderService {
 		return order;
 	}
 
-	private static Document toDocument(Order order) {
+	@Override
+	public Order buy(Customer customer, List<Book> books) {
+
+		Assert.notEmpty(books, "Books must not be empty!");
+		soldOutBooks.ifPresent(it -> it.check(books));
+
+		Order order = new Order(customer.getEmail(), new Date(), books).withId(new ObjectId().toHexString());
 
-		return new Document("by", order.getCustomer()) //
-				.append("date", order.getDate()) //
-				.append("books",
-						order.getBooks().stream().map(it -> new DBRef("books", it.getId())).collect(Collectors.toList()));
+		List<UpdateOneModel<Document>> updates = books.stream()
+				.collect(Collectors.groupingBy(Book::getId, LinkedHashMap::new, Collectors.summingInt(it -> 1))) //
+				.entrySet().stream() //
+				.map(it -> new UpdateOneModel<Document>( //
+						and(eq("_id", it.getKey()), gte("available", it.getValue())), //
+						inc("available", -it.getValue()))) //
+				.collect(Collectors.toList());
+
+		MongoDatabase database = client.getDatabase(databaseName);
+		try (ClientSession session = client.startSession()) {
+
+			session.startTransaction();
+
+			database.getCollection("order", Order.class).insertOne(session, order);
+
+			BulkWriteResult result = database.getCollection("books").bulkWrite(session, updates,
+					new BulkWriteOptions().ordered(false));
+
+			if (result.getModifiedCount() != updates.size()) {
+				throw new BookSoldOutException(books);
+			}
+
+			session.commitTransaction();
+		}
+
+		return order;
 	}
 }
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.bookstore.sync.transaction;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Primary;
+import org.springframework.context.annotation.Profile;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Service;
+
+import com.example.bookstore.AppProfiles;
+import com.example.bookstore.Book;
+import com.example.bookstore.Customer;
+import com.example.bookstore.Order;
+import com.example.bookstore.OrderBatch;
+import com.example.bookstore.catalog.SoldOutBooks;
+import com.example.bookstore.sync.OrderService;
+
+/**
+ * {@link OrderService} collecting concurrent orders for single {@link Book books} for up to
+ * {@code bookstore.coalesce.window-ms} or until {@code bookstore.coalesce.max-batch-size} of them are waiting, to then
+ * place them all at once via {@link TransactionalOrderService#buy(OrderBatch)}. Each caller waits for the outcome of
+ * its very own order for up to {@code bookstore.coalesce.timeout-ms}. Batches are placed one after another by a
+ * single thread, so they do not conflict with each other on hot {@link Book books}.
+ *
+ * @author Christoph Strobl
+ */
+@Service
+@Primary
+@Profile(AppProfiles.COALESCE + " & " + AppProfiles.SYNC_TRANSACTION)
+public class CoalescingOrderService implements OrderService, DisposableBean {
+
+	private final TransactionalOrderService orderService;
+	private final Optional<SoldOutBooks> soldOutBooks;
+	private final BlockingQueue<OrderBatch.Request> queue = new LinkedBlockingQueue<>();
+	private final long windowNanos;
+	private final long timeout;
+	private final int maxBatchSize;
+	private final Thread worker;
+
+	public CoalescingOrderService(TransactionalOrderService orderService, Optional<SoldOutBooks> soldOutBooks,
+			@Value("${bookstore.coalesce.window-ms:5}") long window,
+			@Value("${bookstore.coalesce.max-batch-size:64}") int maxBatchSize,
+			@Value("${bookstore.coalesce.timeout-ms:10000}") long timeout) {
+
+		this.orderService = orderService;
+		this.soldOutBooks = soldOutBooks;
+		this.windowNanos = TimeUnit.MILLISECONDS.toNanos(window);
+		this.maxBatchSize = maxBatchSize;
+		this.timeout = timeout;
+
+		this.worker = new Thread(this::run, "order-coalescer");
+		this.worker.setDaemon(true);
+		this.worker.start();
+	}
+
+	@Override
+	public Order buy(Customer customer, Book book, @Nullable String idempotencyKey) {
+
+		if (!orderService.isSharded(book.getId())) {
+			soldOutBooks.ifPresent(it -> it.check(book));
+		}
+
+		OrderBatch.Request request = OrderBatch.request(customer, book, idempotencyKey);
+		queue.add(request);
+
+		try {
+			return request.getResult().get(timeout, TimeUnit.MILLISECONDS);
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause()
+					: new IllegalStateException(e.getCause());
+		} catch (TimeoutException e) {
+			throw new IllegalStateException(String.format("No outcome for the order within %s ms%s.", timeout,
+					queue.remove(request) ? "" : ", it may still be placed"), e);
+		} catch (InterruptedException e) {
+
+			Thread.currentThread().interrupt();
+			queue.remove(request);
+			throw new IllegalStateException("Interrupted while waiting for the order.", e);
+		}
+	}
+
+	/**
+	 * Orders for multiple {@link Book books} are placed right away.
+	 */
+	@Override
+	public Order buy(Customer customer, List<Book> books) {
+		return orderService.buy(customer, books);
+	}
+
+	@Override
+	public void destroy() {
+		worker.interrupt();
+	}
+
+	private void run() {
+
+		while (!Thread.currentThread().isInterrupted()) {
+
+			List<OrderBatch.Request> requests = new ArrayList<>(maxBatchSize);
+
+			try {
+
+				requests.add(queue.take());
+
+				long deadline = System.nanoTime() + windowNanos;
+				while (requests.size() < maxBatchSize) {
+
+					OrderBatch.Request request = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+					if (request == null) {
+						break;
+					}
+					requests.add(request);
+				}
+			} catch (InterruptedException e) {
+
+				Thread.currentThread().interrupt();
+				new OrderBatch(requests).fail(e);
+				return;
+			}
+
+			OrderBatch batch = new OrderBatch(requests);
+
+			try {
+				batch.complete(orderService.buy(batch));
+			} catch (RuntimeException e) {
+				batch.fail(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.bookstore.sync.transaction;
+
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.*;
+import static org.springframework.data.mongodb.core.query.Criteria.*;
+import static org.springframework.data.mongodb.core.query.Query.*;
+
+import lombok.RequiredArgsConstructor;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Collectors;
+
+import org.bson.Document;
+import org.springframework.beans.BeanUtils;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.domain.Sort.Direction;
+import org.springframework.data.mongodb.MongoTransactionManager;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.example.bookstore.AppProfiles;
+import com.example.bookstore.Book;
+import com.example.bookstore.Customer;
+
+/**
+ * Splits the stock of a {@link Book} into {@code bookstore.stock.shards} sub-counter documents in the
+ * {@literal book_stock} collection, so that concurrent orders for the same book do not all end up writing the very
+ * same document.
+ *
+ * <pre>
+ * <code>
+ * {
+ *     _id: "bb4e114f:3",
+ *     book: "bb4e114f",
+ *     available: 125
+ * }
+ * </code>
+ * </pre>
+ *
+ * Each order first tries a single slot, picked at {@literal random} or by {@literal hash} of the {@link Customer}. Once
+ * that slot has run dry the remaining stock is read from all slots and taken from the fullest ones, moving half of
+ * what is left in the fullest slot over to the empty one. All updates are conditional on the slot holding enough stock
+ * and have to run within the surrounding transaction, so that nothing is ever oversold and partially taken stock is
+ * rolled back along with the order.
+ * <p>
+ * The {@literal available} field of a sharded {@link Book} document is set to {@literal 0}, so that code unaware of the
+ * slots cannot oversell, and the document is flagged with {@literal sharded_stock}. Anything reporting or reserving
+ * stock has to go through {@link #withStock(List)}, {@link #take(String, int)} and {@link #restock(String, int)} for
+ * {@link #isSharded(String) sharded} books instead.
+ *
+ * @author Christoph Strobl
+ */
+@Component
+@Profile(AppProfiles.SHARDED_STOCK)
+@RequiredArgsConstructor
+public class ShardedStock implements SmartInitializingSingleton {
+
+	public static final String COLLECTION = "book_stock";
+	public static final String SHARDED_FLAG = "sharded_stock";
+
+	private final MongoOperations mongoOps;
+	private final MongoTransactionManager txManager;
+
+	private final Set<String> shardedBooks = ConcurrentHashMap.newKeySet();
+
+	private @Value("${bookstore.stock.shards:8}") int shards;
+	private @Value("${bookstore.stock.slot-selection:random}") String slotSelection;
+	private @Value("${bookstore.stock.sharded-books:}") List<String> booksToShard;
+
+	/**
+	 * Shard the stock of all books listed in {@code bookstore.stock.sharded-books}, or of every single one if none are
+	 * listed, once the test data is in place but before the server accepts any order. Books sharded before keep their
+	 * slots.
+	 */
+	@Override
+	public void afterSingletonsInstantiated() {
+
+		mongoOps.indexOps(COLLECTION).ensureIndex(new Index().on("book", Direction.ASC).on("available", Direction.DESC));
+
+		Query query = booksToShard.isEmpty() ? new Query()
+				: query(new Criteria().orOperator(where("id").in(booksToShard), where(SHARDED_FLAG).is(true)));
+		query.fields().include("id");
+
+		mongoOps.find(query, Book.class).forEach(book -> shard(book.getId()));
+	}
+
+	/**
+	 * Move the stock of the {@link Book} with the given id into its slots. Can be called multiple times, any stock added
+	 * to the {@link Book} document in between is spread across the existing slots.
+	 *
+	 * @param bookId
+	 */
+	public void shard(String bookId) {
+
+		new TransactionTemplate(txManager).execute(action -> {
+
+			Book book = mongoOps.findById(bookId, Book.class);
+			if (book == null) {
+				return null;
+			}
+
+			int stock = book.getStock();
+			for (int slot = 0; slot < shards; slot++) {
+
+				// spread the remainder across the first slots
+				int share = stock / shards + (slot < stock % shards ? 1 : 0);
+
+				mongoOps.upsert(query(where("_id").is(slotId(bookId, slot))), //
+						new Update().set("book", bookId).inc("available", share), //
+						COLLECTION);
+			}
+
+			mongoOps.updateFirst(query(where("id").is(bookId)), new Update().set("stock", 0).set(SHARDED_FLAG, true),
+					Book.class);
+			return null;
+		});
+
+		shardedBooks.add(bookId);
+	}
+
+	/**
+	 * @param bookId
+	 * @return {@literal true} if the stock of the {@link Book} with the given id is held in slots.
+	 */
+	public boolean isSharded(String bookId) {
+		return shardedBooks.contains(bookId);
+	}
+
+	/**
+	 * Sum up the slots of the given sharded {@link Book books}.
+	 *
+	 * @param bookIds
+	 * @return the stock per id. Books without any slot are not contained.
+	 */
+	public Map<String, Integer> available(Collection<String> bookIds) {
+
+		Aggregation aggregation = newAggregation( //
+				match(where("book").in(bookIds)), //
+				group("book").sum("available").as("available"));
+
+		return mongoOps.aggregate(aggregation, COLLECTION, Document.class).getMappedResults().stream() //
+				.collect(Collectors.toMap(it -> it.getString("_id"), it -> ((Number) it.get("available")).intValue()));
+	}
+
+	/**
+	 * Report the stock held in the slots of sharded {@link Book books} instead of the {@literal 0} stored on the
+	 * {@link Book} document. Other {@link Book books} are returned as they are, sharded ones as copies.
+	 *
+	 * @param books
+	 * @return
+	 */
+	public List<Book> withStock(List<Book> books) {
+
+		Set<String> sharded = books.stream().map(Book::getId).filter(this::isSharded).collect(Collectors.toSet());
+		if (sharded.isEmpty()) {
+			return books;
+		}
+
+		Map<String, Integer> available = available(sharded);
+
+		return books.stream().map(book -> {
+
+			if (!sharded.contains(book.getId())) {
+				return book;
+			}
+
+			Book copy = new Book();
+			BeanUtils.copyProperties(book, copy);
+			copy.setStock(available.getOrDefault(book.getId(), 0));
+			return copy;
+		}).collect(Collectors.toList());
+	}
+
+	/**
+	 * Take the given quantity of the {@link Book} with the given id from a random slot, or the fullest ones if that one
+	 * runs dry. Must be called within a transaction.
+	 *
+	 * @param bookId
+	 * @param quantity
+	 * @return {@literal false} if there is not enough stock left.
+	 */
+	public boolean take(String bookId, int quantity) {
+		return take(ThreadLocalRandom.current().nextInt(shards), bookId, quantity);
+	}
+
+	/**
+	 * Take the given quantity of the {@link Book} with the given id from its slots. Must be called within a transaction.
+	 *
+	 * @param customer
+	 * @param bookId
+	 * @param quantity
+	 * @return {@literal false} if there is not enough stock left.
+	 */
+	public boolean take(Customer customer, String bookId, int quantity) {
+		return take(selectSlot(customer), bookId, quantity);
+	}
+
+	/**
+	 * Put the given quantity of the {@link Book} with the given id back into a random slot, eg. when a reservation
+	 * expires. Must be called within a transaction.
+	 *
+	 * @param bookId
+	 * @param quantity
+	 */
+	public void restock(String bookId, int quantity) {
+
+		mongoOps.updateFirst(query(where("_id").is(slotId(bookId, ThreadLocalRandom.current().nextInt(shards)))),
+				new Update().inc("available", quantity), COLLECTION);
+	}
+
+	private boolean take(int slot, String bookId, int quantity) {
+
+		if (takeFromSlot(slotId(bookId, slot), quantity)) {
+			return true;
+		}
+
+		// the selected slot ran dry, so let's see what's left in the other ones
+		List<Document> available = mongoOps.find(
+				query(where("book").is(bookId).and("available").gt(0)).with(Sort.by(Direction.DESC, "available")),
+				Document.class, COLLECTION);
+
+		int remaining = quantity;
+		for (Document candidate : available) {
+
+			if (remaining == 0) {
+				break;
+			}
+
+			int share = Math.min(remaining, candidate.getInteger("available"));
+			if (!takeFromSlot(candidate.getString("_id"), share)) {
+				return false;
+			}
+
+			candidate.put("available", candidate.getInteger("available") - share);
+			remaining -= share;
+		}
+
+		if (remaining > 0) {
+			return false;
+		}
+
+		rebalance(slotId(bookId, slot), available);
+		return true;
+	}
+
+	/**
+	 * Move half of the stock left in the fullest slot over to the given empty one, so that subsequent orders hitting it do
+	 * not have to scan all slots again.
+	 */
+	private void rebalance(String emptySlotId, List<Document> slots) {
+
+		Document fullest = slots.stream() //
+				.filter(it -> !it.getString("_id").equals(emptySlotId)) //
+				.max((s1, s2) -> Integer.compare(s1.getInteger("available"), s2.getInteger("available"))) //
+				.orElse(null);
+
+		if (fullest == null || fullest.getInteger("available") < 2) {
+			return;
+		}
+
+		int half = fullest.getInteger("available") / 2;
+		if (takeFromSlot(fullest.getString("_id"), half)) {
+			mongoOps.updateFirst(query(where("_id").is(emptySlotId)), new Update().inc("available", half), COLLECTION);
+		}
+	}
+
+	private boolean takeFromSlot(String slotId, int quantity) {
+
+		return mongoOps.updateFirst(query(where("_id").is(slotId).and("available").gte(quantity)),
+				new Update().inc("available", -quantity), COLLECTION).getModifiedCount() == 1;
+	}
+
+	private int selectSlot(Customer customer) {
+
+		return "hash".equals(slotSelection) ? Math.floorMod(customer.getEmail().hashCode(), shards)
+				: ThreadLocalRandom.current().nextInt(shards);
+	}
+
+	private static String slotId(String bookId, int slot) {
+		return bookId + ":" + slot;
+	}
+}
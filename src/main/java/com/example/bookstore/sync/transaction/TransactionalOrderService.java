@@ -20,28 +20,45 @@ import static org.springframework.data.mongodb.core.query.Query.*;
 
 import lombok.RequiredArgsConstructor;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
 
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.context.annotation.Profile;
 import org.springframework.data.mongodb.MongoTransactionManager;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.BulkOperations.BulkMode;
 import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.lang.Nullable;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.Assert;
 
 import com.example.bookstore.AppProfiles;
 import com.example.bookstore.Book;
 import com.example.bookstore.BookSoldOutException;
 import com.example.bookstore.Customer;
+import com.example.bookstore.IdempotencyKeys;
 import com.example.bookstore.Order;
+import com.example.bookstore.OrderBatch;
+import com.example.bookstore.catalog.SoldOutBooks;
+import com.example.bookstore.codec.CodecRepository;
 import com.example.bookstore.sync.OrderRepository;
 import com.example.bookstore.sync.OrderService;
 import com.mongodb.client.result.UpdateResult;
 
 /**
- * Synchronous {@link OrderService} implementation using transactions.
+ * Synchronous {@link OrderService} implementation using transactions. The stock of books split up by
+ * {@link ShardedStock} is taken from its slots instead of the {@link Book} document. {@link Book Books} known to the
+ * {@link SoldOutBooks} are rejected right away.
  *
  * @author Christoph Strobl
  */
@@ -54,16 +71,36 @@ public class TransactionalOrderService implements OrderService {
 	private final OrderRepository orderRepository;
 	private final MongoOperations mongoOps;
 	private final MongoTransactionManager txManager;
+	private final Optional<ShardedStock> shardedStock;
+	private final Optional<SoldOutBooks> soldOutBooks;
+	private final Optional<CodecRepository> codecRepository;
 
+	/**
+	 * The {@link Order} is inserted first, so that a duplicate idempotency key fails the transaction before touching the
+	 * stock. Orders for {@link Book books} known to be sold out are rejected without opening a transaction at all.
+	 */
 	@Override
-	public Order buy(Customer customer, Book book) {
+	public Order buy(Customer customer, Book book, @Nullable String idempotencyKey) {
+
+		if (!isSharded(book.getId())) {
+			soldOutBooks.ifPresent(it -> it.check(book));
+		}
 
 		TransactionTemplate tt = new TransactionTemplate(txManager);
 
 		return tt.execute(action -> {
 
-			Order order = new Order(customer.getEmail(), new Date(), Arrays.asList(book));
-			orderRepository.save(order);
+			Order order = save(
+					new Order(customer.getEmail(), new Date(), Arrays.asList(book)).withIdempotencyKey(idempotencyKey));
+
+			if (isSharded(book.getId())) {
+
+				if (!shardedStock.get().take(customer, book.getId(), 1)) {
+					throw new BookSoldOutException(book);
+				}
+
+				return order;
+			}
 
 			UpdateResult result = mongoOps.update(Book.class) //
 					.matching(query(where("id").is(book.getId()).and("stock").gt(0))) //
@@ -71,10 +108,127 @@ public class TransactionalOrderService implements OrderService {
 					.first();
 
 			if (result.getModifiedCount() != 1) {
+
+				soldOutBooks.ifPresent(it -> it.markSoldOut(book.getId()));
 				throw new BookSoldOutException(book);
 			}
 
 			return order;
 		});
 	}
+
+	@Override
+	public Order buy(Customer customer, List<Book> books) {
+
+		Assert.notEmpty(books, "Books must not be empty!");
+
+		Map<String, Integer> quantities = books.stream()
+				.collect(Collectors.groupingBy(Book::getId, LinkedHashMap::new, Collectors.summingInt(it -> 1)));
+
+		soldOutBooks.ifPresent(it -> it.check(
+				books.stream().filter(book -> !isSharded(book.getId())).collect(Collectors.toList())));
+
+		TransactionTemplate tt = new TransactionTemplate(txManager);
+
+		return tt.execute(action -> {
+
+			Order order = save(new Order(customer.getEmail(), new Date(), books));
+
+			BulkOperations bulkOps = mongoOps.bulkOps(BulkMode.UNORDERED, Book.class);
+			int updates = 0;
+
+			for (Map.Entry<String, Integer> entry : quantities.entrySet()) {
+
+				if (isSharded(entry.getKey())) {
+
+					if (!shardedStock.get().take(customer, entry.getKey(), entry.getValue())) {
+						throw new BookSoldOutException(books);
+					}
+					continue;
+				}
+
+				bulkOps.updateOne( //
+						query(where("id").is(entry.getKey()).and("stock").gte(entry.getValue())), //
+						new Update().inc("stock", -entry.getValue()));
+				updates++;
+			}
+
+			if (updates > 0 && bulkOps.execute().getModifiedCount() != updates) {
+				throw new BookSoldOutException(books);
+			}
+
+			return order;
+		});
+	}
+
+	/**
+	 * Place all orders of the given {@link OrderBatch} within one transaction reading the stock of all requested
+	 * {@link Book books} at once, updating each one of them just once and inserting all {@link Order orders} with a
+	 * single command. Requests already placed with their idempotency key are answered with the existing {@link Order}.
+	 * The stock of {@link ShardedStock sharded} {@link Book books} is summed up from and taken out of their slots.
+	 *
+	 * @param batch
+	 * @return the written {@link Order orders}.
+	 */
+	public List<Order> buy(OrderBatch batch) {
+
+		TransactionTemplate tt = new TransactionTemplate(txManager);
+
+		return tt.execute(action -> {
+
+			IdempotencyKeys.query(batch).ifPresent(it -> batch.replay(mongoOps.find(it, Order.class)));
+
+			Map<Boolean, List<String>> bookIds = batch.getBookIds().stream()
+					.collect(Collectors.partitioningBy(this::isSharded));
+
+			Query query = query(where("id").in(bookIds.get(false)));
+			query.fields().include("stock");
+
+			Map<String, Integer> stock = mongoOps.find(query, Book.class).stream()
+					.collect(Collectors.toMap(Book::getId, Book::getStock));
+
+			if (!bookIds.get(true).isEmpty()) {
+				stock.putAll(shardedStock.get().available(bookIds.get(true)));
+			}
+
+			Map<String, Integer> quantities = batch.allocate(stock);
+
+			BulkOperations bulkOps = mongoOps.bulkOps(BulkMode.UNORDERED, Book.class);
+			int updates = 0;
+
+			for (Map.Entry<String, Integer> entry : quantities.entrySet()) {
+
+				if (isSharded(entry.getKey())) {
+
+					if (!shardedStock.get().take(entry.getKey(), entry.getValue())) {
+						throw new IllegalStateException("Stock changed while placing the batch.");
+					}
+					continue;
+				}
+
+				bulkOps.updateOne( //
+						query(where("id").is(entry.getKey()).and("stock").gte(entry.getValue())), //
+						new Update().inc("stock", -entry.getValue()));
+				updates++;
+			}
+
+			if (updates > 0 && bulkOps.execute().getModifiedCount() != updates) {
+				throw new IllegalStateException("Stock changed while placing the batch.");
+			}
+
+			List<Order> orders = batch.getOrders();
+			return orders.isEmpty() ? orders : new ArrayList<>(mongoOps.insertAll(orders));
+		});
+	}
+
+	/**
+	 * Write the {@link Order} via the {@link CodecRepository} if present, the {@link OrderRepository} otherwise.
+	 */
+	private Order save(Order order) {
+		return codecRepository.isPresent() ? codecRepository.get().insert(order) : orderRepository.save(order);
+	}
+
+	boolean isSharded(String bookId) {
+		return shardedStock.isPresent() && shardedStock.get().isSharded(bookId);
+	}
 }
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.bookstore.sync.web;
+
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.lang.Nullable;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * Runs the blocking calls of the synchronous samples from within the WebFlux handler according to the configured
+ * {@link Mode}.
+ *
+ * @author Christoph Strobl
+ */
+public class BlockingExecutor implements Disposable {
+
+	private final Mode mode;
+	private final @Nullable Scheduler scheduler;
+
+	private BlockingExecutor(Mode mode, @Nullable Scheduler scheduler) {
+
+		this.mode = mode;
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * Create a new {@link BlockingExecutor} for the given {@link Mode} name.
+	 *
+	 * @param mode one of {@literal direct}, {@literal elastic} or {@literal bounded}.
+	 * @param threads number of threads used by {@link Mode#BOUNDED}.
+	 * @param queueCapacity number of calls {@link Mode#BOUNDED} queues up before rejecting further ones.
+	 * @return
+	 */
+	public static BlockingExecutor create(String mode, int threads, int queueCapacity) {
+
+		switch (Mode.valueOf(mode.trim().toUpperCase(Locale.ENGLISH))) {
+			case DIRECT:
+				return direct();
+			case ELASTIC:
+				return elastic();
+			default:
+				return bounded(threads, queueCapacity);
+		}
+	}
+
+	/**
+	 * @return {@link BlockingExecutor} running calls on the subscribing, most likely the event loop, thread.
+	 */
+	public static BlockingExecutor direct() {
+		return new BlockingExecutor(Mode.DIRECT, null);
+	}
+
+	/**
+	 * @return {@link BlockingExecutor} running calls on an unbounded elastic {@link Scheduler}.
+	 */
+	public static BlockingExecutor elastic() {
+		return new BlockingExecutor(Mode.ELASTIC, Schedulers.newElastic("blocking"));
+	}
+
+	/**
+	 * @param threads
+	 * @param queueCapacity
+	 * @return {@link BlockingExecutor} running calls on a fixed number of threads rejecting calls exceeding the queue
+	 *         capacity with a {@link java.util.concurrent.RejectedExecutionException}.
+	 */
+	public static BlockingExecutor bounded(int threads, int queueCapacity) {
+
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(queueCapacity), new CustomizableThreadFactory("blocking-"),
+				new ThreadPoolExecutor.AbortPolicy());
+
+		return new BlockingExecutor(Mode.BOUNDED, Schedulers.fromExecutorService(executor));
+	}
+
+	/**
+	 * Run the given blocking {@link Callable} on subscription.
+	 *
+	 * @param callable
+	 * @return {@link Mono} emitting the result. Fails with a {@link java.util.concurrent.RejectedExecutionException} if
+	 *         the call cannot be accepted.
+	 */
+	public <T> Mono<T> execute(Callable<T> callable) {
+
+		Mono<T> mono = Mono.fromCallable(callable);
+		return scheduler != null ? mono.subscribeOn(scheduler) : mono;
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	@Override
+	public void dispose() {
+
+		if (scheduler != null) {
+			scheduler.dispose();
+		}
+	}
+
+	@Override
+	public boolean isDisposed() {
+		return scheduler == null || scheduler.isDisposed();
+	}
+
+	public enum Mode {
+
+		/**
+		 * Block the event loop - just as if there was no {@link BlockingExecutor} at all.
+		 */
+		DIRECT,
+
+		/**
+		 * Hand over to an unbounded number of threads.
+		 */
+		ELASTIC,
+
+		/**
+		 * Hand over to a fixed number of threads and shed load once the queue is full.
+		 */
+		BOUNDED
+	}
+}
@@ -15,25 +15,50 @@
  */
 package com.example.bookstore.sync.web;
 
+import static org.springframework.data.mongodb.core.query.Criteria.*;
 import static org.springframework.web.reactive.function.server.ServerResponse.*;
-import static reactor.core.publisher.Mono.*;
 
 import lombok.RequiredArgsConstructor;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.Collectors;
+
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Profile;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Component;
 import org.springframework.web.reactive.function.server.ServerRequest;
 import org.springframework.web.reactive.function.server.ServerResponse;
+import org.springframework.web.server.ResponseStatusException;
 
 import com.example.bookstore.AppProfiles;
 import com.example.bookstore.Book;
+import com.example.bookstore.BookView;
 import com.example.bookstore.BookstoreHandler;
 import com.example.bookstore.Customer;
+import com.example.bookstore.IdempotencyKeys;
+import com.example.bookstore.LegacyBookReferences;
 import com.example.bookstore.Order;
+import com.example.bookstore.OrderHistory;
+import com.example.bookstore.catalog.BookCatalogCache;
+import com.example.bookstore.codec.CodecRepository;
 import com.example.bookstore.sync.BookRepository;
 import com.example.bookstore.sync.OrderService;
+import com.example.bookstore.sync.transaction.ShardedStock;
 
 /**
  * Synchronous {@link BookstoreHandler} implementation.
@@ -47,28 +72,207 @@ public class SyncBookstoreHandler implements BookstoreHandler {
 
 	private final BookRepository bookRepository;
 	private final OrderService orderService;
+	private final MongoOperations mongoOps;
+	private final Scheduler cursorScheduler;
+	private final BlockingExecutor blockingExecutor;
+	private final Optional<BookCatalogCache> catalogCache;
+	private final IdempotencyKeys idempotencyKeys;
+	private final Optional<CodecRepository> codecRepository;
+	private final Optional<ShardedStock> shardedStock;
+
+	private @Value("${bookstore.books.cursor-batch-size:100}") int cursorBatchSize;
 
+	/**
+	 * Stream the {@link Book books} from a cursor fetching {@code bookstore.books.cursor-batch-size} documents at a time
+	 * as demanded by the client. The blocking reads run on the bounded {@code cursorScheduler}. Just the fields of the
+	 * requested {@link BookView} are read unless the {@link BookCatalogCache} holds the entire {@link Book books} anyway,
+	 * or the stock of some of them has to be summed up from their {@link ShardedStock} slots one batch at a time.
+	 */
 	@Override
 	public Mono<ServerResponse> books(ServerRequest request) {
-		return ok().body(Flux.fromIterable(bookRepository.findAll()), Book.class);
+
+		BookView view = BookstoreHandler.view(request);
+
+		if (shardedStock.isPresent()) {
+
+			Flux<Book> books = catalogCache //
+					.map(it -> it.findAll(stream(BookView.DETAIL, Book.class))) //
+					.orElseGet(() -> stream(BookView.DETAIL, Book.class)) //
+					.buffer(cursorBatchSize) //
+					.concatMap(batch -> blockingExecutor.execute(() -> shardedStock.get().withStock(batch))) //
+					.flatMapIterable(batch -> batch);
+
+			return ok().body(books.map(view::render), Object.class);
+		}
+
+		Flux<?> books = catalogCache //
+				.<Flux<?>> map(it -> it.findAll(stream(BookView.DETAIL, Book.class))) //
+				.orElseGet(() -> stream(view, view.getType()));
+
+		return ok().body(books.map(view::render), Object.class);
 	}
 
 	@Override
 	public Mono<ServerResponse> book(ServerRequest request) {
-		return ok().body(just(bookById(request)), Book.class);
+
+		BookView view = BookstoreHandler.view(request);
+		String id = request.pathVariable("book");
+
+		if (view.isDetail() || catalogCache.isPresent() || isSharded(id)) {
+			return respond(bookById(request).flatMap(this::withStock).map(view::render));
+		}
+
+		Query query = view.project(new Query(where("_id").is(id)));
+
+		return respond(blockingExecutor.execute(() -> {
+
+			Object book = mongoOps.findOne(query, view.getType(), mongoOps.getCollectionName(Book.class));
+			if (book == null) {
+				throw new RuntimeException(String.format("No book found for id %s", id));
+			}
+			return view.render(book);
+		}));
 	}
 
+	/**
+	 * Orders placed with an idempotency key are answered from the {@link IdempotencyKeys} cache if recently placed.
+	 * Otherwise the order is placed, just to look up the existing one if the key turns out to be taken. Profiles not
+	 * supporting idempotency keys answer with {@literal 501 Not Implemented}.
+	 */
 	@Override
 	public Mono<ServerResponse> order(ServerRequest request) {
 
 		Customer customer = Customer.of(request.queryParam("customer").orElse(Customer.guest().getEmail()));
+		Optional<String> key = BookstoreHandler.idempotencyKey(request);
+
+		if (!key.isPresent()) {
+			return respond(bookById(request) //
+					.flatMap(book -> blockingExecutor.execute(() -> orderService.buy(customer, book))));
+		}
+
+		String id = request.pathVariable("book");
+		Optional<Order> placed = idempotencyKeys.cached(customer, key.get());
+		if (placed.isPresent()) {
+			return BookstoreHandler.replay(placed.get(), id);
+		}
+
+		return orUnavailable(notImplemented(bookById(request) //
+				.flatMap(book -> blockingExecutor.execute(() -> orderService.buy(customer, book, key.get())))) //
+				.flatMap(order -> ok().syncBody(idempotencyKeys.remember(order))) //
+				.onErrorResume(IdempotencyKeys::isDuplicateKey, error -> blockingExecutor //
+						.execute(() -> mongoOps.findOne(IdempotencyKeys.query(customer, key.get()), Order.class)) //
+						.flatMap(order -> BookstoreHandler.replay(idempotencyKeys.remember(order), id)) //
+						.switchIfEmpty(Mono.error(error))));
+	}
+
+	@Override
+	public Mono<ServerResponse> orders(ServerRequest request) {
+
+		Customer customer = Customer.of(request.queryParam("customer").orElse(Customer.guest().getEmail()));
+
+		return respond(notImplemented(BookstoreHandler.bookIds(request) //
+				.flatMap(ids -> blockingExecutor.execute(() -> orderService.buy(customer, booksById(ids))))));
+	}
+
+	/**
+	 * {@link Order Orders} still referencing their {@link Book books} get those resolved with a single query per page.
+	 */
+	@Override
+	public Mono<ServerResponse> customerOrders(ServerRequest request) {
+
+		Customer customer = Customer.of(request.pathVariable("customer"));
+		int limit = BookstoreHandler.historyLimit(request);
+		Query query = BookstoreHandler.historyQuery(request, customer, limit);
 
-		return ok().body(just(orderService.buy(customer, bookById(request))), Order.class);
+		return respond(blockingExecutor.execute(() -> {
+
+			List<Document> orders = mongoOps.find(query, Document.class, mongoOps.getCollectionName(Order.class));
+			LegacyBookReferences.query(orders).ifPresent(books -> LegacyBookReferences.embed(orders,
+					mongoOps.find(books, Document.class, mongoOps.getCollectionName(Book.class))));
+
+			return OrderHistory.of(orders.stream() //
+					.map(it -> mongoOps.getConverter().read(Order.class, it)) //
+					.collect(Collectors.toList()), limit);
+		}));
+	}
+
+	/**
+	 * Render the result of a blocking call or answer with {@literal 503 Service Unavailable} if the
+	 * {@link BlockingExecutor} is saturated.
+	 */
+	private static Mono<ServerResponse> respond(Mono<?> result) {
+		return orUnavailable(result.flatMap(it -> ok().syncBody(it)));
+	}
+
+	private static Mono<ServerResponse> orUnavailable(Mono<ServerResponse> response) {
+
+		return response.onErrorResume(RejectedExecutionException.class, it -> status(HttpStatus.SERVICE_UNAVAILABLE) //
+				.header(HttpHeaders.RETRY_AFTER, "1") //
+				.build());
+	}
+
+	/**
+	 * Answer calls not supported by the {@link OrderService} of the active profile, like ordering multiple
+	 * {@link Book books} at once or using idempotency keys without a transaction, with {@literal 501 Not Implemented}.
+	 */
+	private static <T> Mono<T> notImplemented(Mono<T> result) {
+
+		return result.onErrorMap(UnsupportedOperationException.class,
+				e -> new ResponseStatusException(HttpStatus.NOT_IMPLEMENTED, e.getMessage(), e));
+	}
+
+	private Mono<Book> bookById(ServerRequest request) {
+
+		String id = request.pathVariable("book");
+		Mono<Book> book = blockingExecutor.execute(() -> (codecRepository.isPresent() ? codecRepository.get().findBookById(id)
+				: bookRepository.findById(id)).orElseThrow(() -> new RuntimeException(String.format("No book found for id %s", id))));
+
+		return catalogCache.map(it -> it.findById(id, book)).orElse(book);
+	}
+
+	/**
+	 * Report the stock held in the {@link ShardedStock} slots instead of the {@literal 0} stored for sharded
+	 * {@link Book books}.
+	 */
+	private Mono<Book> withStock(Book book) {
+
+		if (!isSharded(book.getId())) {
+			return Mono.just(book);
+		}
+
+		return blockingExecutor.execute(() -> shardedStock.get().withStock(Collections.singletonList(book)).get(0));
+	}
+
+	private boolean isSharded(String bookId) {
+		return shardedStock.isPresent() && shardedStock.get().isSharded(bookId);
 	}
 
-	private Book bookById(ServerRequest request) {
+	private <T> Flux<T> stream(BookView view, Class<T> type) {
+
+		Query query = view.project(new Query().cursorBatchSize(cursorBatchSize));
+
+		return Flux.using( //
+				() -> mongoOps.stream(query, type, mongoOps.getCollectionName(Book.class)), //
+				cursor -> Flux.fromIterable(() -> cursor), //
+				CloseableIterator::close) //
+				.subscribeOn(cursorScheduler);
+	}
+
+	/**
+	 * Load all {@link Book books} with a single query retaining the order and multiplicity of the given ids.
+	 */
+	private List<Book> booksById(List<String> ids) {
+
+		Map<String, Book> books = new HashMap<>();
+		(codecRepository.isPresent() ? codecRepository.get().findBooksById(new HashSet<>(ids))
+				: bookRepository.findAllById(new HashSet<>(ids))).forEach(it -> books.put(it.getId(), it));
+
+		return ids.stream().map(id -> {
 
-		return bookRepository.findById(request.pathVariable("book")).orElseThrow(
-				() -> new RuntimeException(String.format("No book found for id %s", request.pathVariable("book"))));
+			if (!books.containsKey(id)) {
+				throw new RuntimeException(String.format("No book found for id %s", id));
+			}
+			return books.get(id);
+		}).collect(Collectors.toList());
 	}
 }
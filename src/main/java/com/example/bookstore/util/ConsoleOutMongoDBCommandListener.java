@@ -24,18 +24,23 @@ import com.mongodb.event.CommandStartedEvent;
 import com.mongodb.event.CommandSucceededEvent;
 
 /**
+ * {@link CommandListener} printing each and every command along with its reply to {@link System#out}. Wrap it with a
+ * {@link SampledCommandListener} to print just a sample of them.
+ *
  * @author Christoph Strobl
  */
 public enum ConsoleOutMongoDBCommandListener implements CommandListener {
 
 	INSTANCE;
 
+	private static final JsonWriterSettings JSON_WRITER_SETTINGS = JsonWriterSettings.builder().indent(true)
+			.outputMode(JsonMode.RELAXED).build();
+
 	@Override
 	public void commandStarted(CommandStartedEvent event) {
 
 		System.out.println("\nSending Command: " + event.getCommandName());
-		System.out.println(bgColored(COLOR.CYAN, "-->") + " "
-				+ event.getCommand().toJson(JsonWriterSettings.builder().indent(true).outputMode(JsonMode.RELAXED).build()));
+		System.out.println(bgColored(COLOR.CYAN, "-->") + " " + event.getCommand().toJson(JSON_WRITER_SETTINGS));
 	}
 
 	@Override
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.bookstore.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free histogram of durations in microseconds using power of two buckets. Percentiles are reported as the upper
+ * bound of the bucket they fall into, so they are accurate within a factor of two - good enough to tell a 200µs from a
+ * 5ms command.
+ *
+ * @author Christoph Strobl
+ */
+public class LatencyHistogram {
+
+	private static final int BUCKETS = 40; // 2^39µs is more than 6 days
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder totalMicros = new LongAdder();
+	private final AtomicLong maxMicros = new AtomicLong();
+
+	/**
+	 * Record a single duration.
+	 *
+	 * @param duration
+	 * @param unit
+	 */
+	public void record(long duration, TimeUnit unit) {
+
+		long micros = Math.max(0, unit.toMicros(duration));
+
+		buckets.incrementAndGet(bucketOf(micros));
+		count.increment();
+		totalMicros.add(micros);
+
+		if (micros > maxMicros.get()) {
+			maxMicros.accumulateAndGet(micros, Math::max);
+		}
+	}
+
+	/**
+	 * @return number of recorded durations.
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * @param quantile between {@literal 0} and {@literal 1}.
+	 * @return upper bound of the given quantile in microseconds.
+	 */
+	public long percentile(double quantile) {
+
+		long[] counts = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets.get(i);
+			total += counts[i];
+		}
+
+		if (total == 0) {
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(quantile * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(upperBoundOf(i), maxMicros.get());
+			}
+		}
+
+		return maxMicros.get();
+	}
+
+	/**
+	 * @return count, mean, p50, p90, p99 and max in microseconds.
+	 */
+	public Map<String, Object> snapshot() {
+
+		long count = getCount();
+
+		Map<String, Object> snapshot = new LinkedHashMap<>();
+		snapshot.put("count", count);
+		snapshot.put("mean", count == 0 ? 0 : totalMicros.sum() / count);
+		snapshot.put("p50", percentile(0.5));
+		snapshot.put("p90", percentile(0.9));
+		snapshot.put("p99", percentile(0.99));
+		snapshot.put("max", maxMicros.get());
+		return snapshot;
+	}
+
+	private static int bucketOf(long micros) {
+		return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+	}
+
+	private static long upperBoundOf(int bucket) {
+		return bucket == 0 ? 0 : (1L << bucket) - 1;
+	}
+}
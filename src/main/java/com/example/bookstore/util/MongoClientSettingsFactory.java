@@ -0,0 +1,145 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.bookstore.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.springframework.core.env.Environment;
+import org.springframework.lang.Nullable;
+import org.springframework.util.StringUtils;
+
+import com.example.bookstore.codec.BookstoreCodecs;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoCompressor;
+import com.mongodb.event.CommandListener;
+
+/**
+ * Creates {@link MongoClientSettings} for a named client from {@code bookstore.mongodb.<client>.*} properties, falling
+ * back to {@code bookstore.mongodb.*} and then to the driver defaults for the ones not set.
+ *
+ * <pre>
+ * pool.max-size, pool.min-size, pool.max-wait-queue-size, pool.max-wait-time-ms,
+ * pool.max-idle-time-ms, pool.max-life-time-ms,
+ * connect-timeout-ms, read-timeout-ms, server-selection-timeout-ms,
+ * compressors (snappy, zlib)
+ * </pre>
+ *
+ * Every client gets all {@link CommandListener command listeners}, reports its pool to {@link MongoPoolMetrics} and
+ * knows how to read and write {@link com.example.bookstore.Book books} and {@link com.example.bookstore.Order orders}
+ * via the {@link BookstoreCodecs}.
+ *
+ * @author Christoph Strobl
+ */
+public class MongoClientSettingsFactory {
+
+	private final Environment environment;
+	private final List<CommandListener> commandListeners;
+	private final MongoPoolMetrics poolMetrics;
+
+	public MongoClientSettingsFactory(Environment environment, List<CommandListener> commandListeners,
+			MongoPoolMetrics poolMetrics) {
+
+		this.environment = environment;
+		this.commandListeners = commandListeners;
+		this.poolMetrics = poolMetrics;
+	}
+
+	/**
+	 * @param client name of the client, eg. {@literal sync}.
+	 * @return new {@link MongoClientSettings}.
+	 */
+	public MongoClientSettings create(String client) {
+
+		MongoClientSettings.Builder settings = MongoClientSettings.builder() //
+				.applicationName("fantasy-bookstore-" + client) //
+				.codecRegistry(BookstoreCodecs.REGISTRY);
+		commandListeners.forEach(settings::addCommandListener);
+
+		settings.applyToConnectionPoolSettings(pool -> {
+
+			pool.addConnectionPoolListener(poolMetrics.listenerFor(client));
+
+			with(client, "pool.max-size", pool::maxSize);
+			with(client, "pool.min-size", pool::minSize);
+			with(client, "pool.max-wait-queue-size", pool::maxWaitQueueSize);
+			withMillis(client, "pool.max-wait-time-ms", it -> pool.maxWaitTime(it, TimeUnit.MILLISECONDS));
+			withMillis(client, "pool.max-idle-time-ms", it -> pool.maxConnectionIdleTime(it, TimeUnit.MILLISECONDS));
+			withMillis(client, "pool.max-life-time-ms", it -> pool.maxConnectionLifeTime(it, TimeUnit.MILLISECONDS));
+		});
+
+		settings.applyToSocketSettings(socket -> {
+
+			with(client, "connect-timeout-ms", it -> socket.connectTimeout(it, TimeUnit.MILLISECONDS));
+			with(client, "read-timeout-ms", it -> socket.readTimeout(it, TimeUnit.MILLISECONDS));
+		});
+
+		settings.applyToClusterSettings(cluster -> withMillis(client, "server-selection-timeout-ms",
+				it -> cluster.serverSelectionTimeout(it, TimeUnit.MILLISECONDS)));
+
+		String compressors = property(client, "compressors");
+		if (StringUtils.hasText(compressors)) {
+			settings.compressorList(compressors(compressors));
+		}
+
+		return settings.build();
+	}
+
+	static List<MongoCompressor> compressors(String names) {
+
+		List<MongoCompressor> compressors = new ArrayList<>();
+		for (String name : StringUtils.commaDelimitedListToStringArray(names)) {
+
+			switch (name.trim().toLowerCase(Locale.ROOT)) {
+				case "snappy":
+					compressors.add(MongoCompressor.createSnappyCompressor());
+					break;
+				case "zlib":
+					compressors.add(MongoCompressor.createZlibCompressor());
+					break;
+				default:
+					throw new IllegalArgumentException(String.format("Unknown compressor '%s'. Use snappy or zlib.", name));
+			}
+		}
+		return compressors;
+	}
+
+	private void with(String client, String key, Consumer<Integer> setter) {
+
+		String value = property(client, key);
+		if (StringUtils.hasText(value)) {
+			setter.accept(Integer.valueOf(value.trim()));
+		}
+	}
+
+	private void withMillis(String client, String key, Consumer<Long> setter) {
+
+		String value = property(client, key);
+		if (StringUtils.hasText(value)) {
+			setter.accept(Long.valueOf(value.trim()));
+		}
+	}
+
+	@Nullable
+	private String property(String client, String key) {
+
+		String value = environment.getProperty("bookstore.mongodb." + client + "." + key);
+		return value != null ? value : environment.getProperty("bookstore.mongodb." + key);
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.bookstore.util;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.bson.BsonDocument;
+import org.bson.RawBsonDocument;
+
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+
+/**
+ * {@link CommandListener} collecting latency, failure and reply size statistics per command name without taking any
+ * locks on the calling driver thread.
+ *
+ * @author Christoph Strobl
+ */
+public class MongoCommandMetrics implements CommandListener {
+
+	private final Map<String, CommandStats> stats = new ConcurrentHashMap<>();
+
+	@Override
+	public void commandStarted(CommandStartedEvent event) {}
+
+	@Override
+	public void commandSucceeded(CommandSucceededEvent event) {
+
+		CommandStats commandStats = statsFor(event.getCommandName());
+
+		commandStats.latency.record(event.getElapsedTime(TimeUnit.MICROSECONDS), TimeUnit.MICROSECONDS);
+		commandStats.replyBytes.add(sizeOf(event.getResponse()));
+	}
+
+	@Override
+	public void commandFailed(CommandFailedEvent event) {
+
+		CommandStats commandStats = statsFor(event.getCommandName());
+
+		commandStats.latency.record(event.getElapsedTime(TimeUnit.MICROSECONDS), TimeUnit.MICROSECONDS);
+		commandStats.failures.increment();
+	}
+
+	/**
+	 * @return statistics per command name.
+	 */
+	public Map<String, Object> snapshot() {
+
+		Map<String, Object> snapshot = new TreeMap<>();
+		stats.forEach((command, commandStats) -> snapshot.put(command, commandStats.snapshot()));
+		return snapshot;
+	}
+
+	private CommandStats statsFor(String commandName) {
+
+		CommandStats commandStats = stats.get(commandName);
+		return commandStats != null ? commandStats : stats.computeIfAbsent(commandName, key -> new CommandStats());
+	}
+
+	/**
+	 * The driver hands over the raw reply, so its size comes for free. We do not want to encode anything else.
+	 */
+	private static long sizeOf(BsonDocument response) {
+		return response instanceof RawBsonDocument ? ((RawBsonDocument) response).getByteBuffer().remaining() : 0;
+	}
+
+	static class CommandStats {
+
+		final LatencyHistogram latency = new LatencyHistogram();
+		final LongAdder failures = new LongAdder();
+		final LongAdder replyBytes = new LongAdder();
+
+		Map<String, Object> snapshot() {
+
+			Map<String, Object> snapshot = new TreeMap<>();
+			snapshot.put("latency", latency.snapshot());
+			snapshot.put("failures", failures.sum());
+			snapshot.put("replyBytes", replyBytes.sum());
+			return snapshot;
+		}
+	}
+}
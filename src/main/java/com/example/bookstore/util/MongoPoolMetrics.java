@@ -0,0 +1,196 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.bookstore.util;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.mongodb.connection.ConnectionId;
+import com.mongodb.connection.ServerId;
+import com.mongodb.event.ConnectionAddedEvent;
+import com.mongodb.event.ConnectionCheckedInEvent;
+import com.mongodb.event.ConnectionCheckedOutEvent;
+import com.mongodb.event.ConnectionPoolClosedEvent;
+import com.mongodb.event.ConnectionPoolListener;
+import com.mongodb.event.ConnectionPoolOpenedEvent;
+import com.mongodb.event.ConnectionPoolWaitQueueEnteredEvent;
+import com.mongodb.event.ConnectionPoolWaitQueueExitedEvent;
+import com.mongodb.event.ConnectionRemovedEvent;
+
+/**
+ * Connection pool statistics per named {@link com.mongodb.client.MongoClient client}: connections checked out and in
+ * the wait queue right now along with their peaks, the time spent waiting for and holding on to a connection, and the
+ * number of connections opened and closed to tell a well sized pool from one constantly churning connections.
+ * <p>
+ * The driver does not tell which request leaves the wait queue. Synchronous and asynchronous pools serve waiting
+ * requests in order of arrival, so wait times are matched first in first out.
+ *
+ * @author Christoph Strobl
+ */
+public class MongoPoolMetrics {
+
+	private final Map<String, PoolStats> clients = new ConcurrentHashMap<>();
+
+	/**
+	 * @param client the name to report the statistics of the client with.
+	 * @return the {@link ConnectionPoolListener} to register with the client.
+	 */
+	public ConnectionPoolListener listenerFor(String client) {
+		return clients.computeIfAbsent(client, key -> new PoolStats());
+	}
+
+	/**
+	 * @return statistics per client name.
+	 */
+	public Map<String, Object> snapshot() {
+
+		Map<String, Object> snapshot = new TreeMap<>();
+		clients.forEach((client, stats) -> snapshot.put(client, stats.snapshot()));
+		return snapshot;
+	}
+
+	static class PoolStats implements ConnectionPoolListener {
+
+		final Map<ServerId, Queue<Long>> waiting = new ConcurrentHashMap<>();
+		final Map<ConnectionId, Long> checkedOutAt = new ConcurrentHashMap<>();
+
+		final LatencyHistogram waitTime = new LatencyHistogram();
+		final LatencyHistogram holdTime = new LatencyHistogram();
+		final Gauge pools = new Gauge();
+		final Gauge connections = new Gauge();
+		final Gauge checkedOut = new Gauge();
+		final Gauge waitQueue = new Gauge();
+		final LongAdder connectionsOpened = new LongAdder();
+		final LongAdder connectionsClosed = new LongAdder();
+
+		@Override
+		public void connectionPoolOpened(ConnectionPoolOpenedEvent event) {
+			pools.increment();
+		}
+
+		@Override
+		public void connectionPoolClosed(ConnectionPoolClosedEvent event) {
+
+			pools.decrement();
+			waiting.remove(event.getServerId());
+		}
+
+		@Override
+		public void connectionCheckedOut(ConnectionCheckedOutEvent event) {
+
+			checkedOut.increment();
+			checkedOutAt.put(event.getConnectionId(), System.nanoTime());
+		}
+
+		@Override
+		public void connectionCheckedIn(ConnectionCheckedInEvent event) {
+
+			checkedOut.decrement();
+
+			Long since = checkedOutAt.remove(event.getConnectionId());
+			if (since != null) {
+				holdTime.record(System.nanoTime() - since, TimeUnit.NANOSECONDS);
+			}
+		}
+
+		@Override
+		public void waitQueueEntered(ConnectionPoolWaitQueueEnteredEvent event) {
+
+			waitQueue.increment();
+			waiting.computeIfAbsent(event.getServerId(), key -> new ConcurrentLinkedQueue<>()).add(System.nanoTime());
+		}
+
+		@Override
+		public void waitQueueExited(ConnectionPoolWaitQueueExitedEvent event) {
+
+			waitQueue.decrement();
+
+			Queue<Long> queue = waiting.get(event.getServerId());
+			Long since = queue != null ? queue.poll() : null;
+			if (since != null) {
+				waitTime.record(System.nanoTime() - since, TimeUnit.NANOSECONDS);
+			}
+		}
+
+		@Override
+		public void connectionAdded(ConnectionAddedEvent event) {
+
+			connections.increment();
+			connectionsOpened.increment();
+		}
+
+		@Override
+		public void connectionRemoved(ConnectionRemovedEvent event) {
+
+			connections.decrement();
+			connectionsClosed.increment();
+			checkedOutAt.remove(event.getConnectionId());
+		}
+
+		Map<String, Object> snapshot() {
+
+			Map<String, Object> snapshot = new TreeMap<>();
+			snapshot.put("pools", pools.get());
+			snapshot.put("connections", connections.snapshot());
+			snapshot.put("checkedOut", checkedOut.snapshot());
+			snapshot.put("waitQueue", waitQueue.snapshot());
+			snapshot.put("waitTime", waitTime.snapshot());
+			snapshot.put("holdTime", holdTime.snapshot());
+			snapshot.put("connectionsOpened", connectionsOpened.sum());
+			snapshot.put("connectionsClosed", connectionsClosed.sum());
+			return snapshot;
+		}
+	}
+
+	/**
+	 * Current value along with the highest one seen so far.
+	 */
+	static class Gauge {
+
+		final AtomicInteger current = new AtomicInteger();
+		final AtomicInteger peak = new AtomicInteger();
+
+		void increment() {
+
+			int value = current.incrementAndGet();
+			if (value > peak.get()) {
+				peak.accumulateAndGet(value, Math::max);
+			}
+		}
+
+		void decrement() {
+			current.decrementAndGet();
+		}
+
+		int get() {
+			return current.get();
+		}
+
+		Map<String, Object> snapshot() {
+
+			Map<String, Object> snapshot = new TreeMap<>();
+			snapshot.put("current", current.get());
+			snapshot.put("peak", peak.get());
+			return snapshot;
+		}
+	}
+}
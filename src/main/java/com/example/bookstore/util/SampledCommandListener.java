@@ -0,0 +1,72 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.bookstore.util;
+
+import com.mongodb.event.CommandEvent;
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+
+/**
+ * {@link CommandListener} passing on just every n-th command to its delegate. Started, succeeded and failed events of
+ * one command share the same request id, so either all or none of them get passed on.
+ *
+ * @author Christoph Strobl
+ */
+public class SampledCommandListener implements CommandListener {
+
+	private final CommandListener delegate;
+	private final int sampleEvery;
+
+	/**
+	 * @param delegate
+	 * @param sampleEvery pass on every n-th command. {@literal 0} to pass on none.
+	 */
+	public SampledCommandListener(CommandListener delegate, int sampleEvery) {
+
+		this.delegate = delegate;
+		this.sampleEvery = sampleEvery;
+	}
+
+	@Override
+	public void commandStarted(CommandStartedEvent event) {
+
+		if (isSampled(event)) {
+			delegate.commandStarted(event);
+		}
+	}
+
+	@Override
+	public void commandSucceeded(CommandSucceededEvent event) {
+
+		if (isSampled(event)) {
+			delegate.commandSucceeded(event);
+		}
+	}
+
+	@Override
+	public void commandFailed(CommandFailedEvent event) {
+
+		if (isSampled(event)) {
+			delegate.commandFailed(event);
+		}
+	}
+
+	private boolean isSampled(CommandEvent event) {
+		return sampleEvery > 0 && event.getRequestId() % sampleEvery == 0;
+	}
+}
@@ -17,29 +17,51 @@ package com.example.bookstore.util;
 
 import lombok.RequiredArgsConstructor;
 
-import java.nio.charset.StandardCharsets;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
 
 import javax.annotation.PostConstruct;
 
 import org.bson.Document;
-import org.springframework.boot.json.JacksonJsonParser;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Profile;
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.core.io.Resource;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Component;
-import org.springframework.util.StreamUtils;
 
 import com.example.bookstore.AppProfiles;
 import com.example.bookstore.Book;
 import com.example.bookstore.Order;
+import com.example.bookstore.hold.HoldService;
+import com.example.bookstore.queue.OrderQueue;
+import com.example.bookstore.stats.SalesReports;
+import com.example.bookstore.sync.atomic.CheckoutCompactor;
+import com.example.bookstore.sync.transaction.ShardedStock;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mongodb.DBRef;
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.InsertManyOptions;
 
 /**
- * A simple component that resets the test data.
+ * A simple component that resets the test data. The {@literal <collection>.json} files are parsed element by element
+ * and written in batches of {@code bookstore.reset.batch-size} documents. Use {@code bookstore.reset.books} and
+ * {@code bookstore.reset.orders} to add a synthetic catalog along with orders for load testing.
  *
  * @author Christoph Strobl
  */
@@ -48,8 +70,17 @@ import com.mongodb.client.MongoCollection;
 @RequiredArgsConstructor
 class TestDataLoader {
 
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
 	private final MongoTemplate template;
 
+	private @Value("${bookstore.reset.batch-size:1000}") int batchSize;
+	private @Value("${bookstore.reset.ordered:true}") boolean ordered;
+	private @Value("${bookstore.reset.parallelism:1}") int parallelism;
+	private @Value("${bookstore.reset.books:0}") int syntheticBooks;
+	private @Value("${bookstore.reset.orders:0}") int syntheticOrders;
+	private @Value("${bookstore.reset.legacy-orders:false}") boolean legacyOrders;
+
 	void resetTestDataFor(Class type) throws Exception {
 		resetTestDataFor(template.getCollectionName(type));
 	}
@@ -66,20 +97,170 @@ class TestDataLoader {
 
 		if (dataFile.exists()) {
 
-			List<Map> objects = new JacksonJsonParser() //
-					.parseList(StreamUtils.copyToString(dataFile.getInputStream(), StandardCharsets.UTF_8)).stream()
-					.map(Map.class::cast).collect(Collectors.toList());
+			try (InputStream inputStream = dataFile.getInputStream();
+					MappingIterator<Map<String, Object>> objects = MAPPER.readerFor(Map.class).readValues(inputStream)) {
+				insert(collection, new Iterator<Document>() {
 
-			MongoCollection<Document> mongoCollection = template.getCollection(collection);
+					@Override
+					public boolean hasNext() {
+						return objects.hasNext();
+					}
 
-			objects.forEach(it -> mongoCollection.insertOne(new Document((Map) it)));
+					@Override
+					public Document next() {
+						return new Document(objects.next());
+					}
+				});
+			}
 		}
 	}
 
+	/**
+	 * Insert the given {@link Document documents} in batches of {@code bookstore.reset.batch-size}. Unless
+	 * {@code bookstore.reset.parallelism} is {@literal 1}, batches are written concurrently.
+	 */
+	void insert(String collection, Iterator<Document> documents) throws Exception {
+
+		MongoCollection<Document> mongoCollection = template.getCollection(collection);
+		InsertManyOptions options = new InsertManyOptions().ordered(ordered);
+
+		if (parallelism <= 1) {
+
+			while (documents.hasNext()) {
+				mongoCollection.insertMany(nextBatch(documents), options);
+			}
+			return;
+		}
+
+		// the queue just holds as many batches as there are threads, the reading thread writes once it is full
+		ExecutorService executor = new ThreadPoolExecutor(parallelism, parallelism, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(parallelism), new CustomizableThreadFactory("reset-" + collection + "-"),
+				new ThreadPoolExecutor.CallerRunsPolicy());
+
+		try {
+
+			List<Future<?>> batches = new ArrayList<>();
+			while (documents.hasNext()) {
+
+				List<Document> batch = nextBatch(documents);
+				batches.add(executor.submit(() -> mongoCollection.insertMany(batch, options)));
+			}
+
+			for (Future<?> batch : batches) {
+				batch.get();
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private List<Document> nextBatch(Iterator<Document> documents) {
+
+		List<Document> batch = new ArrayList<>(batchSize);
+		while (documents.hasNext() && batch.size() < batchSize) {
+			batch.add(documents.next());
+		}
+		return batch;
+	}
+
+	/**
+	 * Insert {@code bookstore.reset.books} synthetic {@link Book books} and {@code bookstore.reset.orders} synthetic
+	 * {@link Order orders} for those.
+	 */
+	void generateTestData() throws Exception {
+
+		Random random = new Random(42);
+
+		insert(template.getCollectionName(Book.class), generate(syntheticBooks, i -> syntheticBook(i, random)));
+
+		if (syntheticBooks > 0) {
+			insert(template.getCollectionName(Order.class), generate(syntheticOrders, i -> syntheticOrder(random)));
+		}
+	}
+
+	private Document syntheticBook(int i, Random random) {
+
+		return new Document("_id", bookId(i)) //
+				.append("title", syntheticTitle(i)) //
+				.append("author", syntheticAuthors(i)) //
+				.append("published_date",
+						String.format("%d-%02d-%02d", 1950 + random.nextInt(70), 1 + random.nextInt(12), 1 + random.nextInt(28))) //
+				.append("pages", 100 + random.nextInt(900)) //
+				.append("language", random.nextBoolean() ? "English" : "German") //
+				.append("publisher_id", "Publisher " + random.nextInt(50)) //
+				.append("available", random.nextInt(100)) //
+				.append("checkout", Collections.emptyList());
+	}
+
+	private Document syntheticOrder(Random random) {
+
+		long thirtyDays = TimeUnit.DAYS.toMillis(30);
+
+		return new Document("by", String.format("customer-%d@fantasy-bookstore.io", random.nextInt(10_000))) //
+				.append("date", new Date(System.currentTimeMillis() - (long) (random.nextDouble() * thirtyDays))) //
+				.append("books", Collections.singletonList(syntheticOrderItem(random.nextInt(syntheticBooks))));
+	}
+
+	/**
+	 * Embed a {@link com.example.bookstore.BookSnapshot} or, with {@code bookstore.reset.legacy-orders}, reference the
+	 * {@link Book} the way {@link Order orders} used to.
+	 */
+	private Object syntheticOrderItem(int book) {
+
+		if (legacyOrders) {
+			return new DBRef("books", bookId(book));
+		}
+
+		return new Document("_id", bookId(book)) //
+				.append("title", syntheticTitle(book)) //
+				.append("author", syntheticAuthors(book));
+	}
+
+	private static String syntheticTitle(int i) {
+		return "Synthetic Book " + i;
+	}
+
+	private List<String> syntheticAuthors(int i) {
+		return Collections.singletonList("Author " + i % Math.max(1, syntheticBooks / 10));
+	}
+
+	private static String bookId(int i) {
+		return String.format("synthetic-%08d", i);
+	}
+
+	private static Iterator<Document> generate(int count, IntFunction<Document> generator) {
+
+		return new Iterator<Document>() {
+
+			int current = 0;
+
+			@Override
+			public boolean hasNext() {
+				return current < count;
+			}
+
+			@Override
+			public Document next() {
+
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return generator.apply(current++);
+			}
+		};
+	}
+
 	@PostConstruct
 	public void init() throws Exception {
 
 		resetTestDataFor(Book.class);
 		resetTestDataFor(Order.class);
+		resetTestDataFor(ShardedStock.COLLECTION);
+		resetTestDataFor(CheckoutCompactor.COLLECTION);
+		resetTestDataFor(SalesReports.COLLECTION);
+		resetTestDataFor(SalesReports.WATERMARKS);
+		resetTestDataFor(OrderQueue.COLLECTION);
+		resetTestDataFor(HoldService.COLLECTION);
+		generateTestData();
 	}
 }
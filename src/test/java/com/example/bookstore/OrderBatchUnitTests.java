@@ -0,0 +1,255 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.bookstore;
+
+import static org.assertj.core.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Test;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import com.example.bookstore.OrderBatch.Request;
+
+/**
+ * Unit tests for {@link OrderBatch}.
+ *
+ * @author Christoph Strobl
+ */
+public class OrderBatchUnitTests {
+
+	static final Customer CHRISTOPH = Customer.christoph();
+	static final Customer JEFF = Customer.jeff();
+
+	Book marvin = book("marvin");
+	Book zaphod = book("zaphod");
+
+	@Test
+	public void allocatesStockInOrderOfArrival() {
+
+		Request first = OrderBatch.request(CHRISTOPH, marvin);
+		Request second = OrderBatch.request(JEFF, marvin);
+		Request third = OrderBatch.request(JEFF, zaphod);
+		OrderBatch batch = batch(first, second, third);
+
+		assertThat(batch.allocate(stock(marvin, 1, zaphod, 5))).containsEntry("marvin", 1).containsEntry("zaphod", 1)
+				.hasSize(2);
+		assertThat(batch.getOrders()).extracting(Order::getCustomer).containsExactly(CHRISTOPH.getEmail(),
+				JEFF.getEmail());
+
+		batch.complete(written(batch.getOrders()));
+
+		assertThat(first.getResult()).isCompleted();
+		assertThat(third.getResult()).isCompleted();
+		assertThat(failureOf(second)).isInstanceOf(BookSoldOutException.class);
+	}
+
+	@Test
+	public void failsAllRequestsForBooksWithoutStock() {
+
+		Request first = OrderBatch.request(CHRISTOPH, marvin);
+		Request second = OrderBatch.request(JEFF, zaphod);
+		OrderBatch batch = batch(first, second);
+
+		assertThat(batch.allocate(stock(marvin, 0))).isEmpty();
+		assertThat(batch.getOrders()).isEmpty();
+
+		batch.complete(Collections.emptyList());
+
+		assertThat(failureOf(first)).isInstanceOf(BookSoldOutException.class);
+		assertThat(failureOf(second)).isInstanceOf(BookSoldOutException.class);
+	}
+
+	@Test
+	public void handsOutWrittenOrders() throws Exception {
+
+		Request request = OrderBatch.request(CHRISTOPH, marvin, "key");
+		OrderBatch batch = batch(request);
+
+		batch.allocate(stock(marvin, 1));
+		assertThat(batch.getOrders()).extracting(Order::getIdempotencyKey).containsExactly("key");
+
+		List<Order> written = written(batch.getOrders());
+		batch.complete(written);
+
+		assertThat(request.getResult().get()).isSameAs(written.get(0));
+	}
+
+	@Test
+	public void skipsRequestsAlreadyGivenUp() {
+
+		Request abandoned = OrderBatch.request(CHRISTOPH, marvin);
+		Request next = OrderBatch.request(JEFF, marvin);
+		OrderBatch batch = batch(abandoned, next);
+
+		abandoned.getResult().cancel(false);
+
+		assertThat(batch.allocate(stock(marvin, 1))).containsEntry("marvin", 1);
+		assertThat(batch.getOrders()).extracting(Order::getCustomer).containsExactly(JEFF.getEmail());
+	}
+
+	@Test
+	public void placesRepeatedKeyJustOnce() {
+
+		Request first = OrderBatch.request(CHRISTOPH, marvin, "key");
+		Request repeat = OrderBatch.request(CHRISTOPH, marvin, "key");
+		OrderBatch batch = batch(first, repeat);
+
+		assertThat(batch.allocate(stock(marvin, 5))).containsEntry("marvin", 1);
+		assertThat(batch.getOrders()).hasSize(1);
+
+		batch.complete(written(batch.getOrders()));
+
+		assertThat(first.getResult()).isCompleted();
+		assertThat(IdempotencyKeys.isDuplicateKey(failureOf(repeat))).isTrue();
+	}
+
+	@Test
+	public void repeatedKeyFailsJustAsTheRequestRepeated() {
+
+		Request first = OrderBatch.request(CHRISTOPH, marvin, "key");
+		Request repeat = OrderBatch.request(CHRISTOPH, marvin, "key");
+		OrderBatch batch = batch(first, repeat);
+
+		batch.allocate(stock(marvin, 0));
+		batch.complete(Collections.emptyList());
+
+		assertThat(failureOf(first)).isInstanceOf(BookSoldOutException.class);
+		assertThat(failureOf(repeat)).isInstanceOf(BookSoldOutException.class);
+	}
+
+	@Test
+	public void rejectsRepeatedKeyForAnotherBook() {
+
+		Request first = OrderBatch.request(CHRISTOPH, marvin, "key");
+		Request other = OrderBatch.request(CHRISTOPH, zaphod, "key");
+		OrderBatch batch = batch(first, other);
+
+		assertThat(batch.allocate(stock(marvin, 5, zaphod, 5))).containsOnlyKeys("marvin");
+
+		batch.complete(written(batch.getOrders()));
+
+		assertThat(first.getResult()).isCompleted();
+		assertThat(failureOf(other)).isInstanceOfSatisfying(ResponseStatusException.class,
+				it -> assertThat(it.getStatus()).isEqualTo(HttpStatus.UNPROCESSABLE_ENTITY));
+	}
+
+	@Test
+	public void sameKeyOfAnotherCustomerIsNoRepeat() {
+
+		OrderBatch batch = batch(OrderBatch.request(CHRISTOPH, marvin, "key"), OrderBatch.request(JEFF, marvin, "key"));
+
+		assertThat(batch.allocate(stock(marvin, 5))).containsEntry("marvin", 2);
+	}
+
+	@Test
+	public void replayRemovesRequestsWithKeysAlreadyPlaced() {
+
+		Request placed = OrderBatch.request(CHRISTOPH, marvin, "placed");
+		Request other = OrderBatch.request(CHRISTOPH, zaphod, "other");
+		Request fresh = OrderBatch.request(CHRISTOPH, marvin, "fresh");
+		Request keyless = OrderBatch.request(JEFF, marvin);
+		OrderBatch batch = batch(placed, other, fresh, keyless);
+
+		batch.replay(Arrays.asList(order(CHRISTOPH, marvin, "placed"), order(CHRISTOPH, marvin, "other")));
+
+		assertThat(batch.getRequests()).containsExactly(fresh, keyless);
+		assertThat(IdempotencyKeys.isDuplicateKey(failureOf(placed))).isTrue();
+		assertThat(failureOf(other)).isInstanceOfSatisfying(ResponseStatusException.class,
+				it -> assertThat(it.getStatus()).isEqualTo(HttpStatus.UNPROCESSABLE_ENTITY));
+	}
+
+	@Test
+	public void replayIgnoresKeysOfOtherCustomers() {
+
+		Request request = OrderBatch.request(CHRISTOPH, marvin, "key");
+		OrderBatch batch = batch(request);
+
+		batch.replay(Collections.singletonList(order(JEFF, marvin, "key")));
+
+		assertThat(batch.getRequests()).containsExactly(request);
+		assertThat(request.getResult()).isNotDone();
+	}
+
+	@Test
+	public void failsAllRequests() {
+
+		Request first = OrderBatch.request(CHRISTOPH, marvin);
+		Request second = OrderBatch.request(JEFF, zaphod, "key");
+		DuplicateKeyException error = new DuplicateKeyException("boom");
+
+		batch(first, second).fail(error);
+
+		assertThat(failureOf(first)).isSameAs(error);
+		assertThat(failureOf(second)).isSameAs(error);
+	}
+
+	private static OrderBatch batch(Request... requests) {
+		return new OrderBatch(new ArrayList<>(Arrays.asList(requests)));
+	}
+
+	private static Book book(String id) {
+
+		Book book = new Book();
+		book.setId(id);
+		return book;
+	}
+
+	private static Map<String, Integer> stock(Object... bookAndStock) {
+
+		Map<String, Integer> stock = new HashMap<>();
+		for (int i = 0; i < bookAndStock.length; i += 2) {
+			stock.put(((Book) bookAndStock[i]).getId(), (Integer) bookAndStock[i + 1]);
+		}
+		return stock;
+	}
+
+	private static Order order(Customer customer, Book book, String key) {
+		return new Order(customer.getEmail(), new Date(), Collections.singletonList(book)).withIdempotencyKey(key);
+	}
+
+	private static List<Order> written(List<Order> orders) {
+
+		List<Order> written = new ArrayList<>();
+		orders.forEach(it -> written.add(it.withId(Integer.toString(written.size()))));
+		return written;
+	}
+
+	private static Throwable failureOf(Request request) {
+
+		CompletableFuture<Order> result = request.getResult();
+		assertThat(result).isCompletedExceptionally();
+
+		try {
+			result.get();
+		} catch (ExecutionException e) {
+			return e.getCause();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		throw new AssertionError("Expected failure");
+	}
+}
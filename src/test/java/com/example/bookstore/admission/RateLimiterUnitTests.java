@@ -0,0 +1,149 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.bookstore.admission;
+
+import static org.assertj.core.api.Assertions.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link RateLimiter}.
+ *
+ * @author Christoph Strobl
+ */
+public class RateLimiterUnitTests {
+
+	static final long INTERVAL = TimeUnit.MILLISECONDS.toNanos(100); // 10 permits per second
+
+	AtomicLong clock;
+	RateLimiter limiter;
+
+	@Before
+	public void setUp() {
+
+		clock = new AtomicLong(TimeUnit.HOURS.toNanos(1));
+		limiter = new RateLimiter(10, 3, clock::get);
+	}
+
+	@Test
+	public void grantsFullBurstAtOnce() {
+
+		assertThat(limiter.tryAcquire("key")).isZero();
+		assertThat(limiter.tryAcquire("key")).isZero();
+		assertThat(limiter.tryAcquire("key")).isZero();
+	}
+
+	@Test
+	public void rejectsBeyondBurstWithTimeUntilNextPermit() {
+
+		acquire("key", 3);
+
+		assertThat(limiter.tryAcquire("key")).isEqualTo(INTERVAL);
+
+		clock.addAndGet(INTERVAL / 4);
+		assertThat(limiter.tryAcquire("key")).isEqualTo(INTERVAL - INTERVAL / 4);
+	}
+
+	@Test
+	public void rejectionDoesNotConsumeAPermit() {
+
+		acquire("key", 3);
+
+		for (int i = 0; i < 10; i++) {
+			assertThat(limiter.tryAcquire("key")).isEqualTo(INTERVAL);
+		}
+
+		clock.addAndGet(INTERVAL);
+		assertThat(limiter.tryAcquire("key")).isZero();
+	}
+
+	@Test
+	public void refillsOnePermitPerInterval() {
+
+		acquire("key", 3);
+
+		clock.addAndGet(INTERVAL);
+		assertThat(limiter.tryAcquire("key")).isZero();
+		assertThat(limiter.tryAcquire("key")).isEqualTo(INTERVAL);
+
+		clock.addAndGet(2 * INTERVAL);
+		assertThat(limiter.tryAcquire("key")).isZero();
+		assertThat(limiter.tryAcquire("key")).isZero();
+		assertThat(limiter.tryAcquire("key")).isEqualTo(INTERVAL);
+	}
+
+	@Test
+	public void neverRefillsBeyondBurst() {
+
+		acquire("key", 3);
+
+		clock.addAndGet(TimeUnit.MINUTES.toNanos(1));
+
+		acquire("key", 3);
+		assertThat(limiter.tryAcquire("key")).isEqualTo(INTERVAL);
+	}
+
+	@Test
+	public void keysDoNotShareBuckets() {
+
+		acquire("one", 3);
+
+		assertThat(limiter.tryAcquire("one")).isPositive();
+		assertThat(limiter.tryAcquire("two")).isZero();
+	}
+
+	@Test
+	public void sweepDropsRefilledBucketsOnly() {
+
+		acquire("one", 3);
+		clock.addAndGet(INTERVAL);
+		acquire("two", 1);
+
+		assertThat(limiter.size()).isEqualTo(2);
+
+		clock.addAndGet(INTERVAL);
+		limiter.sweep();
+
+		assertThat(limiter.size()).isOne();
+
+		clock.addAndGet(2 * INTERVAL);
+		limiter.sweep();
+
+		assertThat(limiter.size()).isZero();
+	}
+
+	@Test
+	public void sweptKeyStartsOverWithFullBurst() {
+
+		acquire("key", 3);
+		clock.addAndGet(3 * INTERVAL);
+		limiter.sweep();
+
+		acquire("key", 3);
+		assertThat(limiter.tryAcquire("key")).isEqualTo(INTERVAL);
+	}
+
+	private void acquire(String key, int permits) {
+
+		for (int i = 0; i < permits; i++) {
+			assertThat(limiter.tryAcquire(key)).as("permit %s of %s", i + 1, permits).isZero();
+		}
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.bookstore.stats;
+
+import static org.assertj.core.api.Assertions.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link CountMinSketch}.
+ *
+ * @author Christoph Strobl
+ */
+public class CountMinSketchUnitTests {
+
+	@Test
+	public void countsExactlyWithoutCollisions() {
+
+		CountMinSketch sketch = new CountMinSketch(1024, 4);
+
+		sketch.add("marvin", 3);
+		sketch.add("zaphod", 1);
+		sketch.add("marvin", 2);
+
+		assertThat(sketch.estimate("marvin")).isEqualTo(5);
+		assertThat(sketch.estimate("zaphod")).isEqualTo(1);
+		assertThat(sketch.estimate("trillian")).isZero();
+	}
+
+	@Test
+	public void keysWithSameHashCodeDoNotShareAllCounters() {
+
+		assertThat("Aa".hashCode()).isEqualTo("BB".hashCode());
+
+		CountMinSketch sketch = new CountMinSketch(1024, 4);
+		sketch.add("Aa", 100);
+
+		assertThat(sketch.estimate("Aa")).isEqualTo(100);
+		assertThat(sketch.estimate("BB")).isZero();
+	}
+
+	@Test
+	public void neverUnderestimates() {
+
+		CountMinSketch sketch = new CountMinSketch(64, 4);
+		Map<String, Long> counts = new HashMap<>();
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+
+		for (int i = 0; i < 10_000; i++) {
+
+			String key = "book-" + random.nextInt(500);
+			sketch.add(key, 1);
+			counts.merge(key, 1L, Long::sum);
+		}
+
+		counts.forEach((key, count) -> assertThat(sketch.estimate(key)).as(key).isGreaterThanOrEqualTo(count));
+	}
+
+	@Test
+	public void overestimatesBySmallMarginOnly() {
+
+		CountMinSketch sketch = new CountMinSketch(2048, 4);
+		long total = 0;
+
+		for (int i = 0; i < 1000; i++) {
+
+			sketch.add("book-" + i, 10);
+			total += 10;
+		}
+
+		// e / width * total with high probability
+		long margin = (long) Math.ceil(Math.E / 2048 * total);
+		for (int i = 0; i < 1000; i++) {
+			assertThat(sketch.estimate("book-" + i)).isBetween(10L, 10L + margin);
+		}
+	}
+
+	@Test
+	public void subtractsSketchOfSameDimensions() {
+
+		CountMinSketch window = new CountMinSketch(256, 4);
+		CountMinSketch bucket = new CountMinSketch(256, 4);
+
+		window.add("marvin", 5);
+		window.add("zaphod", 2);
+		bucket.add("marvin", 3);
+
+		window.subtract(bucket);
+
+		assertThat(window.estimate("marvin")).isEqualTo(2);
+		assertThat(window.estimate("zaphod")).isEqualTo(2);
+	}
+
+	@Test
+	public void clearResetsAllCounters() {
+
+		CountMinSketch sketch = new CountMinSketch(256, 4);
+		sketch.add("marvin", 5);
+
+		sketch.clear();
+
+		assertThat(sketch.estimate("marvin")).isZero();
+	}
+
+	@Test
+	public void supportsMoreThanEightRows() {
+
+		CountMinSketch sketch = new CountMinSketch(16, 12);
+		sketch.add("marvin", 1);
+
+		assertThat(sketch.estimate("marvin")).isEqualTo(1);
+	}
+}
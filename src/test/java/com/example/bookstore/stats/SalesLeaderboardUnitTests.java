@@ -0,0 +1,198 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.bookstore.stats;
+
+import static org.assertj.core.api.Assertions.*;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import org.assertj.core.groups.Tuple;
+import org.junit.Test;
+
+import com.example.bookstore.Book;
+import com.example.bookstore.Customer;
+import com.example.bookstore.Order;
+import com.example.bookstore.stats.SalesLeaderboard.BookSales;
+import com.example.bookstore.stats.SalesLeaderboard.Ranking;
+
+/**
+ * Unit tests for the time buckets of {@link SalesLeaderboard}.
+ *
+ * @author Christoph Strobl
+ */
+public class SalesLeaderboardUnitTests {
+
+	static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+
+	AtomicLong clock = new AtomicLong(TimeUnit.DAYS.toMillis(17_000));
+
+	@Test
+	public void ranksBooksBySalesWithinWindow() {
+
+		SalesLeaderboard leaderboard = exact();
+
+		sell(leaderboard, "marvin", 3);
+		sell(leaderboard, "zaphod", 5);
+		sell(leaderboard, "trillian", 1);
+
+		Ranking ranking = leaderboard.top("5m", 2);
+
+		assertThat(ranking.isApproximate()).isFalse();
+		assertThat(ranking.getSince()).isEqualTo(new Date(clock.get() - 4 * MINUTE));
+		assertThat(ranking.getBooks()).extracting(BookSales::getBook, BookSales::getTitle, BookSales::getSales)
+				.containsExactly(tuple("zaphod", "title of zaphod", 5L), tuple("marvin", "title of marvin", 3L));
+	}
+
+	@Test
+	public void salesLeaveShortWindowBeforeLongOne() {
+
+		SalesLeaderboard leaderboard = exact();
+		sell(leaderboard, "marvin", 2);
+
+		clock.addAndGet(4 * MINUTE);
+		sell(leaderboard, "zaphod", 1);
+
+		assertThat(sales(leaderboard, "5m")).containsExactly(tuple("marvin", 2L), tuple("zaphod", 1L));
+
+		clock.addAndGet(MINUTE);
+
+		assertThat(sales(leaderboard, "5m")).containsExactly(tuple("zaphod", 1L));
+		assertThat(sales(leaderboard, "1h")).containsExactly(tuple("marvin", 2L), tuple("zaphod", 1L));
+	}
+
+	@Test
+	public void reusedSlotsStartEmpty() {
+
+		SalesLeaderboard leaderboard = exact();
+		sell(leaderboard, "marvin", 2);
+
+		for (int minute = 1; minute <= 60; minute++) {
+
+			clock.addAndGet(MINUTE);
+			sell(leaderboard, "zaphod", 1);
+		}
+
+		// the slot of the first minute now holds the last one
+		assertThat(sales(leaderboard, "1h")).containsExactly(tuple("zaphod", 60L));
+		assertThat(sales(leaderboard, "5m")).containsExactly(tuple("zaphod", 5L));
+	}
+
+	@Test
+	public void countsLateOrdersInTheirBucket() {
+
+		SalesLeaderboard leaderboard = exact();
+		clock.addAndGet(10 * MINUTE);
+
+		leaderboard.record(order("marvin", clock.get() - 8 * MINUTE));
+
+		assertThat(sales(leaderboard, "5m")).isEmpty();
+		assertThat(sales(leaderboard, "1h")).containsExactly(tuple("marvin", 1L));
+
+		clock.addAndGet(52 * MINUTE);
+
+		assertThat(sales(leaderboard, "1h")).isEmpty();
+	}
+
+	@Test
+	public void ignoresOrdersOlderThanLongestWindow() {
+
+		SalesLeaderboard leaderboard = exact();
+
+		leaderboard.record(order("marvin", clock.get() - 60 * MINUTE));
+
+		assertThat(sales(leaderboard, "1h")).isEmpty();
+	}
+
+	@Test
+	public void countsOrdersDatedAheadInCurrentBucket() {
+
+		SalesLeaderboard leaderboard = exact();
+
+		leaderboard.record(order("marvin", clock.get() + 10 * MINUTE));
+
+		assertThat(sales(leaderboard, "5m")).containsExactly(tuple("marvin", 1L));
+
+		clock.addAndGet(5 * MINUTE);
+
+		assertThat(sales(leaderboard, "5m")).isEmpty();
+	}
+
+	@Test
+	public void clearsEverythingAfterIdlingLongerThanLongestWindow() {
+
+		SalesLeaderboard leaderboard = exact();
+		sell(leaderboard, "marvin", 2);
+
+		clock.addAndGet(TimeUnit.DAYS.toMillis(1));
+		sell(leaderboard, "zaphod", 1);
+
+		assertThat(sales(leaderboard, "1h")).containsExactly(tuple("zaphod", 1L));
+	}
+
+	@Test
+	public void sketchesFollowTheSameBuckets() {
+
+		SalesLeaderboard leaderboard = new SalesLeaderboard(null, null, Duration.ofMinutes(1),
+				Arrays.asList("5m", "1h"), 10, 1024, 4, clock::get);
+
+		sell(leaderboard, "marvin", 2);
+		clock.addAndGet(5 * MINUTE);
+		sell(leaderboard, "zaphod", 1);
+
+		assertThat(leaderboard.top("5m", 10).isApproximate()).isTrue();
+		assertThat(sales(leaderboard, "5m")).containsExactly(tuple("zaphod", 1L));
+		assertThat(sales(leaderboard, "1h")).containsExactly(tuple("marvin", 2L), tuple("zaphod", 1L));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsUnknownWindow() {
+		exact().top("2h", 10);
+	}
+
+	private SalesLeaderboard exact() {
+		return new SalesLeaderboard(null, null, Duration.ofMinutes(1), Arrays.asList("5m", "1h"), 10, 0, 0, clock::get);
+	}
+
+	private void sell(SalesLeaderboard leaderboard, String book, int copies) {
+
+		for (int i = 0; i < copies; i++) {
+			leaderboard.record(order(book, clock.get()));
+		}
+	}
+
+	private static List<Tuple> sales(SalesLeaderboard leaderboard, String window) {
+
+		return leaderboard.top(window, 10).getBooks().stream() //
+				.map(it -> tuple(it.getBook(), it.getSales())) //
+				.collect(Collectors.toList());
+	}
+
+	private static Order order(String id, long timestamp) {
+
+		Book book = new Book();
+		book.setId(id);
+		book.setTitle("title of " + id);
+
+		return new Order(Customer.christoph().getEmail(), new Date(timestamp), Collections.singletonList(book));
+	}
+}